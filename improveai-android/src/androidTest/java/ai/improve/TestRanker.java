@@ -142,4 +142,50 @@ public class TestRanker {
             }
         }
     }
+
+    @Test
+    public void testRankTopK() throws IOException, InterruptedException {
+        Ranker ranker = new Ranker(new URL(DummyV8ModelUrl));
+
+        List<Integer> items = new ArrayList<>();
+        for(int i = 0; i < 1000; ++i) {
+            items.add(i);
+        }
+
+        List<Integer> top = ranker.rankTopK(items, "context", 10);
+        IMPLog.d(Tag, "top 10: " + top);
+        assertEquals(10, top.size());
+
+        assertEquals(3, ranker.rankTopK(Arrays.asList(1, 2, 3), 10).size());
+        assertEquals(0, ranker.rankTopK(Arrays.asList(1, 2, 3), 0).size());
+    }
+
+    @Test
+    public void testRankTopK_negative_k() throws IOException, InterruptedException {
+        Ranker ranker = new Ranker(new URL(DummyV8ModelUrl));
+        try {
+            ranker.rankTopK(Arrays.asList(1, 2, 3), -1);
+            fail("k can't be negative");
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    public void testRankTopKWithScores() {
+        Random random = new Random();
+        int count = 1000;
+        List<Integer> variants = new ArrayList<>();
+        double[] scores = new double[count];
+        for(int i = 0; i < count; ++i) {
+            variants.add(i);
+            // plenty of ties
+            scores[i] = random.nextInt(50);
+        }
+
+        List<Integer> ranked = Utils.rank(variants, scores);
+        for(int k : new int[]{0, 1, 10, 999, 1000, 2000}) {
+            assertEquals(ranked.subList(0, Math.min(k, count)), Utils.rankTopK(variants, scores, k));
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package ai.improve;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
 import static ai.improve.TestModelValidation.getContext;
@@ -74,6 +75,31 @@ public class TestScorer {
         IMPLog.d(Tag, "scores: " + scores);
     }
 
+    @Test
+    public void testScoreArray() throws IOException, InterruptedException {
+        Scorer scorer = new Scorer(new URL(DummyV8ModelUrl));
+        double[] scores = scorer.scoreArray(Arrays.asList(0, 1, 2), "context");
+        assertEquals(3, scores.length);
+        IMPLog.d(Tag, "scores: " + Arrays.toString(scores));
+    }
+
+    @Test
+    public void testScoreInto() throws IOException, InterruptedException {
+        Scorer scorer = new Scorer(new URL(DummyV8ModelUrl));
+        double[] scores = new double[4];
+        scores[3] = -1;
+        scorer.scoreInto(Arrays.asList(0, 1, 2), "context", scores);
+        assertEquals(-1, scores[3], 0);
+        IMPLog.d(Tag, "scores: " + Arrays.toString(scores));
+
+        try {
+            scorer.scoreInto(Arrays.asList(0, 1, 2), null, new double[2]);
+            fail("out is too small");
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+    }
+
     @Test
     public void testScore_complex_objects() throws JSONException, IOException, InterruptedException {
         JSONObject root = TestUtils.loadJson(getContext(), "complex.json");
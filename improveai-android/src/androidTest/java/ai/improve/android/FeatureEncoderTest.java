@@ -20,10 +20,14 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import ai.improve.TestUtils;
 import ai.improve.log.IMPLog;
 import ai.improve.encoder.FeatureEncoder;
+import ai.improve.encoder.SparseFVec;
+import ai.improve.encoder.StringTable;
+import ai.improve.encoder.XXHash3;
 import biz.k11i.xgboost.util.FVec;
 
 import static org.junit.Assert.*;
@@ -347,6 +351,15 @@ public class FeatureEncoderTest {
 
     @Test
     public void testEncodeMultipleVariants() throws Exception {
+        verifyMultipleVariants(false);
+    }
+
+    @Test
+    public void testEncodeMultipleVariants_sparse() throws Exception {
+        verifyMultipleVariants(true);
+    }
+
+    private void verifyMultipleVariants(boolean sparse) throws Exception {
         JSONObject root = TestUtils.loadJson(getContext(), "feature_encoder_test_suite/multiple_variants.json");
         JSONObject testCase = root.getJSONObject("test_case");
 
@@ -363,8 +376,12 @@ public class FeatureEncoderTest {
         double[][] expected = getExpectedEncodingsMatrixFromJSON(root, featureNames.size());
 
         FeatureEncoder featureEncoder = new FeatureEncoder(featureNames, stringTables, modelSeed);
+        if (sparse) {
+            featureEncoder.setSparseFeatureThreshold(0);
+        }
 
         List<FVec> features = featureEncoder.encodeFeatureVectors(items, context, noise);
+        assertEquals(sparse, features.get(0) instanceof SparseFVec);
 
         for (int i = 0; i < features.size(); i++) {
             assertTrue(isEqualInFloatPrecision(expected[i], features.get(i)));
@@ -384,6 +401,44 @@ public class FeatureEncoderTest {
         featureEncoder.encodeFeatureVector(item, null, into, Math.random());
     }
 
+    @Test
+    public void testEncode_nested_paths() {
+        List<String> featureNames = Arrays.asList("item.a.b", "item.a.1", "item.c", "context.0.x");
+        FeatureEncoder featureEncoder = new FeatureEncoder(featureNames, new HashMap<>(), 1);
+
+        // "a.b" as a single key resolves to the same feature as {"a": {"b": ...}}
+        Map<String, Object> item = new HashMap<>();
+        item.put("a.b", 1);
+        item.put("a", Arrays.asList(5, 2));
+        item.put("d", Arrays.asList(3, 4));
+        Map<String, Object> context = new HashMap<>();
+        context.put("x", 6);
+
+        double[] into = new double[featureNames.size()];
+        Arrays.fill(into, Double.NaN);
+        featureEncoder.encodeFeatureVector(item, Arrays.asList(context), into, 0);
+        assertEquals(1.0, into[0], 0);
+        assertEquals(2.0, into[1], 0);
+        assertTrue(Double.isNaN(into[2]));
+        assertEquals(6.0, into[3], 0);
+    }
+
+    @Test
+    public void testXXHash3_matches_native() {
+        StringTable.setUseNativeHash(true);
+        try {
+            Random random = new Random(0);
+            for (int length = 0; length < 2100; ++length) {
+                byte[] data = new byte[length];
+                random.nextBytes(data);
+                long seed = random.nextLong();
+                assertEquals(StringTable.xxhash3(data, seed), XXHash3.hash64(data, seed));
+            }
+        } finally {
+            StringTable.setUseNativeHash(false);
+        }
+    }
+
     @Test
     public void testEncode_non_string_key() {
         List<String> featureNames = new ArrayList<>();
@@ -0,0 +1,15 @@
+package ai.improve;
+
+import java.io.IOException;
+
+/**
+ * Receives the result of an asynchronous Scorer.load() or Ranker.load()
+ */
+public interface LoadListener<T> {
+    /**
+     * Called on the loading thread when loading finishes, fails or is cancelled.
+     * @param result the loaded object, null if loading failed
+     * @param e null if loading succeeded, an InterruptedIOException if it was cancelled
+     */
+    void onFinish(T result, IOException e);
+}
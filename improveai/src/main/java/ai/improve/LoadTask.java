@@ -0,0 +1,73 @@
+package ai.improve;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A cancellable load running on an executor, which reports its result to an optional
+ * LoadListener once it finishes
+ */
+final class LoadTask<T> extends FutureTask<T> {
+
+    interface Loader<T> {
+        T load() throws IOException;
+    }
+
+    private final LoadListener<T> listener;
+
+    private LoadTask(final Loader<T> loader, LoadListener<T> listener) {
+        super(new Callable<T>() {
+            @Override
+            public T call() throws IOException {
+                try {
+                    return loader.load();
+                } catch (RuntimeException e) {
+                    // e.g. malformed model metadata, failures always surface as IOException
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+        });
+        this.listener = listener;
+    }
+
+    /**
+     * Runs loader on executor
+     * @throws java.util.concurrent.RejectedExecutionException if executor rejects the task
+     */
+    static <T> Future<T> start(Executor executor, Loader<T> loader, LoadListener<T> listener) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor can't be null");
+        }
+        LoadTask<T> task = new LoadTask<>(loader, listener);
+        executor.execute(task);
+        return task;
+    }
+
+    @Override
+    protected void done() {
+        if (listener == null) {
+            return;
+        }
+        T result = null;
+        IOException error = null;
+        try {
+            result = get();
+        } catch (CancellationException e) {
+            error = new InterruptedIOException("loading cancelled");
+        } catch (InterruptedException e) {
+            // get() doesn't wait once the task is done
+            error = new InterruptedIOException("loading interrupted");
+        } catch (ExecutionException e) {
+            error = e.getCause() instanceof IOException
+                    ? (IOException) e.getCause()
+                    : new IOException(String.valueOf(e.getCause()));
+        }
+        listener.onFinish(result, error);
+    }
+}
@@ -0,0 +1,449 @@
+package ai.improve;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import ai.improve.downloader.ModelDownloader;
+import ai.improve.downloader.ModelLoadMetrics;
+import ai.improve.log.IMPLog;
+
+/**
+ * Shares loaded models between Scorers and Rankers of the same process.
+ * <p>
+ * Once set with Scorer.setModelRegistry(), Scorers and Rankers created from a model URL get
+ * their model from the registry. Models are keyed by URL and content hash, so Scorers of
+ * the same model bytes share one immutable predictor and feature encoder, and concurrent loads
+ * of a model parse it only once. A URL acquired again within the revalidation interval gets
+ * the model it served last without being read. After the interval, the URL is read and hashed
+ * again to find out whether it serves other bytes. Remote models are best combined with a
+ * ModelCache, so that this is a conditional request instead of a full download.
+ * </p>
+ * <p>
+ * Models are reference counted: close() a Scorer or Ranker to release its model. Released
+ * models stay loaded for later Scorers until the estimated memory of all loaded models
+ * exceeds the heap budget, then the least recently used released models are evicted. Models
+ * in use are never evicted, even over the budget.
+ * </p>
+ */
+public final class ModelRegistry {
+    public static final String Tag = "ModelRegistry";
+
+    /**
+     * Revalidation interval of ModelRegistry(long)
+     */
+    public static final long DEFAULT_REVALIDATE_AFTER_MILLIS = 5 * 60 * 1000;
+
+    private final long heapBudget;
+
+    private final long revalidateAfterNanos;
+
+    /**
+     * Loaded and loading models by key in load order. Guarded by this.
+     */
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * Released models in least recently used order. Guarded by this.
+     */
+    private final LinkedHashMap<String, Entry> idleEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Entry of the bytes each URL served when it was last read, by URL. Entries of a URL that
+     * aren't its latest won't be acquired again. Guarded by this.
+     */
+    private final Map<String, Entry> latestEntries = new HashMap<>();
+
+    private int loadCount;
+
+    private int hitCount;
+
+    private int evictionCount;
+
+    /**
+     * Creates a registry which reads a URL again once its model was read more than
+     * DEFAULT_REVALIDATE_AFTER_MILLIS ago
+     * @param heapBudget estimated bytes of loaded models above which released models are
+     *                   evicted. 0 evicts models as soon as they are released, Long.MAX_VALUE
+     *                   keeps them all.
+     * @throws IllegalArgumentException if heapBudget is negative
+     */
+    public ModelRegistry(long heapBudget) {
+        this(heapBudget, DEFAULT_REVALIDATE_AFTER_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param heapBudget estimated bytes of loaded models above which released models are
+     *                   evicted. 0 evicts models as soon as they are released, Long.MAX_VALUE
+     *                   keeps them all.
+     * @param revalidateAfter time after the model of a URL was read within which acquiring the
+     *                        URL again returns that model without reading the URL. 0 reads
+     *                        the URL on every acquisition.
+     * @param unit unit of revalidateAfter
+     * @throws IllegalArgumentException if heapBudget or revalidateAfter is negative
+     */
+    public ModelRegistry(long heapBudget, long revalidateAfter, TimeUnit unit) {
+        if (heapBudget < 0) {
+            throw new IllegalArgumentException("heapBudget can't be negative");
+        }
+        if (revalidateAfter < 0) {
+            throw new IllegalArgumentException("revalidateAfter can't be negative");
+        }
+        this.heapBudget = heapBudget;
+        this.revalidateAfterNanos = unit.toNanos(revalidateAfter);
+    }
+
+    public long getHeapBudget() {
+        return heapBudget;
+    }
+
+    public long getRevalidateAfterNanos() {
+        return revalidateAfterNanos;
+    }
+
+    /**
+     * @return number of models loaded by the registry, i.e. acquisitions which parsed a model
+     */
+    public synchronized int getLoadCount() {
+        return loadCount;
+    }
+
+    /**
+     * @return number of acquisitions which shared a model loaded or being loaded already
+     */
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of released models evicted to stay within the heap budget
+     */
+    public synchronized int getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return estimated bytes of all loaded models, in use or released. It grows as string
+     * tables are built on first use.
+     */
+    public synchronized long getEstimatedMemory() {
+        long bytes = 0;
+        for (Entry entry : entries.values()) {
+            bytes += entry.estimateMemory();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the loaded models in load order
+     */
+    public synchronized List<ModelInfo> getModels() {
+        List<ModelInfo> models = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.model != null) {
+                models.add(new ModelInfo(entry));
+            }
+        }
+        return models;
+    }
+
+    /**
+     * Evicts all released models, e.g. when the app is asked to trim its memory
+     */
+    public synchronized void evictAll() {
+        evict(0);
+    }
+
+    /**
+     * Returns the model of the URL. Within the revalidation interval of the last read of the
+     * URL, that is the model it served then. Otherwise the URL is read, and the model is loaded
+     * unless a model with the same bytes is loaded or being loaded already. Each call must be
+     * paired with a release() of the returned model.
+     * Runs on the calling thread, which must not be the Android main thread for remote models.
+     * @throws IOException If the model can't be loaded
+     */
+    Scorer.Model acquire(final URL modelUrl) throws IOException {
+        long readStart = System.nanoTime();
+        Entry latest;
+        synchronized (this) {
+            latest = latestEntries.get(modelUrl.toString());
+            if (latest != null && readStart - latest.validatedAt < revalidateAfterNanos) {
+                hitCount++;
+                idleEntries.remove(latest.key);
+                latest.references++;
+            } else {
+                latest = null;
+            }
+        }
+        if (latest != null) {
+            return await(latest, false);
+        }
+
+        // discarded unless the model is loaded
+        final ModelLoadMetrics metrics = new ModelLoadMetrics(modelUrl);
+        final ByteBuffer source = ModelDownloader.readModelSource(modelUrl, metrics);
+        final long sourceHash = ScorerSnapshot.contentHash(source);
+        String key = modelUrl + "#" + Long.toHexString(sourceHash);
+
+        Entry entry;
+        boolean load = false;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(key, modelUrl, sourceHash, new FutureTask<>(new Callable<Scorer.Model>() {
+                    @Override
+                    public Scorer.Model call() throws IOException {
+                        return Scorer.finishLoad(loadModel(modelUrl, source, sourceHash, metrics));
+                    }
+                }));
+                entries.put(key, entry);
+                loadCount++;
+                load = true;
+            } else {
+                hitCount++;
+                idleEntries.remove(key);
+            }
+            entry.references++;
+            latestEntries.put(entry.url, entry);
+            entry.validatedAt = readStart;
+        }
+
+        if (load) {
+            entry.task.run();
+        }
+        return await(entry, load);
+    }
+
+    /**
+     * Waits for the model of an acquired entry
+     * @param load true if the calling thread loaded the entry
+     */
+    private Scorer.Model await(Entry entry, boolean load) throws IOException {
+        String key = entry.key;
+        try {
+            Scorer.Model model = get(entry.task);
+            synchronized (this) {
+                // set by whichever thread gets the model first, so that it can be released
+                entry.model = model;
+                if (latestEntries.get(entry.url) == entry) {
+                    // e.g. a model rolled back to bytes that are still loaded
+                    evictStaleVersions(entry);
+                }
+                if (load) {
+                    evict(heapBudget);
+                }
+            }
+            return model;
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                entry.references--;
+                if (load) {
+                    // later acquisitions try again
+                    remove(entry);
+                } else if (entry.references == 0 && entry.model != null && entries.get(key) == entry) {
+                    // interrupted while another thread loaded the model
+                    idleEntries.put(key, entry);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Releases a model returned by acquire(). Once no Scorer uses it anymore, it may be
+     * evicted to stay within the heap budget.
+     */
+    synchronized void release(Scorer.Model model) {
+        for (Entry entry : entries.values()) {
+            if (entry.model == model) {
+                if (--entry.references > 0) {
+                    return;
+                }
+                if (latestEntries.get(entry.url) != entry) {
+                    entries.remove(entry.key);
+                    evictionCount++;
+                    IMPLog.d(Tag, "evicted previous model of " + entry.modelUrl);
+                } else {
+                    idleEntries.put(entry.key, entry);
+                    evict(heapBudget);
+                }
+                return;
+            }
+        }
+    }
+
+    private static Scorer.Model loadModel(URL modelUrl, ByteBuffer source, long sourceHash,
+                                          ModelLoadMetrics metrics) throws IOException {
+        File snapshotDirectory = Scorer.getSnapshotDirectory();
+        if (snapshotDirectory != null) {
+            return ScorerSnapshot.load(modelUrl, source, sourceHash, snapshotDirectory, metrics);
+        }
+        return new Scorer.Model(ModelDownloader.loadModel(modelUrl, source, metrics), metrics);
+    }
+
+    private static Scorer.Model get(FutureTask<Scorer.Model> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while loading the model");
+        } catch (CancellationException e) {
+            throw new IOException("model loading cancelled");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(String.valueOf(cause));
+        }
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.key);
+        if (latestEntries.get(entry.url) == entry) {
+            latestEntries.remove(entry.url);
+        }
+    }
+
+    /**
+     * Released models of the URL with other bytes won't be acquired again once the URL
+     * serves a new model
+     */
+    private void evictStaleVersions(Entry current) {
+        Iterator<Entry> iterator = idleEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry != current && entry.url.equals(current.url)) {
+                iterator.remove();
+                entries.remove(entry.key);
+                evictionCount++;
+                IMPLog.d(Tag, "evicted previous model of " + entry.modelUrl);
+            }
+        }
+    }
+
+    /**
+     * Evicts released models, least recently used first, until the loaded models are
+     * estimated to use at most budget bytes
+     */
+    private void evict(long budget) {
+        if (idleEntries.isEmpty()) {
+            return;
+        }
+        long bytes = 0;
+        for (Entry entry : entries.values()) {
+            bytes += entry.estimateMemory();
+        }
+        Iterator<Entry> iterator = idleEntries.values().iterator();
+        while (bytes > budget && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            bytes -= entry.estimateMemory();
+            iterator.remove();
+            remove(entry);
+            evictionCount++;
+            IMPLog.d(Tag, "evicted model " + entry.modelUrl + ", estimated " + bytes + " bytes left");
+        }
+    }
+
+    private static final class Entry {
+        final String key;
+
+        final URL modelUrl;
+
+        /**
+         * modelUrl.toString(), URL.equals() may resolve host names
+         */
+        final String url;
+
+        final long sourceHash;
+
+        final FutureTask<Scorer.Model> task;
+
+        /**
+         * null while loading
+         */
+        Scorer.Model model;
+
+        int references;
+
+        /**
+         * System.nanoTime() before the latest read of the URL which served the bytes of this
+         * entry
+         */
+        long validatedAt;
+
+        Entry(String key, URL modelUrl, long sourceHash, FutureTask<Scorer.Model> task) {
+            this.key = key;
+            this.modelUrl = modelUrl;
+            this.url = modelUrl.toString();
+            this.sourceHash = sourceHash;
+            this.task = task;
+        }
+
+        long estimateMemory() {
+            return model == null ? 0 : model.estimateMemory();
+        }
+    }
+
+    /**
+     * A loaded model as of the getModels() call
+     */
+    public static final class ModelInfo {
+        private final URL modelUrl;
+
+        private final long contentHash;
+
+        private final int referenceCount;
+
+        private final long estimatedMemory;
+
+        private ModelInfo(Entry entry) {
+            this.modelUrl = entry.modelUrl;
+            this.contentHash = entry.sourceHash;
+            this.referenceCount = entry.references;
+            this.estimatedMemory = entry.estimateMemory();
+        }
+
+        public URL getModelUrl() {
+            return modelUrl;
+        }
+
+        /**
+         * @return checksum of the model bytes the model was loaded from
+         */
+        public long getContentHash() {
+            return contentHash;
+        }
+
+        /**
+         * @return number of Scorers using the model, 0 if it has been released and may be
+         * evicted
+         */
+        public int getReferenceCount() {
+            return referenceCount;
+        }
+
+        /**
+         * @return estimated heap bytes of the predictor and the feature encoder
+         */
+        public long getEstimatedMemory() {
+            return estimatedMemory;
+        }
+    }
+}
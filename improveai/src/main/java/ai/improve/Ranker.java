@@ -1,38 +1,90 @@
 package ai.improve;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.URL;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 import ai.improve.util.Utils;
 
 /**
  * A utility for ranking items based on their scores. The Ranker struct takes a Improve AI model to evaluate and rank the given items.
  */
-public class Ranker {
+public class Ranker implements Closeable {
     /**
      * A Scorer is used to calculate scores for items. Items must be JSON encodable.
      */
     private final Scorer scorer;
 
+    /**
+     * Whether the scorer has been created by the Ranker and is closed with it
+     */
+    private final boolean ownsScorer;
+
     /**
      * Create a Ranker instance with a CoreML model.
      * @param scorer a Scorer object to be used with this Ranker
      */
     public Ranker(Scorer scorer) {
+        this(scorer, false);
+    }
+
+    private Ranker(Scorer scorer, boolean ownsScorer) {
         this.scorer = scorer;
+        this.ownsScorer = ownsScorer;
     }
 
     /**
      * Create a Ranker instance with a CoreML model.
-     * @param modelUrl URL of a plain or gzip compressed CoreML model resource
+     * @param modelUrl URL of a plain, gzip or LZ4 frame compressed CoreML model resource
      *                 https://improve.ai/model.xgb
      *                 https://improve.ai/model.xgb.gz
+     *                 https://improve.ai/model.xgb.lz4
      *                 file:///android_asset/models/model.xgb(Bundled models in assets folder)
      * @throws IOException, InterruptedException if there is an issue initializing the Scorer with the modelUrl.
      */
     public Ranker(URL modelUrl) throws IOException, InterruptedException {
-        this.scorer = new Scorer(modelUrl);
+        this(new Scorer(modelUrl), true);
+    }
+
+    /**
+     * Loads a Ranker on the executor without blocking the caller, see Scorer.load(URL, Executor)
+     * for timeouts, cancellation and errors.
+     * @param modelUrl URL of a plain, gzip or LZ4 frame compressed model, see Ranker(URL)
+     * @param executor runs the load, must not be a thread that waits for the result
+     * @return future of the Ranker
+     * @throws java.util.concurrent.RejectedExecutionException if executor rejects the load
+     */
+    public static Future<Ranker> load(URL modelUrl, Executor executor) {
+        return load(modelUrl, executor, null);
+    }
+
+    /**
+     * Loads a Ranker on the executor without blocking the caller and reports the result to the
+     * listener on the loading thread.
+     * @param listener receives the Ranker or the error, may be null
+     * @see #load(URL, Executor)
+     */
+    public static Future<Ranker> load(final URL modelUrl, Executor executor, LoadListener<Ranker> listener) {
+        return LoadTask.start(executor, new LoadTask.Loader<Ranker>() {
+            @Override
+            public Ranker load() throws IOException {
+                return new Ranker(Scorer.open(modelUrl), true);
+            }
+        }, listener);
+    }
+
+    /**
+     * Releases the model of a Ranker created from a model URL, see Scorer.close(). A Scorer
+     * passed to Ranker(Scorer) is left open.
+     */
+    @Override
+    public void close() {
+        if (ownsScorer) {
+            scorer.close();
+        }
     }
 
     /**
@@ -51,7 +103,36 @@ public class Ranker {
      * @return List<T> -> a list of ranked items, sorted by their scores in descending order.
      */
     public <T> List<T> rank(List<T> items, Object context) {
-        List<Double> scores = scorer.score(items, context);
+        double[] scores = scorer.scoreArray(items, context);
         return Utils.rank(items, scores);
     }
+
+    /**
+     * Get the k best items by their scores. Faster than rank() when k is much smaller than
+     * the number of items, since the items aren't fully sorted.
+     * @param items the list of items to rank.
+     * @param k maximum number of items to return.
+     * @return List<T> -> the min(k, items.size()) best items, sorted by their scores in descending order.
+     * @throws IllegalArgumentException if items is null or empty, or k is negative.
+     */
+    public <T> List<T> rankTopK(List<T> items, int k) {
+        return rankTopK(items, null, k);
+    }
+
+    /**
+     * Get the k best items by their scores. Faster than rank() when k is much smaller than
+     * the number of items, since the items aren't fully sorted.
+     * @param items the list of items to rank.
+     * @param context extra context info that will be used with each of the item to get its score.
+     * @param k maximum number of items to return.
+     * @return List<T> -> the min(k, items.size()) best items, sorted by their scores in descending order.
+     * @throws IllegalArgumentException if items is null or empty, or k is negative.
+     */
+    public <T> List<T> rankTopK(List<T> items, Object context, int k) {
+        if(k < 0) {
+            throw new IllegalArgumentException("k can't be negative");
+        }
+        double[] scores = scorer.scoreArray(items, context);
+        return Utils.rankTopK(items, scores, k);
+    }
 }
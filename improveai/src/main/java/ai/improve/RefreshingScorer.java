@@ -0,0 +1,159 @@
+package ai.improve;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ai.improve.downloader.ModelDownloader;
+import ai.improve.downloader.ModelLoadMetrics;
+import ai.improve.log.IMPLog;
+
+/**
+ * A Scorer that reloads its model URL in the background, on demand with refresh() or
+ * periodically, to pick up retrained models without creating a new Scorer.
+ *
+ * A new predictor and feature encoder are built on a background thread, warmed up if a budget
+ * is set with Scorer.setWarmUpBudget(), and then swapped in at once. Scoring calls never block on a refresh: calls in flight finish
+ * with the model they started with and later calls use the new one. A model whose bytes haven't
+ * changed isn't built again.
+ */
+public class RefreshingScorer extends Scorer implements Closeable {
+    public static final String Tag = "RefreshingScorer";
+
+    private final URL modelUrl;
+
+    /**
+     * Runs refreshes one at a time
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * contentHash() of the model source of the current model
+     */
+    private long sourceHash;
+
+    private volatile int refreshCount;
+
+    /**
+     * Loads the model like Scorer(URL), blocking until it is loaded, and then refreshes it
+     * every refreshInterval.
+     * @param modelUrl URL of a plain, gzip or LZ4 frame compressed model, see Scorer(URL)
+     * @param refreshInterval time between the end of a refresh and the start of the next one,
+     *                        0 to only refresh on refresh() calls
+     * @param unit unit of refreshInterval
+     * @throws IOException if the model can't be loaded
+     * @throws InterruptedException if interrupted while loading the model
+     */
+    public RefreshingScorer(URL modelUrl, long refreshInterval, TimeUnit unit) throws IOException, InterruptedException {
+        if (refreshInterval < 0) {
+            throw new IllegalArgumentException("refreshInterval can't be negative");
+        }
+        this.modelUrl = modelUrl;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, Tag);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // the first load runs on the refresh thread too, remote models mustn't be downloaded
+        // on the Android main thread
+        try {
+            refresh().get();
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            IMPLog.e(Tag, "Failed to load model, " + e.getCause().getMessage());
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to load model " + modelUrl + ", " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw e;
+        }
+
+        if (refreshInterval > 0) {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        reload();
+                    } catch (Throwable e) {
+                        // keep the schedule going, the next refresh might succeed
+                        IMPLog.e(Tag, "Failed to refresh model " + RefreshingScorer.this.modelUrl + ", " + e.getMessage());
+                    }
+                }
+            }, refreshInterval, refreshInterval, unit);
+        }
+    }
+
+    /**
+     * Reloads the model in the background. Returns immediately.
+     * @return future with true if the model changed and has been replaced, false if it is
+     * unchanged. Fails with the IOException if the model can't be reloaded, in which case
+     * the current model is kept.
+     */
+    public Future<Boolean> refresh() {
+        return executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                return reload();
+            }
+        });
+    }
+
+    /**
+     * @return number of times the model has been replaced
+     */
+    public int getRefreshCount() {
+        return refreshCount;
+    }
+
+    /**
+     * Stops refreshing. Scoring keeps working with the current model.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        super.close();
+    }
+
+    /**
+     * Only runs on the executor thread
+     */
+    private boolean reload() throws IOException {
+        ModelLoadMetrics metrics = new ModelLoadMetrics(modelUrl);
+        ByteBuffer source = ModelDownloader.readModelSource(modelUrl, metrics);
+        long hash = ScorerSnapshot.contentHash(source);
+        Model current = getModel();
+        if (current != null && hash == sourceHash) {
+            IMPLog.d(Tag, "model unchanged, " + modelUrl);
+            return false;
+        }
+
+        File snapshotDirectory = getSnapshotDirectory();
+        Model model = snapshotDirectory != null
+                ? ScorerSnapshot.load(modelUrl, source, hash, snapshotDirectory, metrics)
+                : new Model(ModelDownloader.loadModel(modelUrl, source, metrics), metrics);
+
+        // warms up the new model before it replaces the current one
+        setModel(finishLoad(model));
+        sourceHash = hash;
+        if (current != null) {
+            refreshCount++;
+        }
+        IMPLog.d(Tag, "model refreshed, " + modelUrl);
+        return true;
+    }
+}
@@ -1,12 +1,18 @@
 package ai.improve;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import ai.improve.downloader.ModelDownloader;
+import ai.improve.downloader.ModelLoadMetrics;
 import ai.improve.encoder.FeatureEncoder;
 import ai.improve.log.IMPLog;
 import ai.improve.xgbpredictor.ImprovePredictor;
@@ -15,30 +21,239 @@ import biz.k11i.xgboost.util.FVec;
 /**
  Scores items with optional context using a CoreML model.
  */
-public class Scorer {
+public class Scorer implements Closeable {
     public static final String Tag = "Scorer";
 
+    /**
+     * Directory of Scorer snapshots, null if snapshots are disabled
+     */
+    private static volatile File snapshotDirectory;
+
+    /**
+     * Registry models are shared through, null if every Scorer loads its own model
+     */
+    private static volatile ModelRegistry modelRegistry;
+
+    /**
+     * Receives the metrics of every model load, null if nobody listens
+     */
+    private static volatile ModelLoadMetrics.Listener loadMetricsListener;
+
+    /**
+     * Maximum duration of the warm up of a loaded model in nanoseconds, 0 if models aren't
+     * warmed up
+     */
+    private static volatile long warmUpBudgetNanos;
+
+    /**
+     * Registry the model has been acquired from, null if the model isn't shared or has been
+     * released
+     */
+    private ModelRegistry registry;
+
     private final CountDownLatch loadModelSignal = new CountDownLatch(1);
 
-    private ImprovePredictor predictor;
+    /**
+     * The current model, replaced as a whole so that scoring never sees a predictor with the
+     * encoder of another model
+     */
+    private volatile Model model;
+
+    /**
+     * Set if the constructor was interrupted while the model was acquired from the registry,
+     * so that the loading thread releases it instead of handing it over. Guarded by this.
+     */
+    private boolean loadCancelled;
+
+    /**
+     * Feature matrix buffer reused by the scoring calls of each thread. Shared by all Scorers,
+     * so that a thread keeps one buffer however many Scorers it has used.
+     */
+    private static final ThreadLocal<FeatureBuffer> features = new ThreadLocal<FeatureBuffer>() {
+        @Override
+        protected FeatureBuffer initialValue() {
+            return new FeatureBuffer();
+        }
+    };
+
+    /**
+     * For subclasses which load the model themselves with setModel()
+     */
+    Scorer() {
+    }
 
-    private FeatureEncoder featureEncoder;
+    Scorer(Model model) {
+        this.model = model;
+    }
+
+    /**
+     * Loads a Scorer on the executor without blocking the caller, e.g. on the Android main
+     * thread or an event loop.
+     * <p>
+     * Use future.get(timeout, unit) to wait with a timeout and future.cancel(true) to give up on
+     * a load, e.g. after a timeout. Failures are thrown by future.get() as an ExecutionException
+     * with the IOException as its cause.
+     * </p>
+     * @param modelUrl URL of a plain, gzip or LZ4 frame compressed model, see Scorer(URL)
+     * @param executor runs the load, must not be a thread that waits for the result
+     * @return future of the Scorer
+     * @throws java.util.concurrent.RejectedExecutionException if executor rejects the load
+     */
+    public static Future<Scorer> load(URL modelUrl, Executor executor) {
+        return load(modelUrl, executor, null);
+    }
+
+    /**
+     * Loads a Scorer on the executor without blocking the caller and reports the result to the
+     * listener on the loading thread.
+     * @param listener receives the Scorer or the error, may be null
+     * @see #load(URL, Executor)
+     */
+    public static Future<Scorer> load(final URL modelUrl, Executor executor, LoadListener<Scorer> listener) {
+        return LoadTask.start(executor, new LoadTask.Loader<Scorer>() {
+            @Override
+            public Scorer load() throws IOException {
+                return open(modelUrl);
+            }
+        }, listener);
+    }
 
     /**
      * Initialize a Scorer instance.
-     * @param modelUrl URL of a plain or gzip compressed CoreML model resource.
+     * @param modelUrl URL of a plain, gzip or LZ4 frame compressed CoreML model resource.
      *                 https://improve.ai/model.xgb
      *                 https://improve.ai/model.xgb.gz
+     *                 https://improve.ai/model.xgb.lz4
      *                 file:///android_asset/models/model.xgb(Bundled models in assets folder)
      * @throws IOException, InterruptedException -> An error if the model cannot be loaded or if the metadata cannot be extracted.
      */
     public Scorer(URL modelUrl) throws IOException, InterruptedException {
         loadModel(modelUrl);
-        if(predictor == null) {
+        if(model == null) {
             throw new IOException("Failed to load model " + modelUrl);
         }
     }
 
+    /**
+     * Enables snapshots of loaded models. After a model is loaded, the fully initialized Scorer
+     * state (trees, feature indexes, string tables and seed) is written to the directory.
+     * Later Scorers for the same model URL map the snapshot instead of parsing the model, as
+     * long as the model's bytes haven't changed. The model itself is still read to verify that.
+     * Only single output tree models are snapshotted, other models are loaded as usual.
+     * @param directory a private cache directory, e.g. new File(context.getCacheDir(), "improveai").
+     *                  null disables snapshots, which is the default.
+     */
+    public static void setSnapshotDirectory(File directory) {
+        snapshotDirectory = directory;
+    }
+
+    /**
+     * @return directory of Scorer snapshots, null if snapshots are disabled
+     */
+    public static File getSnapshotDirectory() {
+        return snapshotDirectory;
+    }
+
+    /**
+     * Shares the models of Scorers and Rankers created from a model URL afterwards through the
+     * registry, instead of loading a copy of the model for each of them. Close them to release
+     * their models.
+     * @param registry the registry, null to load a model for each Scorer, which is the default
+     */
+    public static void setModelRegistry(ModelRegistry registry) {
+        modelRegistry = registry;
+    }
+
+    /**
+     * @return the registry models are shared through, null if they aren't shared
+     */
+    public static ModelRegistry getModelRegistry() {
+        return modelRegistry;
+    }
+
+    /**
+     * Reports the durations of the phases, the sizes and the counts of every model loaded for
+     * Scorers and Rankers afterwards, e.g. to find out where the time of a slow startup went.
+     * Models shared through a ModelRegistry are reported once, when they are loaded.
+     * @param listener called on the loading thread once a model is loaded, null to stop
+     *                 reporting, which is the default
+     */
+    public static void setLoadMetricsListener(ModelLoadMetrics.Listener listener) {
+        loadMetricsListener = listener;
+    }
+
+    /**
+     * @return the listener of model loads, null if there is none
+     */
+    public static ModelLoadMetrics.Listener getLoadMetricsListener() {
+        return loadMetricsListener;
+    }
+
+    /**
+     * Warms up every model loaded for Scorers and Rankers afterwards by scoring synthetic items
+     * built from the model's feature names, so that the first calls of score() don't run several
+     * times slower while the JIT compiles the encoding and tree walking code. The warm up runs on
+     * the loading thread before the Scorer is returned, and stops once the budget is used up or
+     * the latency of the calls stabilizes, whatever comes first.
+     * <p>
+     * Models shared through a ModelRegistry are warmed up once, when they are loaded, and
+     * refreshed models before they replace the current one.
+     * </p>
+     * @param budget maximum duration of each warm up, 0 to disable warming up, which is the
+     *               default
+     * @throws IllegalArgumentException if budget is negative
+     */
+    public static void setWarmUpBudget(long budget, TimeUnit unit) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("budget can't be negative");
+        }
+        warmUpBudgetNanos = unit.toNanos(budget);
+    }
+
+    /**
+     * @return maximum duration of the warm up of a loaded model in nanoseconds, 0 if models
+     * aren't warmed up
+     */
+    public static long getWarmUpBudgetNanos() {
+        return warmUpBudgetNanos;
+    }
+
+    /**
+     * @return metrics of the load of the current model, shared with other Scorers if the model
+     * is shared through a ModelRegistry. null if the model has been set by a subclass without
+     * recording them.
+     */
+    public ModelLoadMetrics getLoadMetrics() {
+        Model model = this.model;
+        return model == null ? null : model.loadMetrics;
+    }
+
+    /**
+     * Releases the model to the model registry, if it was acquired from one, so that it can be
+     * evicted once no other Scorer uses it. Scoring keeps working with the model, but it
+     * is no longer accounted for by the registry. Does nothing for models which aren't shared.
+     */
+    @Override
+    public void close() {
+        ModelRegistry registry;
+        synchronized (this) {
+            registry = this.registry;
+            this.registry = null;
+        }
+        if (registry != null) {
+            registry.release(model);
+        }
+    }
+
+    /**
+     * @return approximate heap bytes of the model's predictor and feature encoder, which may
+     * be shared with other Scorers, see ModelRegistry
+     */
+    public long estimateMemory() {
+        Model model = this.model;
+        return model == null ? 0 : model.estimateMemory();
+    }
+
     /**
      * Uses the model to score a list of items.
      * @param items the list of items to score.
@@ -72,37 +287,368 @@ public class Scorer {
         if(items == null || items.size() <= 0) {
             throw new IllegalArgumentException("items can't be null or empty");
         }
+        double[] scores = new double[items.size()];
+        scoreInto(items, context, noise, scores);
+        List<Double> result = new ArrayList<>(scores.length);
+        for (double score : scores) {
+            result.add(score);
+        }
+        return result;
+    }
+
+    /**
+     * Uses the model to score a list of items, without boxing the scores.
+     * @param items the list of items to score.
+     * @throws IllegalArgumentException if the items list is null or empty.
+     * @return scores of the items, scores[i] is the score of items.get(i).
+     */
+    public double[] scoreArray(List<?> items) {
+        return scoreArray(items, null);
+    }
+
+    /**
+     * Uses the model to score a list of items with the given context, without boxing the scores.
+     * @param items the list of items to score.
+     * @param context extra context info that will be used with each of the item to get its score.
+     * @throws IllegalArgumentException if the items list is null or empty.
+     * @return scores of the items, scores[i] is the score of items.get(i).
+     */
+    public double[] scoreArray(List<?> items, Object context) {
+        if(items == null || items.size() <= 0) {
+            throw new IllegalArgumentException("items can't be null or empty");
+        }
+        double[] scores = new double[items.size()];
+        scoreInto(items, context, Math.random(), scores);
+        return scores;
+    }
 
-        List<Double> result = new ArrayList<>();
-        List<FVec> encodedFeatures = featureEncoder.encodeFeatureVectors(items, context, noise);
-        for (FVec fvec : encodedFeatures) {
+    /**
+     * Uses the model to score a list of items with the given context into a caller supplied
+     * array, so that repeated calls can reuse it. The feature matrix and the rows the features
+     * are encoded in are reused by the calls of each thread, but models with more than
+     * FeatureEncoder.getSparseFeatureThreshold() features still allocate a feature vector per
+     * item, and encoding the items may allocate too, e.g. while iterating their fields.
+     * @param items the list of items to score.
+     * @param context extra context info that will be used with each of the item to get its score.
+     * @param out receives the score of items.get(i) at index i. Must have room for items.size() scores.
+     * @throws IllegalArgumentException if the items list is null or empty, or out is too small.
+     */
+    public void scoreInto(List<?> items, Object context, double[] out) {
+        scoreInto(items, context, Math.random(), out);
+    }
+
+    private void scoreInto(List<?> items, Object context, double noise, double[] out) {
+        scoreInto(model, items, context, noise, out);
+    }
+
+    void scoreInto(Model model, List<?> items, Object context, double noise, double[] out) {
+        if(items == null || items.size() <= 0) {
+            throw new IllegalArgumentException("items can't be null or empty");
+        }
+        if(out == null || out.length < items.size()) {
+            throw new IllegalArgumentException("out must have room for items.size() scores");
+        }
+
+        ImprovePredictor predictor = model.predictor;
+        FeatureEncoder featureEncoder = model.featureEncoder;
+        int count = items.size();
+        int numFeatures = featureEncoder.featureIndexes.size();
+        FeatureBuffer buffer = Scorer.features.get();
+        if (numFeatures > featureEncoder.getSparseFeatureThreshold()) {
+            // the sparse feature vectors are still allocated per item
+            List<FVec> encodedFeatures = featureEncoder.encodeFeatureVectors(items, context, noise);
+            float[] predictions = buffer.reserve(count);
+            predictor.predictBatch(encodedFeatures, predictions);
+            for (int i = 0; i < count; ++i) {
+                out[i] = predictions[i];
+            }
+        } else {
+            float[] features = buffer.reserve(count * numFeatures);
+            featureEncoder.encodeFeatureMatrix(items, context, noise, features,
+                    buffer.reserveContextRow(numFeatures), buffer.reserveItemRow(numFeatures));
+            predictor.predictBatch(features, numFeatures, count, out);
+        }
+
+        for (int i = 0; i < count; ++i) {
             // add a very small random number to randomly break ties
             double smallNoise = Math.random() * Math.pow(2, -23);
-            result.add((double) predictor.predictSingle(fvec) + smallNoise);
+            out[i] += smallNoise;
         }
-        return result;
     }
 
-    private void setModel(ImprovePredictor predictor) {
-        this.predictor = predictor;
+    Model getModel() {
+        return model;
+    }
+
+    void setModel(Model model) {
+        this.model = model;
+    }
 
-        featureEncoder = new FeatureEncoder(predictor.getModelMetadata().getModelFeatureNames(),
-                predictor.getModelMetadata().getStringTables(),
+    static FeatureEncoder newFeatureEncoder(ImprovePredictor predictor) {
+        return new FeatureEncoder(predictor.getModelMetadata().getFeatureNameArray(),
+                predictor.getModelMetadata().getStringTableArrays(),
                 predictor.getModelMetadata().getModelSeed());
     }
 
+    private static FeatureEncoder newFeatureEncoder(ImprovePredictor predictor, ModelLoadMetrics metrics) {
+        long start = System.nanoTime();
+        FeatureEncoder featureEncoder = newFeatureEncoder(predictor);
+        if (metrics != null) {
+            metrics.record(ModelLoadMetrics.Phase.BUILD_ENCODER, System.nanoTime() - start);
+        }
+        return featureEncoder;
+    }
+
+    /**
+     * Warms up a model that has just been loaded if a warm up budget is set, then finishes its
+     * metrics and reports them to the listener, if there is one
+     * @return the model
+     */
+    static Model finishLoad(Model model) {
+        ModelLoadMetrics metrics = model.loadMetrics;
+        long budgetNanos = warmUpBudgetNanos;
+        if (budgetNanos > 0) {
+            long start = System.nanoTime();
+            ScorerWarmUp.warmUp(model, budgetNanos);
+            if (metrics != null) {
+                metrics.record(ModelLoadMetrics.Phase.WARM_UP, System.nanoTime() - start);
+            }
+        }
+        if (metrics == null) {
+            return model;
+        }
+        metrics.finish();
+        IMPLog.d(Tag, "loaded model " + metrics);
+        ModelLoadMetrics.Listener listener = loadMetricsListener;
+        if (listener != null) {
+            try {
+                listener.onModelLoaded(metrics);
+            } catch (RuntimeException e) {
+                IMPLog.e(Tag, "load metrics listener failed, " + e.getMessage());
+            }
+        }
+        return model;
+    }
+
+    /**
+     * An immutable pair of a predictor and the feature encoder of its model
+     */
+    static final class Model {
+        final ImprovePredictor predictor;
+
+        final FeatureEncoder featureEncoder;
+
+        /**
+         * Metrics of the load of the model, null if they weren't recorded
+         */
+        final ModelLoadMetrics loadMetrics;
+
+        /**
+         * Creates the feature encoder of the predictor
+         * @param loadMetrics receives the time it takes and the counts of the model, may be null
+         */
+        Model(ImprovePredictor predictor, ModelLoadMetrics loadMetrics) {
+            this(predictor, newFeatureEncoder(predictor, loadMetrics), loadMetrics);
+        }
+
+        Model(ImprovePredictor predictor, FeatureEncoder featureEncoder, ModelLoadMetrics loadMetrics) {
+            this.predictor = predictor;
+            this.featureEncoder = featureEncoder;
+            this.loadMetrics = loadMetrics;
+            if (loadMetrics != null) {
+                loadMetrics.recordModel(predictor, featureEncoder);
+            }
+        }
+
+        long estimateMemory() {
+            return predictor.estimateMemory() + featureEncoder.estimateMemory();
+        }
+    }
+
+    private static class FeatureBuffer {
+        /**
+         * Larger matrices are allocated per call instead of being kept by the thread. 64K
+         * floats hold e.g. 256 items of 256 features.
+         */
+        private static final int MAX_REUSED_SIZE = 1 << 16;
+
+        private float[] values = new float[0];
+
+        /**
+         * Rows the context and the items are encoded into before they are copied into values
+         */
+        private double[] contextRow = new double[0];
+
+        private double[] itemRow = new double[0];
+
+        float[] reserve(int size) {
+            if (size > MAX_REUSED_SIZE) {
+                return new float[size];
+            }
+            if (values.length < size) {
+                values = new float[size];
+            }
+            return values;
+        }
+
+        double[] reserveContextRow(int size) {
+            if (size > MAX_REUSED_SIZE) {
+                return new double[size];
+            }
+            if (contextRow.length < size) {
+                contextRow = new double[size];
+            }
+            return contextRow;
+        }
+
+        double[] reserveItemRow(int size) {
+            if (size > MAX_REUSED_SIZE) {
+                return new double[size];
+            }
+            if (itemRow.length < size) {
+                itemRow = new double[size];
+            }
+            return itemRow;
+        }
+    }
+
+    /**
+     * Synchronously loads a Scorer on the calling thread, with a model of the model registry
+     * if there is one
+     */
+    static Scorer open(URL modelUrl) throws IOException {
+        ModelRegistry registry = modelRegistry;
+        if (registry == null) {
+            return new Scorer(readModel(modelUrl));
+        }
+        Scorer scorer = new Scorer(registry.acquire(modelUrl));
+        scorer.registry = registry;
+        return scorer;
+    }
+
+    /**
+     * Synchronously loads a model on the calling thread
+     */
+    static Model readModel(URL modelUrl) throws IOException {
+        ModelLoadMetrics metrics = new ModelLoadMetrics(modelUrl);
+        File snapshotDirectory = Scorer.snapshotDirectory;
+        if (snapshotDirectory != null) {
+            return finishLoad(ScorerSnapshot.load(modelUrl, snapshotDirectory, metrics));
+        }
+        return finishLoad(new Model(ModelDownloader.load(modelUrl, metrics), metrics));
+    }
+
     private void loadModel(URL modelUrl) throws InterruptedException {
-        ModelDownloader.download(modelUrl, (predictor, e) -> {
+        if (ModelDownloader.isLoadingThread()) {
+            // e.g. a Scorer created by a load listener, the loading threads may all be waiting
+            // for loads queued behind this one
+            loadModelInline(modelUrl);
+            return;
+        }
+
+        ModelRegistry registry = modelRegistry;
+        if (registry != null) {
+            loadModel(modelUrl, registry);
+            return;
+        }
+
+        File snapshotDirectory = Scorer.snapshotDirectory;
+        if (snapshotDirectory != null) {
+            loadModel(modelUrl, snapshotDirectory);
+            return;
+        }
+
+        ModelDownloader.download(modelUrl, (ImprovePredictor predictor, ModelLoadMetrics metrics, IOException e) -> {
             if(e != null) {
                 IMPLog.e(Tag, "Failed to load model, " + e.getMessage());
                 loadModelSignal.countDown();
                 return;
             }
 
-            setModel(predictor);
+            setModel(finishLoad(new Model(predictor, metrics)));
             loadModelSignal.countDown();
 
         });
         loadModelSignal.await();
     }
+
+    /**
+     * Loads the model on the calling thread like open()
+     */
+    private void loadModelInline(URL modelUrl) {
+        try {
+            ModelRegistry registry = modelRegistry;
+            if (registry != null) {
+                Model model = registry.acquire(modelUrl);
+                synchronized (this) {
+                    this.registry = registry;
+                }
+                setModel(model);
+            } else {
+                setModel(readModel(modelUrl));
+            }
+        } catch (Throwable e) {
+            IMPLog.e(Tag, "Failed to load model, " + e.getMessage());
+        }
+    }
+
+    private void loadModel(URL modelUrl, ModelRegistry registry) throws InterruptedException {
+        ModelDownloader.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Model model = registry.acquire(modelUrl);
+                    boolean cancelled;
+                    synchronized (Scorer.this) {
+                        cancelled = loadCancelled;
+                        if (!cancelled) {
+                            Scorer.this.registry = registry;
+                            setModel(model);
+                        }
+                    }
+                    if (cancelled) {
+                        // nobody will close this Scorer
+                        registry.release(model);
+                    }
+                } catch (Throwable e) {
+                    IMPLog.e(Tag, "Failed to load model, " + e.getMessage());
+                } finally {
+                    loadModelSignal.countDown();
+                }
+            }
+        });
+        try {
+            loadModelSignal.await();
+        } catch (InterruptedException e) {
+            ModelRegistry acquired;
+            synchronized (this) {
+                loadCancelled = true;
+                // set if the loading thread got the model before the interruption
+                acquired = this.registry;
+                this.registry = null;
+            }
+            if (acquired != null) {
+                acquired.release(model);
+            }
+            throw e;
+        }
+    }
+
+    private void loadModel(URL modelUrl, File snapshotDirectory) throws InterruptedException {
+        // loads on the model loading threads like ModelDownloader, remote models are downloaded
+        ModelDownloader.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ModelLoadMetrics metrics = new ModelLoadMetrics(modelUrl);
+                    setModel(finishLoad(ScorerSnapshot.load(modelUrl, snapshotDirectory, metrics)));
+                } catch (Throwable e) {
+                    IMPLog.e(Tag, "Failed to load model, " + e.getMessage());
+                } finally {
+                    loadModelSignal.countDown();
+                }
+            }
+        });
+        loadModelSignal.await();
+    }
 }
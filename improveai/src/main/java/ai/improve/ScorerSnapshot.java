@@ -0,0 +1,235 @@
+package ai.improve;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import ai.improve.constants.BuildProperties;
+import ai.improve.downloader.ModelDownloader;
+import ai.improve.downloader.ModelLoadMetrics;
+import ai.improve.encoder.FeatureEncoder;
+import ai.improve.encoder.XXHash3;
+import ai.improve.log.IMPLog;
+import ai.improve.util.SnapshotUtils;
+import ai.improve.xgbpredictor.ImprovePredictor;
+
+/**
+ * Snapshots of the fully initialized state of a Scorer: the flattened trees and metadata of the
+ * predictor and the feature encoder with its built string tables.
+ *
+ * A snapshot file is kept per model url. It records a checksum of the model resource it was built
+ * from, so a changed model is loaded and snapshotted again instead of using a stale snapshot.
+ * The header also records a checksum of the rest of the snapshot, which is verified before
+ * anything is parsed, so that a corrupt snapshot is rebuilt from the model like a stale one.
+ */
+final class ScorerSnapshot {
+    private static final String Tag = "ScorerSnapshot";
+
+    private static final int MAGIC = 0x494D5053; // "IMPS"
+
+    /**
+     * Bumped whenever the snapshot layout changes
+     */
+    private static final int FORMAT_VERSION = 4;
+
+    private static final int HASH_CHUNK_SIZE = 1 << 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ScorerSnapshot() {
+    }
+
+    /**
+     * Reads the model resource and restores the scorer state from its snapshot if the snapshot
+     * was built from the same bytes. Otherwise parses the model and writes a new snapshot.
+     * Failing to read or write a snapshot only falls back to parsing the model.
+     * @param modelUrl url of the model
+     * @param directory directory of the snapshot files
+     * @throws IOException If the model can't be loaded
+     */
+    static Scorer.Model load(URL modelUrl, File directory) throws IOException {
+        return load(modelUrl, directory, new ModelLoadMetrics(modelUrl));
+    }
+
+    /**
+     * Like load(URL, File), recording the phases of the load. Hashing the model resource counts
+     * as reading the snapshot.
+     */
+    static Scorer.Model load(URL modelUrl, File directory, ModelLoadMetrics metrics) throws IOException {
+        ByteBuffer source = ModelDownloader.readModelSource(modelUrl, metrics);
+        long start = System.nanoTime();
+        long sourceHash = contentHash(source);
+        metrics.record(ModelLoadMetrics.Phase.READ_SNAPSHOT, System.nanoTime() - start);
+        return load(modelUrl, source, sourceHash, directory, metrics);
+    }
+
+    /**
+     * Like load(URL, File), for a model resource that has already been read
+     * @param source model resource read by ModelDownloader.readModelSource()
+     * @param sourceHash contentHash() of source
+     * @param metrics receives the phases of the load
+     */
+    static Scorer.Model load(URL modelUrl, ByteBuffer source, long sourceHash, File directory,
+                             ModelLoadMetrics metrics) throws IOException {
+        File file = snapshotFile(directory, modelUrl);
+
+        if (file.exists()) {
+            long start = System.nanoTime();
+            try {
+                Scorer.Model model = read(file, sourceHash, source.remaining(), metrics);
+                if (model != null) {
+                    metrics.record(ModelLoadMetrics.Phase.READ_SNAPSHOT, System.nanoTime() - start);
+                    metrics.setFromSnapshot(true);
+                    IMPLog.d(Tag, "loaded snapshot of " + modelUrl);
+                    return model;
+                }
+            } catch (IOException | RuntimeException e) {
+                IMPLog.w(Tag, "ignoring unreadable snapshot " + file + ", " + e.getMessage());
+            }
+            metrics.record(ModelLoadMetrics.Phase.READ_SNAPSHOT, System.nanoTime() - start);
+        }
+
+        Scorer.Model model = new Scorer.Model(ModelDownloader.loadModel(modelUrl, source, metrics), metrics);
+        if (model.predictor.canWriteSnapshot()) {
+            long start = System.nanoTime();
+            try {
+                write(model, file, sourceHash, source.remaining());
+            } catch (IOException e) {
+                IMPLog.w(Tag, "failed to write snapshot " + file + ", " + e.getMessage());
+            }
+            metrics.record(ModelLoadMetrics.Phase.WRITE_SNAPSHOT, System.nanoTime() - start);
+        }
+        return model;
+    }
+
+    /**
+     * @return snapshot of the model if it was built from a source with the given hash and length,
+     * null if the snapshot is stale, corrupt or was written by another SDK version
+     * @throws IOException If the snapshot can't be read or is malformed
+     */
+    static Scorer.Model read(File file, long sourceHash, long sourceLength) throws IOException {
+        return read(file, sourceHash, sourceLength, null);
+    }
+
+    /**
+     * Like read(File, long, long), recording the counts of the restored model
+     * @param metrics may be null
+     */
+    static Scorer.Model read(File file, long sourceHash, long sourceLength, ModelLoadMetrics metrics) throws IOException {
+        ByteBuffer in = ModelDownloader.mapFile(file);
+        if (SnapshotUtils.readInt(in) != MAGIC) {
+            throw new IOException("not a snapshot");
+        }
+        if (SnapshotUtils.readInt(in) != FORMAT_VERSION
+                || !BuildProperties.getSDKVersion().equals(SnapshotUtils.readString(in))
+                || SnapshotUtils.readLong(in) != sourceHash
+                || SnapshotUtils.readLong(in) != sourceLength) {
+            return null;
+        }
+        long checksum = SnapshotUtils.readLong(in);
+        if (contentHash(in) != checksum) {
+            IMPLog.w(Tag, "snapshot " + file + " is corrupt");
+            return null;
+        }
+        ImprovePredictor predictor = ImprovePredictor.readSnapshot(in);
+        FeatureEncoder featureEncoder = FeatureEncoder.readSnapshot(in);
+        if (SnapshotUtils.readInt(in) != MAGIC) {
+            throw new IOException("snapshot is corrupt");
+        }
+        return new Scorer.Model(predictor, featureEncoder, metrics);
+    }
+
+    /**
+     * Writes the snapshot to a temporary file first and then renames it, so that readers never
+     * see a partially written snapshot
+     */
+    static void write(Scorer.Model model, File file, long sourceHash, long sourceLength) throws IOException {
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can't create directory " + directory);
+        }
+        File tmpFile = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            FileOutputStream fileOut = new FileOutputStream(tmpFile);
+            // the checksum of the body is filled in once the body is written
+            long checksumOffset;
+            CRC32 crc32 = new CRC32();
+            Adler32 adler32 = new Adler32();
+            try {
+                DataOutputStream header = new DataOutputStream(new BufferedOutputStream(fileOut, 1024));
+                header.writeInt(MAGIC);
+                header.writeInt(FORMAT_VERSION);
+                SnapshotUtils.writeString(header, BuildProperties.getSDKVersion());
+                header.writeLong(sourceHash);
+                header.writeLong(sourceLength);
+                checksumOffset = header.size();
+                header.writeLong(0);
+                header.flush();
+
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new CheckedOutputStream(new CheckedOutputStream(fileOut, crc32), adler32), 65536));
+                model.predictor.writeSnapshot(out);
+                model.featureEncoder.writeSnapshot(out);
+                out.writeInt(MAGIC);
+                out.flush();
+            } finally {
+                fileOut.close();
+            }
+            RandomAccessFile checksumOut = new RandomAccessFile(tmpFile, "rw");
+            try {
+                checksumOut.seek(checksumOffset);
+                checksumOut.writeLong((crc32.getValue() << 32) | adler32.getValue());
+            } finally {
+                checksumOut.close();
+            }
+            // renameTo() doesn't replace an existing file on every platform
+            if (!tmpFile.renameTo(file) && !(file.delete() && tmpFile.renameTo(file))) {
+                throw new IOException("can't rename " + tmpFile + " to " + file);
+            }
+        } finally {
+            if (tmpFile.exists()) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    static File snapshotFile(File directory, URL modelUrl) {
+        long urlHash = XXHash3.hash64(modelUrl.toString().getBytes(UTF_8), 0);
+        return new File(directory, "scorer-" + Long.toHexString(urlHash) + ".snapshot");
+    }
+
+    /**
+     * Checksum of the bytes from the buffer's position to its limit, the CRC32 in the high and
+     * the Adler32 in the low 32 bits. Both are computed natively, which matters at startup when
+     * hashing tens of megabytes of model in Java code that isn't compiled yet. It detects
+     * changed models and corrupt snapshots, it isn't meant to resist deliberate collisions.
+     * The buffer's position is left untouched.
+     */
+    static long contentHash(ByteBuffer source) {
+        ByteBuffer buffer = source.duplicate();
+        CRC32 crc32 = new CRC32();
+        Adler32 adler32 = new Adler32();
+        if (buffer.hasArray()) {
+            crc32.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            adler32.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            byte[] chunk = new byte[HASH_CHUNK_SIZE];
+            while (buffer.hasRemaining()) {
+                int length = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, length);
+                crc32.update(chunk, 0, length);
+                adler32.update(chunk, 0, length);
+            }
+        }
+        return (crc32.getValue() << 32) | adler32.getValue();
+    }
+}
@@ -0,0 +1,256 @@
+package ai.improve;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import ai.improve.encoder.FeatureEncoder;
+import ai.improve.log.IMPLog;
+import ai.improve.xgbpredictor.ModelMetadata;
+
+/**
+ * Scores synthetic items with a freshly loaded model until the JIT has compiled the encoder and
+ * tree walking code, so that the first requests after a load don't pay for interpreted code,
+ * class loading.
+ * <p>
+ * The items are built from the model's feature names: item features go into the items, context
+ * features into the context, and nested names such as "item.a.b" into nested maps. Features get
+ * numbers, and some are left out so that missing values are walked as well. String tables are
+ * only built on the first string of their feature, so strings are only sent to features whose
+ * table has already been built, or else to the feature with the smallest table, which is enough
+ * to load and compile the string lookups without building the tables of features the app never
+ * sends strings for.
+ * </p>
+ * <p>
+ * Scoring runs through the same encode and predict calls as Scorer.score(). It stops once the
+ * time budget is used up, or once the median latency of a window of calls is no longer
+ * noticeably lower than that of the window before.
+ * </p>
+ */
+final class ScorerWarmUp {
+    public static final String Tag = "ScorerWarmUp";
+
+    /**
+     * Items scored per call, a typical number of candidates
+     */
+    static final int ITEMS_PER_CALL = 16;
+
+    /**
+     * Calls whose median latency is compared with that of the window before
+     */
+    static final int WINDOW = 32;
+
+    /**
+     * Windows scored at least, so that the latency isn't taken as stable before the JIT compiled
+     * the hot loops with its optimizing compiler
+     */
+    static final int MIN_WINDOWS = 3;
+
+    /**
+     * Latency counts as stable once a window's median is at least this fraction of the previous
+     * window's median
+     */
+    static final double STABLE_RATIO = 0.9;
+
+    /**
+     * Upper bound of calls, in case the latency keeps fluctuating on a busy device
+     */
+    static final int MAX_CALLS = 20000;
+
+    /**
+     * Distinct synthetic items and contexts the calls pick from
+     */
+    private static final int ITEM_POOL_SIZE = 256;
+
+    private static final int CONTEXT_POOL_SIZE = 8;
+
+    /**
+     * Chance of a feature being left out of a synthetic item or context
+     */
+    private static final double MISSING_RATE = 0.2;
+
+    private ScorerWarmUp() {
+    }
+
+    /**
+     * Scores synthetic items with the model on the calling thread
+     * @param budgetNanos maximum duration of the warm up, at least one call is scored
+     * @return number of scoring calls
+     */
+    static int warmUp(Scorer.Model model, long budgetNanos) {
+        long start = System.nanoTime();
+        ModelMetadata metadata = model.predictor.getModelMetadata();
+        Random random = new Random(metadata.getModelSeed());
+        Set<String> stringFeatures = stringFeatures(metadata.getStringTableArrays(), model.featureEncoder);
+        Inputs inputs = new Inputs(metadata.getFeatureNameArray(), stringFeatures, random);
+        List<Object> items = inputs.items(ITEM_POOL_SIZE);
+        List<Object> contexts = new ArrayList<>(CONTEXT_POOL_SIZE);
+        for (int i = 0; i < CONTEXT_POOL_SIZE; ++i) {
+            contexts.add(inputs.context());
+        }
+
+        Scorer scorer = new Scorer(model);
+        double[] out = new double[ITEMS_PER_CALL];
+        long[] window = new long[WINDOW];
+        long previousMedian = -1;
+        int calls = 0;
+        while (calls < MAX_CALLS) {
+            int from = random.nextInt(items.size() - ITEMS_PER_CALL + 1);
+            List<Object> batch = items.subList(from, from + ITEMS_PER_CALL);
+            Object context = contexts.get(random.nextInt(contexts.size()));
+            long callStart = System.nanoTime();
+            try {
+                scorer.scoreInto(model, batch, context, random.nextDouble(), out);
+            } catch (RuntimeException e) {
+                // warming up is only an optimization, scoring would fail with real items too
+                IMPLog.w(Tag, "Failed to warm up model, " + e.getMessage());
+                return calls + 1;
+            }
+            long now = System.nanoTime();
+            window[calls % WINDOW] = now - callStart;
+            calls++;
+
+            if (now - start >= budgetNanos) {
+                break;
+            }
+            if (calls % WINDOW == 0) {
+                long median = median(window);
+                if (calls >= MIN_WINDOWS * WINDOW && previousMedian >= 0
+                        && median >= previousMedian * STABLE_RATIO) {
+                    IMPLog.d(Tag, "latency stable at " + median / 1000 + " us per call");
+                    break;
+                }
+                previousMedian = median;
+            }
+        }
+        IMPLog.d(Tag, "warmed up model with " + calls + " calls in " + (System.nanoTime() - start) / 1000000 + " ms");
+        return calls;
+    }
+
+    /**
+     * @return the features with a string table that has already been built, or else the feature
+     * with the smallest string table, empty if the model has no string tables
+     */
+    static Set<String> stringFeatures(Map<String, long[]> stringTables, FeatureEncoder featureEncoder) {
+        Set<String> features = new HashSet<>();
+        String smallest = null;
+        int smallestSize = Integer.MAX_VALUE;
+        for (Map.Entry<String, long[]> stringTable : stringTables.entrySet()) {
+            String featureName = stringTable.getKey();
+            int size = stringTable.getValue().length;
+            if (size == 0) {
+                continue;
+            }
+            if (featureEncoder.isStringTableMaterialized(featureName)) {
+                features.add(featureName);
+            } else if (size < smallestSize) {
+                smallest = featureName;
+                smallestSize = size;
+            }
+        }
+        if (features.isEmpty() && smallest != null) {
+            features.add(smallest);
+        }
+        return features;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /**
+     * Builds synthetic items and contexts from the feature names of a model
+     */
+    static final class Inputs {
+        private final Random random;
+
+        /**
+         * Paths of the item and context features, null if the model has none
+         */
+        private final Path item;
+
+        private final Path context;
+
+        /**
+         * @param stringFeatures features that get string values about as often as numbers
+         */
+        Inputs(String[] featureNames, Set<String> stringFeatures, Random random) {
+            this.random = random;
+            Path root = new Path();
+            for (String featureName : featureNames) {
+                root.insert(featureName.split("\\.", -1), 0, stringFeatures.contains(featureName));
+            }
+            this.item = root.children.get(FeatureEncoder.ITEM_FEATURE_KEY);
+            this.context = root.children.get(FeatureEncoder.CONTEXT_FEATURE_KEY);
+        }
+
+        List<Object> items(int count) {
+            List<Object> items = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                items.add(item != null ? item.value(random) : random.nextDouble());
+            }
+            return items;
+        }
+
+        /**
+         * @return a synthetic context, null if the model has no context features
+         */
+        Object context() {
+            return context != null ? context.value(random) : null;
+        }
+    }
+
+    /**
+     * A node of the feature name paths
+     */
+    private static final class Path {
+        final Map<String, Path> children = new HashMap<>();
+
+        /**
+         * Whether the path up to this node is a feature itself
+         */
+        boolean feature;
+
+        boolean string;
+
+        void insert(String[] segments, int index, boolean string) {
+            if (index == segments.length) {
+                this.feature = true;
+                this.string = string;
+                return;
+            }
+            Path child = children.get(segments[index]);
+            if (child == null) {
+                child = new Path();
+                children.put(segments[index], child);
+            }
+            child.insert(segments, index + 1, string);
+        }
+
+        Object value(Random random) {
+            // a path that is a feature and has features below it takes either form
+            if (feature && (children.isEmpty() || random.nextBoolean())) {
+                if (string) {
+                    return "warm up " + random.nextInt(1000);
+                }
+                // values of several magnitudes, so that both sides of the splits are walked
+                return random.nextGaussian() * Math.pow(10, random.nextInt(4));
+            }
+            Map<String, Object> map = new LinkedHashMap<>();
+            for (Map.Entry<String, Path> child : children.entrySet()) {
+                if (random.nextDouble() >= MISSING_RATE) {
+                    map.put(child.getKey(), child.getValue().value(random));
+                }
+            }
+            return map;
+        }
+    }
+}
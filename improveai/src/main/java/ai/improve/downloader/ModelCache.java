@@ -0,0 +1,663 @@
+package ai.improve.downloader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import ai.improve.encoder.XXHash3;
+import ai.improve.log.IMPLog;
+
+/**
+ * An on-disk cache of remote model files keyed by URL.
+ *
+ * Models are revalidated on every fetch with a conditional request (If-None-Match /
+ * If-Modified-Since from the ETag / Last-Modified of the cached response), so an unchanged model
+ * is answered with 304 Not Modified and read from disk instead of being downloaded again.
+ * Files are downloaded to a partial file and renamed into place once complete, so a failed
+ * download never leaves a partial model behind. If the server sends a strong ETag or a
+ * Last-Modified header, an interrupted download is resumed where it stopped with a Range
+ * request, up to MAX_RESUMES times within a fetch and otherwise on the next fetch of the url.
+ * The request is conditional on the validator with If-Range, and the partial response must
+ * carry the same validator, so that the rest of a changed model is never appended to the start
+ * of the old one, even by servers that ignore If-Range.
+ * Downloads are verified with their length. Only if the server sends the X-Model-XXH3 header,
+ * with the XXH3 64 bit hash of the model file as 16 hex digits, are they verified with the
+ * hash as well, computed while the file is streamed. Without the header, corruption that
+ * keeps the length is not detected.
+ * The least recently used models and partial files are evicted once they exceed maxSize bytes.
+ *
+ * Fetches of different urls run concurrently, only fetches of the same url wait for each other.
+ */
+public class ModelCache {
+    public static final String Tag = "ModelCache";
+
+    public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+    private static final int CONNECT_TIMEOUT = 15000;
+
+    private static final int READ_TIMEOUT = 15000;
+
+    private static final String MODEL_SUFFIX = ".model";
+
+    private static final String META_SUFFIX = ".meta";
+
+    private static final String PARTIAL_SUFFIX = ".partial";
+
+    private static final String PARTIAL_META_SUFFIX = ".partial.meta";
+
+    /**
+     * Response header with the XXH3 64 bit hash (seed 0) of the model file in hex. Models
+     * served without it are only verified by their length.
+     */
+    public static final String CHECKSUM_HEADER = "X-Model-XXH3";
+
+    /**
+     * Times an interrupted download is resumed within one fetch, as long as each attempt
+     * makes progress
+     */
+    static final int MAX_RESUMES = 3;
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private static final String KEY_URL = "url";
+
+    private static final String KEY_ETAG = "etag";
+
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+
+    /**
+     * ETag or Last-Modified of the response a partial file was started from, for If-Range
+     */
+    private static final String KEY_VALIDATOR = "validator";
+
+    private static final String KEY_CHECKSUM = "checksum";
+
+    private static final String KEY_LENGTH = "length";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+
+    private final long maxSize;
+
+    /**
+     * Locks of the urls being fetched by key, guarded by this
+     */
+    private final Map<String, KeyLock> keyLocks = new HashMap<>();
+
+    /**
+     * @param directory directory of the cached models, created on first use
+     * @param maxSize maximum total size of the cached models in bytes. The most recently fetched
+     *                model is kept even if it alone is larger.
+     */
+    public ModelCache(File directory, long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize must be non-negative");
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns a local file with the model bytes as served, i.e. still gzip compressed for .gz
+     * urls. The cached file is revalidated with the server and downloaded again if it changed.
+     * If revalidating fails, e.g. the server can't be reached, the cached file is returned as is.
+     * Must not be called on the Android main thread.
+     * @param url http(s) url of the model
+     * @throws IOException If the model can't be downloaded and isn't cached
+     */
+    public File fetch(URL url) throws IOException {
+        return fetch(url, null);
+    }
+
+    /**
+     * Like fetch(URL), counting the downloaded bytes in the metrics
+     * @param metrics may be null
+     */
+    File fetch(URL url, ModelLoadMetrics metrics) throws IOException {
+        String key = keyOf(url);
+        KeyLock keyLock = lock(key);
+        try {
+            synchronized (keyLock) {
+                return fetch(url, key, metrics);
+            }
+        } finally {
+            unlock(key, keyLock);
+        }
+    }
+
+    /**
+     * Fetches the url while holding the lock of its key
+     */
+    private File fetch(URL url, String key, ModelLoadMetrics metrics) throws IOException {
+        File modelFile = new File(directory, key + MODEL_SUFFIX);
+        File metaFile = new File(directory, key + META_SUFFIX);
+
+        Properties meta = null;
+        if (modelFile.exists()) {
+            meta = readMeta(metaFile);
+            if (meta != null && !url.toString().equals(meta.getProperty(KEY_URL))) {
+                meta = null;
+            }
+        }
+
+        File partialFile = new File(directory, key + PARTIAL_SUFFIX);
+        File partialMetaFile = new File(directory, key + PARTIAL_META_SUFFIX);
+        try {
+            for (int resumes = 0; ; ++resumes) {
+                long before = partialFile.length();
+                try {
+                    return download(url, meta, modelFile, metaFile, partialFile, partialMetaFile, metrics);
+                } catch (InterruptedDownloadException e) {
+                    if (resumes >= MAX_RESUMES || partialFile.length() <= before) {
+                        throw e;
+                    }
+                    IMPLog.w(Tag, e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            if (partialFile.exists()) {
+                // a partial file kept to resume counts towards maxSize as well
+                evict();
+            }
+            if (meta != null) {
+                IMPLog.w(Tag, "using cached model, failed to revalidate " + url + ", " + e.getMessage());
+                touch(modelFile);
+                return modelFile;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Revalidates the cached model or downloads the model, resuming the partial file if there
+     * is one
+     * @param meta metadata of the cached model, null if it isn't cached
+     * @throws InterruptedDownloadException If the download broke off and can be resumed
+     */
+    private File download(URL url, Properties meta, File modelFile, File metaFile, File partialFile,
+                          File partialMetaFile, ModelLoadMetrics metrics) throws IOException {
+        String key = keyOf(url);
+        Properties partialMeta = readPartialMeta(url, partialFile, partialMetaFile);
+        long offset = partialMeta != null ? partialFile.length() : 0;
+
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            if (meta != null) {
+                String etag = meta.getProperty(KEY_ETAG);
+                String lastModified = meta.getProperty(KEY_LAST_MODIFIED);
+                if (etag != null) {
+                    connection.setRequestProperty("If-None-Match", etag);
+                }
+                if (lastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", lastModified);
+                }
+            }
+            if (offset > 0) {
+                // the rest of the same version, or all of a changed model
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+                connection.setRequestProperty("If-Range", partialMeta.getProperty(KEY_VALIDATOR));
+                // ranges count bytes as stored, not as transparently decompressed
+                connection.setRequestProperty("Accept-Encoding", "identity");
+            }
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && meta != null) {
+                IMPLog.d(Tag, "model not modified, " + url);
+                touch(modelFile);
+                return modelFile;
+            }
+            if (responseCode == HTTP_RANGE_NOT_SATISFIABLE && offset > 0) {
+                // e.g. the partial file is already as long as the model, it starts over
+                connection.disconnect();
+                connection = null;
+                deletePartial(partialFile, partialMetaFile);
+                return download(url, meta, modelFile, metaFile, partialFile, partialMetaFile, metrics);
+            }
+
+            long length;
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL && offset > 0) {
+                long[] range = parseContentRange(connection.getHeaderField("Content-Range"));
+                if (range == null || range[0] != offset) {
+                    deletePartial(partialFile, partialMetaFile);
+                    throw new IOException("Unexpected Content-Range " + connection.getHeaderField("Content-Range") + " for " + url);
+                }
+                if (!matchesValidator(connection, partialMeta.getProperty(KEY_VALIDATOR))) {
+                    // the server ignored If-Range, the range may be of a changed model
+                    IMPLog.w(Tag, "partial response of " + url + " doesn't match the partial file, starting over");
+                    connection.disconnect();
+                    connection = null;
+                    deletePartial(partialFile, partialMetaFile);
+                    return download(url, meta, modelFile, metaFile, partialFile, partialMetaFile, metrics);
+                }
+                length = range[1] >= 0 ? range[1] : Long.parseLong(partialMeta.getProperty(KEY_LENGTH, "-1"));
+                IMPLog.d(Tag, "resuming download of " + url + " at " + offset);
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                // a new download, e.g. the model changed since the partial file was started
+                offset = 0;
+                // -1 if unknown, e.g. a chunked or transparently decompressed response
+                length = connection.getContentLength();
+                partialMeta = newPartialMeta(url, connection, length);
+                ensureDirectory();
+                if (partialMeta != null) {
+                    writeMeta(partialMeta, partialMetaFile, key);
+                } else {
+                    // can't be resumed without a validator
+                    partialMetaFile.delete();
+                }
+            } else {
+                throw new IOException("Failed to download model " + url + ", HTTP " + responseCode);
+            }
+
+            XXHash3.Streaming checksum = new XXHash3.Streaming(0);
+            if (offset > 0) {
+                hashFile(partialFile, checksum);
+            }
+            long transferred;
+            InputStream inputStream = connection.getInputStream();
+            try {
+                transferred = copy(inputStream, partialFile, offset > 0, checksum);
+            } catch (IOException e) {
+                if (partialMeta == null) {
+                    deletePartial(partialFile, partialMetaFile);
+                    throw e;
+                }
+                throw new InterruptedDownloadException("Interrupted download " + url + ", " + e.getMessage());
+            } finally {
+                inputStream.close();
+                if (metrics != null) {
+                    metrics.addBytesTransferred(partialFile.length() - offset);
+                }
+            }
+
+            long total = offset + transferred;
+            if (length >= 0 && total != length) {
+                if (partialMeta != null && total < length) {
+                    throw new InterruptedDownloadException("Truncated model download " + url + ", " + total + " of " + length + " bytes");
+                }
+                deletePartial(partialFile, partialMetaFile);
+                throw new IOException("Truncated model download " + url + ", " + total + " of " + length + " bytes");
+            }
+            String expected = partialMeta != null ? partialMeta.getProperty(KEY_CHECKSUM) : connection.getHeaderField(CHECKSUM_HEADER);
+            try {
+                verifyChecksum(url, expected, checksum);
+            } catch (IOException e) {
+                deletePartial(partialFile, partialMetaFile);
+                throw e;
+            }
+
+            // the stale metadata goes first, so a crash can't pair it with the new model
+            metaFile.delete();
+            rename(partialFile, modelFile);
+            partialMetaFile.delete();
+
+            Properties newMeta = new Properties();
+            newMeta.setProperty(KEY_URL, url.toString());
+            if (connection.getHeaderField("ETag") != null) {
+                newMeta.setProperty(KEY_ETAG, connection.getHeaderField("ETag"));
+            }
+            if (connection.getHeaderField("Last-Modified") != null) {
+                newMeta.setProperty(KEY_LAST_MODIFIED, connection.getHeaderField("Last-Modified"));
+            }
+            writeMeta(newMeta, metaFile, key);
+            IMPLog.d(Tag, "cached model " + url + ", " + modelFile.length() + " bytes");
+
+            evict();
+            return modelFile;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Throws an IOException if the server sent a checksum that doesn't match the one computed
+     * while downloading
+     * @param expected the X-Model-XXH3 header, null if the server didn't send one
+     */
+    static void verifyChecksum(URL url, String expected, XXHash3.Streaming checksum) throws IOException {
+        if (expected == null) {
+            return;
+        }
+        long actual = checksum.digest();
+        try {
+            if (parseChecksum(expected) == actual) {
+                return;
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid " + CHECKSUM_HEADER + " " + expected + " for " + url);
+        }
+        throw new IOException("Checksum mismatch for " + url + ", expected " + expected.trim()
+                + ", got " + String.format("%016x", actual));
+    }
+
+    private static long parseChecksum(String checksum) {
+        String hex = checksum.trim();
+        if (hex.length() != 16) {
+            throw new NumberFormatException(hex);
+        }
+        return (Long.parseLong(hex.substring(0, 8), 16) << 32) | Long.parseLong(hex.substring(8), 16);
+    }
+
+    /**
+     * @return start and total length of "bytes start-end/total", total -1 if unknown, null if
+     * malformed
+     */
+    static long[] parseContentRange(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return null;
+        }
+        int dash = contentRange.indexOf('-');
+        int slash = contentRange.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return null;
+        }
+        try {
+            long start = Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+            String total = contentRange.substring(slash + 1).trim();
+            return new long[]{start, "*".equals(total) ? -1 : Long.parseLong(total)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the response has the ETag or Last-Modified the partial file was started
+     * with
+     */
+    private static boolean matchesValidator(HttpURLConnection connection, String validator) {
+        return validator.equals(connection.getHeaderField("ETag"))
+                || validator.equals(connection.getHeaderField("Last-Modified"));
+    }
+
+    /**
+     * @return metadata to resume a download started with the response, null if it can't be
+     * resumed because the response has no strong validator
+     */
+    private static Properties newPartialMeta(URL url, HttpURLConnection connection, long length) {
+        String validator = connection.getHeaderField("ETag");
+        if (validator == null || validator.startsWith("W/")) {
+            // weak ETags can't be used with If-Range
+            validator = connection.getHeaderField("Last-Modified");
+        }
+        if (validator == null) {
+            return null;
+        }
+        Properties partialMeta = new Properties();
+        partialMeta.setProperty(KEY_URL, url.toString());
+        partialMeta.setProperty(KEY_VALIDATOR, validator);
+        partialMeta.setProperty(KEY_LENGTH, Long.toString(length));
+        String checksum = connection.getHeaderField(CHECKSUM_HEADER);
+        if (checksum != null) {
+            partialMeta.setProperty(KEY_CHECKSUM, checksum);
+        }
+        return partialMeta;
+    }
+
+    /**
+     * @return metadata of the partial file of the url, null if there is none or it can't be
+     * resumed, in which case the partial file is deleted
+     */
+    private static Properties readPartialMeta(URL url, File partialFile, File partialMetaFile) {
+        if (!partialFile.exists()) {
+            partialMetaFile.delete();
+            return null;
+        }
+        Properties partialMeta = readMeta(partialMetaFile);
+        if (partialMeta == null || !url.toString().equals(partialMeta.getProperty(KEY_URL))
+                || partialMeta.getProperty(KEY_VALIDATOR) == null) {
+            deletePartial(partialFile, partialMetaFile);
+            return null;
+        }
+        return partialMeta;
+    }
+
+    private static void deletePartial(File partialFile, File partialMetaFile) {
+        partialMetaFile.delete();
+        partialFile.delete();
+    }
+
+    private synchronized KeyLock lock(String key) {
+        KeyLock keyLock = keyLocks.get(key);
+        if (keyLock == null) {
+            keyLock = new KeyLock();
+            keyLocks.put(key, keyLock);
+        }
+        keyLock.users++;
+        return keyLock;
+    }
+
+    private synchronized void unlock(String key, KeyLock keyLock) {
+        if (--keyLock.users == 0) {
+            keyLocks.remove(key);
+        }
+    }
+
+    /**
+     * Serializes the fetches of a url. Removed once no fetch uses it, so that the locks don't
+     * pile up.
+     */
+    private static final class KeyLock {
+        /**
+         * Fetches holding or waiting for the lock, guarded by the cache
+         */
+        int users;
+    }
+
+    /**
+     * A download that broke off after its partial file was kept, it can be resumed
+     */
+    static class InterruptedDownloadException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        InterruptedDownloadException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * @return total size of the cached models and partial downloads in bytes
+     */
+    public synchronized long size() {
+        long size = 0;
+        for (File file : cachedFiles()) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    /**
+     * Deletes all cached models and partial downloads, except for the files of the urls being
+     * fetched at the moment
+     */
+    public synchronized void clear() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!keyLocks.containsKey(keyOfFile(file.getName()))) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    static String keyOf(URL url) {
+        return Long.toHexString(XXHash3.hash64(url.toString().getBytes(UTF_8), 0));
+    }
+
+    /**
+     * Deletes the least recently used models and partial files until the cache fits maxSize,
+     * keeping the files of the urls being fetched, including the one just fetched. Files are
+     * ordered by their last modified time, which is bumped on every use of a model and every
+     * write to a partial file.
+     */
+    private synchronized void evict() {
+        File[] files = cachedFiles();
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long x = a.lastModified();
+                long y = b.lastModified();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        for (int i = 0; i < files.length && size > maxSize; ++i) {
+            File file = files[i];
+            String name = file.getName();
+            String key = keyOfFile(name);
+            if (keyLocks.containsKey(key)) {
+                continue;
+            }
+            long length = file.length();
+            File metaFile = new File(directory, key + (name.endsWith(MODEL_SUFFIX) ? META_SUFFIX : PARTIAL_META_SUFFIX));
+            if (file.delete()) {
+                metaFile.delete();
+                size -= length;
+                IMPLog.d(Tag, "evicted " + name);
+            }
+        }
+    }
+
+    /**
+     * @return the model and partial files
+     */
+    private File[] cachedFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(MODEL_SUFFIX) || file.getName().endsWith(PARTIAL_SUFFIX)) {
+                files[count++] = file;
+            }
+        }
+        return Arrays.copyOf(files, count);
+    }
+
+    /**
+     * @return key of a file of the cache, keys are hex digits followed by the suffix
+     */
+    private static String keyOfFile(String name) {
+        int dot = name.indexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+    private void ensureDirectory() throws IOException {
+        // another fetch may create the directory at the same time
+        if (!directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("can't create directory " + directory);
+        }
+    }
+
+    private static void touch(File file) {
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    private static Properties readMeta(File metaFile) {
+        if (!metaFile.exists()) {
+            return null;
+        }
+        try {
+            InputStream inputStream = new FileInputStream(metaFile);
+            try {
+                Properties meta = new Properties();
+                meta.load(inputStream);
+                return meta;
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            IMPLog.w(Tag, "ignoring unreadable " + metaFile + ", " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeMeta(Properties meta, File metaFile, String key) throws IOException {
+        // named after the key, so that clear() and evict() leave it alone while the url is fetched
+        File tmpFile = File.createTempFile(key + ".", ".tmp", directory);
+        try {
+            OutputStream outputStream = new FileOutputStream(tmpFile);
+            try {
+                meta.store(outputStream, null);
+            } finally {
+                outputStream.close();
+            }
+            rename(tmpFile, metaFile);
+        } finally {
+            if (tmpFile.exists()) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Streams the input to the file, hashing the bytes on the way. Bytes read before a failure
+     * are written, so that the download can be resumed after them.
+     * @return number of bytes copied
+     */
+    private static long copy(InputStream inputStream, File file, boolean append, XXHash3.Streaming checksum) throws IOException {
+        OutputStream outputStream = new FileOutputStream(file, append);
+        try {
+            byte[] buffer = new byte[16384];
+            long length = 0;
+            int n;
+            while ((n = inputStream.read(buffer)) >= 0) {
+                outputStream.write(buffer, 0, n);
+                checksum.update(buffer, 0, n);
+                length += n;
+            }
+            return length;
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static void hashFile(File file, XXHash3.Streaming checksum) throws IOException {
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = inputStream.read(buffer)) >= 0) {
+                checksum.update(buffer, 0, n);
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        // renameTo() doesn't replace an existing file on every platform
+        if (!from.renameTo(to) && !(to.delete() && from.renameTo(to))) {
+            throw new IOException("can't rename " + from + " to " + to);
+        }
+    }
+}
@@ -1,15 +1,30 @@
 package ai.improve.downloader;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.zip.GZIPInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import ai.improve.encoder.XXHash3;
 import ai.improve.log.IMPLog;
+import ai.improve.util.LZ4Frame;
 import ai.improve.xgbpredictor.ImprovePredictor;
 
 public class ModelDownloader {
@@ -19,11 +34,62 @@ public class ModelDownloader {
 
     private static ModelLoader assetModelLoader;
 
+    private static volatile ModelCache modelCache;
+
+    /**
+     * Maximum number of models loaded at the same time
+     */
+    private static final int MAX_LOADING_THREADS = 2;
+
+    /**
+     * Arrays can't be quite as long as Integer.MAX_VALUE on all VMs
+     */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * Initial buffer size of resources of unknown length
+     */
+    private static final int READ_BUFFER_SIZE = 65536;
+
+    /**
+     * Most bytes allocated up front for a resource of known length, so that a wrong or hostile
+     * Content-Length can't force a huge allocation. Longer resources grow the buffer as their
+     * bytes arrive.
+     */
+    static final int MAX_PRESIZE = 4 * 1024 * 1024;
+
+    /**
+     * Shared by all loads, so that many Scorers created at startup don't download and parse
+     * their models all at once. Idle threads exit after a while.
+     */
+    private static final ThreadPoolExecutor executor = newLoadingExecutor();
+
+    /**
+     * Listeners of the loads in flight by url. Guarded by itself.
+     */
+    private static final Map<String, List<ModelLoadListener>> pendingLoads = new HashMap<>();
+
+    private static final AtomicInteger loadCount = new AtomicInteger();
+
+    private static final AtomicInteger deduplicatedLoadCount = new AtomicInteger();
+
     public ModelDownloader(URL url) {
         this.url = url;
     }
 
-    public static void download(URL url, ModelDownloadListener listener) {
+    public static void download(URL url, final ModelDownloadListener listener) {
+        new ModelDownloader(url).downloadInternal(listener == null ? null : new ModelLoadListener() {
+            @Override
+            public void onFinish(ImprovePredictor predictor, ModelLoadMetrics metrics, IOException e) {
+                listener.onFinish(predictor, e);
+            }
+        });
+    }
+
+    /**
+     * Like download(URL, ModelDownloadListener), reporting the metrics of the load as well
+     */
+    public static void download(URL url, ModelLoadListener listener) {
         new ModelDownloader(url).downloadInternal(listener);
     }
 
@@ -31,77 +97,401 @@ public class ModelDownloader {
         assetModelLoader = loader;
     }
 
-    private void downloadInternal(ModelDownloadListener listener) {
-        new Thread() {
+    /**
+     * Caches remote models on disk and revalidates them with conditional requests instead of
+     * downloading them on every load. Interrupted downloads are only resumed with a cache,
+     * which keeps the partial file. There is no cache by default, on Android apps usually
+     * cache models in their cache directory:
+     * <pre>
+     * ModelDownloader.setModelCache(new ModelCache(
+     *         new File(context.getCacheDir(), "improveai_models"), ModelCache.DEFAULT_MAX_SIZE));
+     * </pre>
+     * @param cache the cache of remote models, null to download them every time (the default)
+     */
+    public static void setModelCache(ModelCache cache) {
+        modelCache = cache;
+    }
+
+    public static ModelCache getModelCache() {
+        return modelCache;
+    }
+
+    /**
+     * @return the executor models are loaded on. At most MAX_LOADING_THREADS loads run at the
+     * same time, the others wait in its queue. Tasks on it must not wait for other loads on it,
+     * see isLoadingThread().
+     */
+    public static Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return true if the calling thread is one of the threads of getExecutor(). A load started
+     * on one of them must run on it instead of waiting for the executor, whose threads may all
+     * be waiting already.
+     */
+    public static boolean isLoadingThread() {
+        return Thread.currentThread() instanceof LoadingThread;
+    }
+
+    /**
+     * @return number of models loaded by download() so far
+     */
+    public static int getLoadCount() {
+        return loadCount.get();
+    }
+
+    /**
+     * @return number of download() calls that joined a load of the same url in flight instead
+     * of loading the model again
+     */
+    public static int getDeduplicatedLoadCount() {
+        return deduplicatedLoadCount.get();
+    }
+
+    private static ThreadPoolExecutor newLoadingExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_LOADING_THREADS, MAX_LOADING_THREADS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new LoadingThread(r, Tag + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Concurrent downloads of the same url share one load, all their listeners are called with
+     * the same predictor once it finishes. Listeners run on a loading thread and must not wait
+     * for other loads.
+     */
+    private void downloadInternal(ModelLoadListener listener) {
+        final String key = url.toString();
+        synchronized (pendingLoads) {
+            List<ModelLoadListener> listeners = pendingLoads.get(key);
+            if (listeners != null) {
+                listeners.add(listener);
+                deduplicatedLoadCount.incrementAndGet();
+                IMPLog.d(Tag, "joined the load in flight, " + key);
+                return;
+            }
+            listeners = new ArrayList<>();
+            listeners.add(listener);
+            pendingLoads.put(key, listeners);
+        }
+        loadCount.incrementAndGet();
+
+        executor.execute(new Runnable() {
             @Override
             public void run() {
-                InputStream inputStream = null;
+                ModelLoadMetrics metrics = new ModelLoadMetrics(url);
+                ImprovePredictor predictor = null;
+                IOException error = null;
                 try {
-                    String urlString = url.toString();
-                    if(urlString.startsWith("http")) {
-                        IMPLog.d(Tag, "loadAsync, start loading model, " + url.toString());
-                        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-                        urlConnection.setReadTimeout(15000);
-                        if (url.getPath().endsWith(".gz")) {
-                            inputStream = new GZIPInputStream(urlConnection.getInputStream());
-                        } else {
-                            inputStream = new BufferedInputStream(urlConnection.getInputStream());
-                        }
-
-                        ImprovePredictor predictor = new ImprovePredictor(inputStream);
-                        if(listener != null) {
-                            listener.onFinish(predictor, null);
-                        }
-                    } else if(urlString.startsWith("file:///android_asset")) {
-                        // Only Android would reach here
-                        // When running in pure Java, new URL("file:///android_asset/") is interpreted
-                        // as new URL("file:/android_asset").
-                        String path = urlString.substring("file:///android_asset/".length());
-                        inputStream = assetModelLoader.load(path);
-                        ImprovePredictor predictor = new ImprovePredictor(inputStream);
-                        if(listener != null) {
-                            listener.onFinish(predictor, null);
-                        }
-                    } else {
-                        // local model files
-                        // If local model files is not in the sandbox of the app,
-                        // READ_EXTERNAL_STORAGE might be required to read the file.
-                        // We are leaving any permission request stuff to sdk users.
-                        if (url.getPath().endsWith(".gz")) {
-                            inputStream = new GZIPInputStream(new FileInputStream(new File(url.toURI())));
-                        } else {
-                            inputStream = new FileInputStream(new File(url.toURI()));
-                        }
-
-                        ImprovePredictor predictor = new ImprovePredictor(inputStream);
-                        if(listener != null) {
-                            listener.onFinish(predictor, null);
-                        }
+                    predictor = load(url, metrics);
+                } catch (IOException e) {
+                    error = e;
+                }
+
+                // later downloads of the url start a new load, e.g. to pick up a retrained model
+                List<ModelLoadListener> listeners;
+                synchronized (pendingLoads) {
+                    listeners = pendingLoads.remove(key);
+                }
+                for (ModelLoadListener listener : listeners) {
+                    if (listener == null) {
+                        continue;
+                    }
+                    try {
+                        // joined loads share the predictor, but each gets metrics of its own
+                        listener.onFinish(predictor, metrics.copy(), error);
+                    } catch (RuntimeException e) {
+                        IMPLog.e(Tag, "model download listener failed, " + e.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Synchronously loads a model on the calling thread, which must not be the Android main
+     * thread for remote models.
+     * @param url a model url as accepted by download()
+     * @throws IOException If the model can't be loaded, any other error is wrapped in an
+     * IOException as well
+     */
+    public static ImprovePredictor load(URL url) throws IOException {
+        return load(url, null);
+    }
+
+    /**
+     * Like load(URL), recording the phases of the load
+     * @param metrics receives the durations and sizes of the load, may be null. finish() is
+     *                called once the model is loaded.
+     */
+    public static ImprovePredictor load(URL url, ModelLoadMetrics metrics) throws IOException {
+        try {
+            IMPLog.d(Tag, "start loading model, " + url);
+            // remote and asset models are read into a buffer, local and cached models mapped
+            ImprovePredictor predictor = loadModel(url, readModelSource(url, metrics), metrics);
+            if (metrics != null) {
+                metrics.finish();
+            }
+            return predictor;
+        } catch (Throwable e) {
+            e.printStackTrace();
+            IMPLog.e(Tag, url + ", model download exception: " + e.getMessage());
+            if(e instanceof IOException) {
+                throw (IOException) e;
+            }
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Loads a plain model file by mapping it into memory and parsing the model straight from
+     * the mapping, instead of reading it through a stream.
+     * @param file a plain (not compressed) model file
+     * @throws IOException If the file can't be mapped or the model is malformed
+     */
+    public static ImprovePredictor loadMappedModel(File file) throws IOException {
+        return new ImprovePredictor(mapFile(file));
+    }
+
+    /**
+     * Maps a file into memory read only.
+     * @throws IOException If the file can't be mapped or is larger than 2GB
+     */
+    public static MappedByteBuffer mapFile(File file) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileChannel channel = inputStream.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("file is too large to be mapped: " + size + " bytes");
+            }
+            // the mapping stays valid after the channel is closed and is released once the
+            // buffer is garbage collected
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Synchronously reads the model resource as is, i.e. still compressed if the url ends with
+     * .gz or .lz4. Local files and remote models cached by the model cache are mapped into memory,
+     * other resources are read into the heap.
+     * Must not be called on the Android main thread for remote models.
+     * @param url a model url as accepted by download()
+     * @throws IOException If the resource can't be read
+     */
+    public static ByteBuffer readModelSource(URL url) throws IOException {
+        return readModelSource(url, null);
+    }
+
+    /**
+     * Like readModelSource(URL), recording the fetch phase, the downloaded bytes and the size of
+     * the source
+     * @param metrics may be null
+     */
+    public static ByteBuffer readModelSource(URL url, ModelLoadMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer source = fetch(url, metrics);
+        if (metrics != null) {
+            metrics.record(ModelLoadMetrics.Phase.FETCH, System.nanoTime() - start);
+            metrics.setCompressedSize(source.remaining());
+        }
+        return source;
+    }
+
+    private static ByteBuffer fetch(URL url, ModelLoadMetrics metrics) throws IOException {
+        String urlString = url.toString();
+        ModelCache cache = modelCache;
+        if (urlString.startsWith("http") && cache != null) {
+            return mapFile(cache.fetch(url, metrics));
+        } else if (urlString.startsWith("http")) {
+            HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+            urlConnection.setReadTimeout(15000);
+            XXHash3.Streaming checksum = new XXHash3.Streaming(0);
+            // -1 if unknown, e.g. a chunked or transparently decompressed response
+            long contentLength = urlConnection.getContentLength();
+            ByteBuffer source = readFully(urlConnection.getInputStream(), contentLength, checksum);
+            if (metrics != null) {
+                metrics.addBytesTransferred(source.remaining());
+            }
+            if (contentLength >= 0 && contentLength != source.remaining()) {
+                throw new IOException("Truncated model download " + url + ", " + source.remaining() + " of " + contentLength + " bytes");
+            }
+            ModelCache.verifyChecksum(url, urlConnection.getHeaderField(ModelCache.CHECKSUM_HEADER), checksum);
+            return source;
+        } else if (urlString.startsWith("file:///android_asset")) {
+            // Only Android would reach here
+            // When running in pure Java, new URL("file:///android_asset/") is interpreted
+            // as new URL("file:/android_asset").
+            return readFully(assetModelLoader.load(urlString.substring("file:///android_asset/".length())), -1, null);
+        } else {
+            // local model files
+            // If local model files is not in the sandbox of the app,
+            // READ_EXTERNAL_STORAGE might be required to read the file.
+            // We are leaving any permission request stuff to sdk users.
+            try {
+                return mapFile(new File(url.toURI()));
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                throw new IOException("invalid model file url " + url);
+            }
+        }
+    }
+
+    /**
+     * Parses a model read by readModelSource(), decompressing it if the url ends with .gz or
+     * .lz4. Without one of these suffixes the format is detected from the magic bytes, e.g. for
+     * a compressed model served from a url ending with .xgb.
+     * @param url url the source was read from
+     * @param source model bytes from the buffer's position to its limit
+     * @throws IOException If the model is malformed, or zstd compressed which isn't supported
+     */
+    public static ImprovePredictor loadModel(URL url, ByteBuffer source) throws IOException {
+        return loadModel(url, source, null);
+    }
+
+    /**
+     * Like loadModel(URL, ByteBuffer), recording the decompress and parse phases, the
+     * uncompressed size and the counts of the model
+     * @param metrics may be null
+     */
+    public static ImprovePredictor loadModel(URL url, ByteBuffer source, ModelLoadMetrics metrics) throws IOException {
+        String format = formatOf(url, source);
+        long decompressNanos = 0;
+        ImprovePredictor predictor;
+        if ("gz".equals(format)) {
+            // decompressed while it is parsed on multi-core devices
+            predictor = ImprovePredictor.loadGzip(source);
+            decompressNanos = predictor.getDecompressNanos();
+        } else if ("lz4".equals(format)) {
+            // decompressed up front, the frames don't have to declare the content size that
+            // parsing while decompressing would need
+            long start = System.nanoTime();
+            byte[] bytes = LZ4Frame.decompress(source);
+            decompressNanos = System.nanoTime() - start;
+            predictor = new ImprovePredictor(ByteBuffer.wrap(bytes));
+        } else if ("zst".equals(format)) {
+            throw new IOException("zstd compressed models aren't supported, use .xgb.lz4 or .xgb.gz");
+        } else {
+            predictor = new ImprovePredictor(source);
+        }
+
+        if (metrics != null) {
+            metrics.setFormat(format);
+            metrics.record(ModelLoadMetrics.Phase.DECOMPRESS, decompressNanos);
+            metrics.record(ModelLoadMetrics.Phase.PARSE_TREES, predictor.getTreeParseNanos());
+            metrics.record(ModelLoadMetrics.Phase.PARSE_METADATA, predictor.getMetadataParseNanos());
+            metrics.setUncompressedSize(predictor.getModelSize());
+            metrics.recordModel(predictor, null);
+        }
+        return predictor;
+    }
+
+    /**
+     * @return "gz", "lz4", "zst" or "xgb", by the suffix of the url or else by the magic bytes
+     */
+    private static String formatOf(URL url, ByteBuffer source) {
+        String path = url.getPath();
+        if (path.endsWith(".gz") || path.endsWith(".lz4") || path.endsWith(".zst")) {
+            return path.substring(path.lastIndexOf('.') + 1);
+        } else if (isGzip(source)) {
+            return "gz";
+        } else if (LZ4Frame.isFrame(source)) {
+            return "lz4";
+        } else if (isZstd(source)) {
+            return "zst";
+        }
+        return "xgb";
+    }
+
+    private static boolean isGzip(ByteBuffer source) {
+        // magic number and the deflate compression method
+        int p = source.position();
+        return source.remaining() >= 3 && (source.get(p) & 0xFF) == 0x1F && (source.get(p + 1) & 0xFF) == 0x8B
+                && source.get(p + 2) == 8;
+    }
+
+    private static boolean isZstd(ByteBuffer source) {
+        int p = source.position();
+        return source.remaining() >= 4 && (source.get(p) & 0xFF) == 0x28 && (source.get(p + 1) & 0xFF) == 0xB5
+                && (source.get(p + 2) & 0xFF) == 0x2F && (source.get(p + 3) & 0xFF) == 0xFD;
+    }
+
+    /**
+     * Reads the stream into one array which is wrapped without copying. The array is presized
+     * to the expected length up to MAX_PRESIZE and grows by doubling, but not past the
+     * expected length, so that a model of known length ends up in an array of its own size.
+     * @param expectedLength length of the stream if known, e.g. from Content-Length, -1 if
+     *                       unknown. A stream of another length is still read to its end.
+     * @param checksum hashes the bytes as they are read, may be null
+     */
+    static ByteBuffer readFully(InputStream inputStream, long expectedLength, XXHash3.Streaming checksum) throws IOException {
+        try {
+            if (expectedLength > MAX_ARRAY_SIZE) {
+                throw new IOException("Model of " + expectedLength + " bytes is too large");
+            }
+            byte[] bytes = new byte[expectedLength >= 0 ? (int) Math.min(expectedLength, MAX_PRESIZE) : READ_BUFFER_SIZE];
+            int length = 0;
+            while (true) {
+                if (length == bytes.length) {
+                    // a full array is only grown if the stream goes on
+                    int next = inputStream.read();
+                    if (next < 0) {
+                        break;
                     }
-                } catch (Throwable e) {
-                    e.printStackTrace();
-                    IMPLog.e(Tag, url + ", model download exception: " + e.getMessage());
-                    if(listener != null) {
-                        if(e instanceof IOException) {
-                            listener.onFinish(null, (IOException) e);
-                        } else {
-                            listener.onFinish(null, new IOException(e.getMessage()));
-                        }
+                    if (length == MAX_ARRAY_SIZE) {
+                        throw new IOException("Model is too large");
                     }
-                } finally {
-                    if(inputStream != null) {
-                        try {
-                            inputStream.close();
-                        } catch (Throwable t) {
-                            t.printStackTrace();
-                        }
+                    long size = Math.min(MAX_ARRAY_SIZE, Math.max(READ_BUFFER_SIZE, 2L * length));
+                    if (expectedLength > length) {
+                        size = Math.min(size, expectedLength);
                     }
+                    bytes = Arrays.copyOf(bytes, (int) size);
+                    bytes[length] = (byte) next;
+                    if (checksum != null) {
+                        checksum.update(bytes, length, 1);
+                    }
+                    length++;
+                }
+                int n = inputStream.read(bytes, length, bytes.length - length);
+                if (n < 0) {
+                    break;
                 }
+                if (checksum != null) {
+                    checksum.update(bytes, length, n);
+                }
+                length += n;
             }
-        }.start();
+            return ByteBuffer.wrap(bytes, 0, length);
+        } finally {
+            inputStream.close();
+        }
     }
 
     public interface ModelDownloadListener {
         void onFinish(ImprovePredictor predictor, IOException e);
     }
+
+    public interface ModelLoadListener {
+        /**
+         * @param metrics of the load, partial if it failed
+         */
+        void onFinish(ImprovePredictor predictor, ModelLoadMetrics metrics, IOException e);
+    }
+
+    private static final class LoadingThread extends Thread {
+        LoadingThread(Runnable target, String name) {
+            super(target, name);
+        }
+    }
 }
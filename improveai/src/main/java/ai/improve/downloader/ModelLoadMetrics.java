@@ -0,0 +1,295 @@
+package ai.improve.downloader;
+
+import java.net.URL;
+import java.util.Locale;
+
+import ai.improve.encoder.FeatureEncoder;
+import ai.improve.xgbpredictor.ImprovePredictor;
+
+/**
+ * Where the time of a model load went: durations of its phases, bytes read, sizes of the model
+ * and the estimated heap it retains.
+ * <p>
+ * Phases run one after the other on the loading thread, except on multi-core devices where gzip
+ * compressed models are decompressed while they are parsed and the metadata is parsed along
+ * with the trees, so the phases may add up to more than the total time.
+ * </p>
+ * <p>
+ * Metrics are recorded by the loading thread and mustn't be modified once the load finished.
+ * </p>
+ */
+public final class ModelLoadMetrics {
+
+    public enum Phase {
+        /**
+         * Downloading the model, revalidating a cached model, or reading or mapping a local file
+         */
+        FETCH,
+        /**
+         * Decompressing a gzip or LZ4 compressed model. Not measured separately for gzip
+         * models which can only be decompressed as a stream, see getDecompressNanos() of
+         * ImprovePredictor.
+         */
+        DECOMPRESS,
+        /**
+         * Parsing and flattening the trees
+         */
+        PARSE_TREES,
+        /**
+         * Parsing the metadata JSON
+         */
+        PARSE_METADATA,
+        /**
+         * Creating the feature encoder. String tables are built later, on the first encode of
+         * their feature.
+         */
+        BUILD_ENCODER,
+        /**
+         * Checking and restoring a Scorer snapshot
+         */
+        READ_SNAPSHOT,
+        /**
+         * Writing a Scorer snapshot after parsing the model
+         */
+        WRITE_SNAPSHOT,
+        /**
+         * Scoring synthetic items until the JIT compiled the scoring code, see
+         * Scorer.setWarmUpBudget()
+         */
+        WARM_UP
+    }
+
+    private final URL modelUrl;
+
+    private final long startNanos;
+
+    private final long[] phaseNanos = new long[Phase.values().length];
+
+    private long totalNanos = -1;
+
+    private String format;
+
+    private long bytesTransferred;
+
+    private long compressedSize = -1;
+
+    private long uncompressedSize = -1;
+
+    private boolean fromSnapshot;
+
+    private int treeCount;
+
+    private int nodeCount;
+
+    private int stringTableCount;
+
+    private long stringTableEntryCount;
+
+    private long estimatedMemory;
+
+    /**
+     * Starts the total time of a load
+     */
+    public ModelLoadMetrics(URL modelUrl) {
+        this.modelUrl = modelUrl;
+        this.startNanos = System.nanoTime();
+    }
+
+    private ModelLoadMetrics(ModelLoadMetrics other) {
+        this.modelUrl = other.modelUrl;
+        this.startNanos = other.startNanos;
+        System.arraycopy(other.phaseNanos, 0, phaseNanos, 0, phaseNanos.length);
+        this.totalNanos = other.totalNanos;
+        this.format = other.format;
+        this.bytesTransferred = other.bytesTransferred;
+        this.compressedSize = other.compressedSize;
+        this.uncompressedSize = other.uncompressedSize;
+        this.fromSnapshot = other.fromSnapshot;
+        this.treeCount = other.treeCount;
+        this.nodeCount = other.nodeCount;
+        this.stringTableCount = other.stringTableCount;
+        this.stringTableEntryCount = other.stringTableEntryCount;
+        this.estimatedMemory = other.estimatedMemory;
+    }
+
+    /**
+     * @return a copy for a Scorer that joined the load in flight of another one, so that each
+     * can record its own feature encoder
+     */
+    ModelLoadMetrics copy() {
+        return new ModelLoadMetrics(this);
+    }
+
+    /**
+     * Adds to the time of a phase, called while loading
+     */
+    public void record(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()] += nanos;
+    }
+
+    /**
+     * Records the counts and memory of the loaded model, called while loading
+     * @param featureEncoder null if no encoder has been created, the estimated memory is then
+     *                       the predictor's only
+     */
+    public void recordModel(ImprovePredictor predictor, FeatureEncoder featureEncoder) {
+        treeCount = predictor.getFlatTrees() != null ? predictor.getFlatTrees().getNumTrees() : 0;
+        nodeCount = predictor.getFlatTrees() != null ? predictor.getFlatTrees().getNumNodes() : 0;
+        estimatedMemory = predictor.estimateMemory();
+        if (featureEncoder != null) {
+            stringTableCount = featureEncoder.getStringTableCount();
+            stringTableEntryCount = featureEncoder.getStringTableEntryCount();
+            estimatedMemory += featureEncoder.estimateMemory();
+        }
+    }
+
+    /**
+     * Marks the model as restored from a Scorer snapshot, called while loading
+     */
+    public void setFromSnapshot(boolean fromSnapshot) {
+        this.fromSnapshot = fromSnapshot;
+    }
+
+    /**
+     * Stops the total time, called once the model is loaded. Called again if the load goes on,
+     * e.g. to create the feature encoder of a downloaded model.
+     */
+    public void finish() {
+        totalNanos = System.nanoTime() - startNanos;
+    }
+
+    void setFormat(String format) {
+        this.format = format;
+    }
+
+    void addBytesTransferred(long bytes) {
+        bytesTransferred += bytes;
+    }
+
+    void setCompressedSize(long compressedSize) {
+        this.compressedSize = compressedSize;
+    }
+
+    void setUncompressedSize(long uncompressedSize) {
+        this.uncompressedSize = uncompressedSize;
+    }
+
+    public URL getModelUrl() {
+        return modelUrl;
+    }
+
+    /**
+     * @return nanoseconds from the start of the load until the model was ready, -1 if the
+     * load hasn't finished
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return nanoseconds spent in the phase, 0 if the load skipped it
+     */
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    /**
+     * @return "xgb", "gz" or "lz4", null if the model wasn't parsed, e.g. when it was restored
+     * from a snapshot
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * @return bytes downloaded, 0 for local files, assets and cached models that haven't
+     * changed
+     */
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    /**
+     * @return bytes of the model as served, compressed or not, -1 if unknown
+     */
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    /**
+     * @return bytes of the uncompressed model, -1 if unknown, e.g. when it was restored from a
+     * snapshot
+     */
+    public long getUncompressedSize() {
+        return uncompressedSize;
+    }
+
+    /**
+     * @return true if the model was restored from a Scorer snapshot instead of being parsed
+     */
+    public boolean isFromSnapshot() {
+        return fromSnapshot;
+    }
+
+    public int getTreeCount() {
+        return treeCount;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return number of string features with known values
+     */
+    public int getStringTableCount() {
+        return stringTableCount;
+    }
+
+    /**
+     * @return number of known values of all string features
+     */
+    public long getStringTableEntryCount() {
+        return stringTableEntryCount;
+    }
+
+    /**
+     * @return estimated heap bytes of the predictor and the feature encoder once loaded. It
+     * grows as string tables are built on first use, see Scorer.estimateMemory().
+     */
+    public long getEstimatedMemory() {
+        return estimatedMemory;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(modelUrl).append(String.format(Locale.US, ", %.1f ms", totalNanos / 1e6));
+        for (Phase phase : Phase.values()) {
+            if (phaseNanos[phase.ordinal()] > 0) {
+                builder.append(String.format(Locale.US, ", %s %.1f ms",
+                        phase.name().toLowerCase(Locale.US), phaseNanos[phase.ordinal()] / 1e6));
+            }
+        }
+        builder.append(", format ").append(fromSnapshot ? "snapshot" : format)
+                .append(", transferred ").append(bytesTransferred)
+                .append(", compressed ").append(compressedSize)
+                .append(", uncompressed ").append(uncompressedSize)
+                .append(", trees ").append(treeCount)
+                .append(", nodes ").append(nodeCount)
+                .append(", string tables ").append(stringTableCount)
+                .append(", string table entries ").append(stringTableEntryCount)
+                .append(", estimated memory ").append(estimatedMemory);
+        return builder.toString();
+    }
+
+    /**
+     * Receives the metrics of every model loaded for a Scorer, see Scorer.setLoadMetricsListener()
+     */
+    public interface Listener {
+        /**
+         * Called on the loading thread once a model is loaded. Must not block.
+         */
+        void onModelLoaded(ModelLoadMetrics metrics);
+    }
+}
@@ -1,7 +1,11 @@
 package ai.improve.encoder;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
+import ai.improve.util.SnapshotUtils;
 import biz.k11i.xgboost.util.FVec;
 
 public class FeatureEncoder {
@@ -22,11 +26,39 @@ public class FeatureEncoder {
      */
     public static final String CONTEXT_FEATURE_KEY = "context";
 
+    /**
+     * Default number of model features above which encodeFeatureVectors() produces sparse
+     * feature vectors
+     */
+    public static final int DEFAULT_SPARSE_FEATURE_THRESHOLD = 4096;
+
+    /**
+     * Approximate heap bytes per feature besides its name, see estimateMemory()
+     */
+    private static final int FEATURE_OVERHEAD = 160;
+
     /**
      * A mapping containing feature name -> feature index pairs
      */
     public HashMap<String, Integer> featureIndexes;
 
+    /**
+     * featureIndexes compiled into a trie of feature name path segments
+     */
+    private final FeaturePathTrie featurePaths;
+
+    /**
+     * Trie nodes of the item and context feature paths, null if the model has no such features
+     */
+    private final FeaturePathTrie itemFeaturePaths;
+
+    private final FeaturePathTrie contextFeaturePaths;
+
+    /**
+     * Number of model features above which encodeFeatureVectors() produces SparseFVec
+     */
+    private int sparseFeatureThreshold = DEFAULT_SPARSE_FEATURE_THRESHOLD;
+
     /**
      * A list of StringTable objects for each feature
      */
@@ -59,6 +91,226 @@ public class FeatureEncoder {
                     new StringTable(jsonStringTable.getValue(), model_seed));
         }
 
+        this.featurePaths = FeaturePathTrie.compile(featureIndexes);
+        this.itemFeaturePaths = featurePaths.child(ITEM_FEATURE_KEY);
+        this.contextFeaturePaths = featurePaths.child(CONTEXT_FEATURE_KEY);
+    }
+
+    /**
+     * Creates a new FeatureEncoder instance from the primitive tables of ModelMetadata
+     * @param featureNames feature names
+     * @param stringTables a map of <string feature name> : <target - value hashes for string feature>
+     * @param model_seed a non-negative 32 bit int used for xxhash3
+     */
+    public FeatureEncoder(String[] featureNames, Map<String, long[]> stringTables, long model_seed) {
+        this(Arrays.asList(featureNames), newStringTables(featureNames, stringTables, model_seed));
+    }
+
+    private static List<StringTable> newStringTables(String[] featureNames, Map<String, long[]> stringTables, long model_seed) {
+        Map<String, Integer> indexes = new HashMap<>();
+        for (String featureName : featureNames) {
+            indexes.put(featureName, indexes.size());
+        }
+        List<StringTable> tables = new ArrayList<>(featureNames.length);
+        StringTable sharedStringTable = new StringTable(new long[0], model_seed);
+        for (int i = 0; i < featureNames.length; ++i) {
+            tables.add(sharedStringTable);
+        }
+        for (Map.Entry<String, long[]> stringTable : stringTables.entrySet()) {
+            Integer index = indexes.get(stringTable.getKey());
+            if (index == null) {
+                throw new NoSuchElementException("Bad model metadata");
+            }
+            tables.set(index, new StringTable(stringTable.getValue(), model_seed));
+        }
+        return tables;
+    }
+
+    private FeatureEncoder(List<String> featureNames, List<StringTable> stringTables) {
+        this.featureIndexes = new HashMap<>();
+        for (String featureName: featureNames) {
+            this.featureIndexes.put(featureName, this.featureIndexes.size());
+        }
+        this.internalStringTables = stringTables;
+
+        this.featurePaths = FeaturePathTrie.compile(featureIndexes);
+        this.itemFeaturePaths = featurePaths.child(ITEM_FEATURE_KEY);
+        this.contextFeaturePaths = featurePaths.child(CONTEXT_FEATURE_KEY);
+    }
+
+    /**
+     * Writes the feature names and the built string tables, so that readSnapshot() can restore
+     * the encoder without the model metadata. Settings such as the sparse feature threshold and
+     * string encoding caches aren't written.
+     * @param out output for the snapshot
+     * @throws IOException If an I/O error occurs
+     */
+    public void writeSnapshot(DataOutput out) throws IOException {
+        String[] featureNames = new String[featureIndexes.size()];
+        for (Map.Entry<String, Integer> entry : featureIndexes.entrySet()) {
+            featureNames[entry.getValue()] = entry.getKey();
+        }
+        out.writeInt(featureNames.length);
+        for (String featureName : featureNames) {
+            SnapshotUtils.writeString(out, featureName);
+        }
+
+        // features without a string table share one, write each table once
+        Map<StringTable, Integer> tableIndexes = new IdentityHashMap<>();
+        int[] featureTables = new int[internalStringTables.size()];
+        for (int i = 0; i < featureTables.length; ++i) {
+            StringTable stringTable = internalStringTables.get(i);
+            Integer index = tableIndexes.get(stringTable);
+            if (index == null) {
+                index = tableIndexes.size();
+                tableIndexes.put(stringTable, index);
+            }
+            featureTables[i] = index;
+        }
+        StringTable[] stringTables = new StringTable[tableIndexes.size()];
+        for (Map.Entry<StringTable, Integer> entry : tableIndexes.entrySet()) {
+            stringTables[entry.getValue()] = entry.getKey();
+        }
+        out.writeInt(stringTables.length);
+        for (StringTable stringTable : stringTables) {
+            stringTable.writeSnapshot(out);
+        }
+        SnapshotUtils.writeIntArray(out, featureTables);
+    }
+
+    /**
+     * Restores an encoder written by writeSnapshot(). It encodes exactly like the original one.
+     * @param in snapshot bytes from the buffer's position, the position is advanced past them
+     * @throws IOException If the snapshot is truncated or malformed
+     */
+    public static FeatureEncoder readSnapshot(ByteBuffer in) throws IOException {
+        int numFeatures = SnapshotUtils.readInt(in);
+        List<String> featureNames = new ArrayList<>(Math.min(numFeatures, in.remaining() / 4));
+        for (int i = 0; i < numFeatures; ++i) {
+            featureNames.add(SnapshotUtils.readString(in));
+        }
+
+        int numTables = SnapshotUtils.readInt(in);
+        StringTable[] stringTables = new StringTable[Math.min(numTables, in.remaining())];
+        if (numTables != stringTables.length) {
+            throw new IOException("Invalid snapshot, bad string table count " + numTables);
+        }
+        for (int i = 0; i < numTables; ++i) {
+            stringTables[i] = StringTable.readSnapshot(in);
+        }
+
+        int[] featureTables = SnapshotUtils.readIntArray(in);
+        if (featureTables.length != numFeatures) {
+            throw new IOException("Invalid snapshot, string tables don't match the features");
+        }
+        List<StringTable> internalStringTables = new ArrayList<>(numFeatures);
+        for (int index : featureTables) {
+            if (index < 0 || index >= numTables) {
+                throw new IOException("Invalid snapshot, bad string table index " + index);
+            }
+            internalStringTables.add(stringTables[index]);
+        }
+        return new FeatureEncoder(featureNames, internalStringTables);
+    }
+
+    /**
+     * Gives every string table a bounded cache of string -> encoded value, so repeated string
+     * values skip hashing and table lookups. Disabled by default.
+     * @param capacity maximum number of cached strings per string table, 0 to disable caching
+     */
+    public void setStringEncodingCacheCapacity(int capacity) {
+        for (StringTable stringTable : new HashSet<>(internalStringTables)) {
+            stringTable.setCache(capacity > 0 ? new StringEncodingCache(capacity) : null);
+        }
+    }
+
+    /**
+     * @return total number of string encodings answered from the string table caches
+     */
+    public long getStringEncodingCacheHits() {
+        long hits = 0;
+        for (StringTable stringTable : new HashSet<>(internalStringTables)) {
+            StringEncodingCache cache = stringTable.getCache();
+            hits += cache == null ? 0 : cache.getHits();
+        }
+        return hits;
+    }
+
+    /**
+     * @return total number of string encodings that missed the string table caches
+     */
+    public long getStringEncodingCacheMisses() {
+        long misses = 0;
+        for (StringTable stringTable : new HashSet<>(internalStringTables)) {
+            StringEncodingCache cache = stringTable.getCache();
+            misses += cache == null ? 0 : cache.getMisses();
+        }
+        return misses;
+    }
+
+    /**
+     * @return number of distinct non-empty string tables, i.e. string features of the model
+     * with known values
+     */
+    public int getStringTableCount() {
+        int count = 0;
+        for (StringTable stringTable : new HashSet<>(internalStringTables)) {
+            if (!stringTable.isEmpty()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return number of known values of all distinct string tables
+     */
+    public long getStringTableEntryCount() {
+        long count = 0;
+        for (StringTable stringTable : new HashSet<>(internalStringTables)) {
+            count += stringTable.getTargetCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return approximate heap bytes of the feature indexes and the string tables, which grows
+     * as string tables are built on first use
+     */
+    public long estimateMemory() {
+        long bytes = 0;
+        for (String featureName : featureIndexes.keySet()) {
+            // the name, its index entry and trie node, and its string table slot
+            bytes += 2L * featureName.length() + FEATURE_OVERHEAD;
+        }
+        for (StringTable stringTable : new HashSet<>(internalStringTables)) {
+            bytes += stringTable.estimateMemory();
+        }
+        return bytes;
+    }
+
+    /**
+     * String tables are built on the first encode of their feature, so that load time and
+     * memory depend on the string features actually used.
+     * @return number of non-empty string tables which have been built
+     */
+    public int getMaterializedStringTableCount() {
+        int count = 0;
+        for (StringTable stringTable : new HashSet<>(internalStringTables)) {
+            if (!stringTable.isEmpty() && stringTable.isMaterialized()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return true if the string table of the feature has been built, false if it is still to be
+     * built on the first encode of a string or the model has no such feature
+     */
+    public boolean isStringTableMaterialized(String featureName) {
+        Integer index = featureIndexes.get(featureName);
+        return index != null && internalStringTables.get(index).isMaterialized();
     }
 
     /**
@@ -69,7 +321,7 @@ public class FeatureEncoder {
      * @param noiseScale a small multiplier for each of values encoded form item
      */
     public void encodeItem(Object item, double[] into, double noiseShift, double noiseScale) {
-        encode(item, ITEM_FEATURE_KEY, into, noiseShift, noiseScale);
+        encode(item, itemFeaturePaths, into, null, noiseShift, noiseScale);
     }
 
     /**
@@ -80,7 +332,7 @@ public class FeatureEncoder {
      * @param noiseScale a small multiplier for each of values encoded form item
      */
     public void encodeContext(Object context, double[] into, double noiseShift, double noiseScale) {
-        encode(context, CONTEXT_FEATURE_KEY, into, noiseShift, noiseScale);
+        encode(context, contextFeaturePaths, into, null, noiseShift, noiseScale);
     }
 
     /**
@@ -104,62 +356,213 @@ public class FeatureEncoder {
         }
     }
 
+    /**
+     * Encodes each of the items together with the context.
+     * Context features are the same for all items, so the context is encoded only once and
+     * copied into the feature vector of each item.
+     * If the model has more than getSparseFeatureThreshold() features, SparseFVec feature
+     * vectors are returned.
+     * @param items JSON encodable items to be encoded
+     * @param context a JSON encodable context to be encoded
+     * @param noise value in [0, 1) which will be combined with the feature value
+     * @return a feature vector for each of the items
+     */
     public List<FVec> encodeFeatureVectors(List<?> items, Object context, double noise) {
-        List<FVec> result = new ArrayList<>();
+        double[] noiseShiftAndScale = getNoiseShiftAndScale(noise);
+
+        if (this.featureIndexes.size() > sparseFeatureThreshold) {
+            return encodeSparseFeatureVectors(items, context, noiseShiftAndScale[0], noiseShiftAndScale[1]);
+        }
+
+        double[] contextFeatures = encodeContextFeatures(context, noiseShiftAndScale[0], noiseShiftAndScale[1]);
+
+        List<FVec> result = new ArrayList<>(items.size());
         for(int i = 0; i < items.size(); ++i) {
-            double[] fvalues = new double[this.featureIndexes.size()];
-            Arrays.fill(fvalues, Double.NaN);
-            encodeFeatureVector(items.get(i), context, fvalues, noise);
+            double[] fvalues = contextFeatures.clone();
+            Object item = items.get(i);
+            if (item != null) {
+                encodeItem(item, fvalues, noiseShiftAndScale[0], noiseShiftAndScale[1]);
+            }
             result.add(FVec.Transformer.fromArray(fvalues, false));
         }
         return result;
     }
 
+    /**
+     * Encodes each of the items together with the context into the rows of a row-major matrix
+     * of featureIndexes.size() columns, as consumed by ImprovePredictor.predictBatch().
+     * Missing features are NaN. Values are stored as float, which is the precision the model
+     * compares them at.
+     * @param items JSON encodable items to be encoded
+     * @param context a JSON encodable context to be encoded
+     * @param noise value in [0, 1) which will be combined with the feature value
+     * @return feature values of items.get(i) at [i * featureIndexes.size(), (i + 1) * featureIndexes.size())
+     */
+    public float[] encodeFeatureMatrix(List<?> items, Object context, double noise) {
+        float[] matrix = new float[items.size() * this.featureIndexes.size()];
+        encodeFeatureMatrix(items, context, noise, matrix);
+        return matrix;
+    }
+
+    /**
+     * Like encodeFeatureMatrix(List, Object, double), but encodes into a caller supplied matrix
+     * so that it can be reused across calls
+     * @param items JSON encodable items to be encoded
+     * @param context a JSON encodable context to be encoded
+     * @param noise value in [0, 1) which will be combined with the feature value
+     * @param matrix receives the feature values of items.get(i) at
+     *               [i * featureIndexes.size(), (i + 1) * featureIndexes.size()). Values past the
+     *               last item are left untouched.
+     */
+    public void encodeFeatureMatrix(List<?> items, Object context, double noise, float[] matrix) {
+        int numFeatures = this.featureIndexes.size();
+        encodeFeatureMatrix(items, context, noise, matrix, new double[numFeatures], new double[numFeatures]);
+    }
+
+    /**
+     * Like encodeFeatureMatrix(List, Object, double, float[]), but encodes the context and each
+     * of the items into caller supplied rows, so that they can be reused across calls too
+     * @param items JSON encodable items to be encoded
+     * @param context a JSON encodable context to be encoded
+     * @param noise value in [0, 1) which will be combined with the feature value
+     * @param matrix receives the feature values of items.get(i) at
+     *               [i * featureIndexes.size(), (i + 1) * featureIndexes.size()). Values past the
+     *               last item are left untouched.
+     * @param contextFeatures overwritten with the context features, must have room for
+     *                        featureIndexes.size() values
+     * @param fvalues overwritten with the features of each item, must have room for
+     *                featureIndexes.size() values
+     */
+    public void encodeFeatureMatrix(List<?> items, Object context, double noise, float[] matrix,
+                                    double[] contextFeatures, double[] fvalues) {
+        int numFeatures = this.featureIndexes.size();
+        if (matrix.length < items.size() * numFeatures) {
+            throw new IllegalArgumentException("matrix must have room for items.size() * featureIndexes.size() values");
+        }
+        if (contextFeatures.length < numFeatures || fvalues.length < numFeatures) {
+            throw new IllegalArgumentException("rows must have room for featureIndexes.size() values");
+        }
+
+        double[] noiseShiftAndScale = getNoiseShiftAndScale(noise);
+        encodeContextFeatures(context, noiseShiftAndScale[0], noiseShiftAndScale[1], contextFeatures);
+
+        for(int i = 0; i < items.size(); ++i) {
+            System.arraycopy(contextFeatures, 0, fvalues, 0, numFeatures);
+            Object item = items.get(i);
+            if (item != null) {
+                encodeItem(item, fvalues, noiseShiftAndScale[0], noiseShiftAndScale[1]);
+            }
+            int offset = i * numFeatures;
+            for (int j = 0; j < numFeatures; ++j) {
+                matrix[offset + j] = (float) fvalues[j];
+            }
+        }
+    }
+
+    /**
+     * @return a NaN filled feature vector with the context features encoded into it
+     */
+    private double[] encodeContextFeatures(Object context, double noiseShift, double noiseScale) {
+        double[] contextFeatures = new double[this.featureIndexes.size()];
+        encodeContextFeatures(context, noiseShift, noiseScale, contextFeatures);
+        return contextFeatures;
+    }
+
+    /**
+     * Fills the first featureIndexes.size() values of contextFeatures with NaN and encodes the
+     * context features into them
+     */
+    private void encodeContextFeatures(Object context, double noiseShift, double noiseScale, double[] contextFeatures) {
+        Arrays.fill(contextFeatures, 0, this.featureIndexes.size(), Double.NaN);
+        if (context != null) {
+            encodeContext(context, contextFeatures, noiseShift, noiseScale);
+        }
+    }
+
+    private List<FVec> encodeSparseFeatureVectors(List<?> items, Object context, double noiseShift, double noiseScale) {
+        SparseFVec contextFeatures = new SparseFVec(0);
+        if (context != null) {
+            encode(context, contextFeaturePaths, null, contextFeatures, noiseShift, noiseScale);
+            contextFeatures.compact();
+        }
+
+        List<FVec> result = new ArrayList<>(items.size());
+        for(int i = 0; i < items.size(); ++i) {
+            SparseFVec fvec = new SparseFVec(contextFeatures, 16);
+            Object item = items.get(i);
+            if (item != null) {
+                encode(item, itemFeaturePaths, null, fvec, noiseShift, noiseScale);
+            }
+            result.add(fvec.compact());
+        }
+        return result;
+    }
+
+    /**
+     * @return number of model features above which encodeFeatureVectors() produces SparseFVec
+     */
+    public int getSparseFeatureThreshold() {
+        return sparseFeatureThreshold;
+    }
+
+    /**
+     * @param sparseFeatureThreshold number of model features above which encodeFeatureVectors()
+     *                               produces SparseFVec. Integer.MAX_VALUE disables sparse vectors.
+     */
+    public void setSparseFeatureThreshold(int sparseFeatureThreshold) {
+        this.sparseFeatureThreshold = sparseFeatureThreshold;
+    }
+
     /**
      * Encodes a JSON serializable object to a float vector
      * Rules of encoding go as follows:
      *  - None, json null, {}, [], and nan are treated as missing features and ignored.
      *  - numbers and booleans are encoded as-is.
      *  - strings are encoded using a lookup table
+     * Subtrees without any model feature below them are only checked for being JSON encodable.
      * @param obj a JSON encodable object to be encoded
-     * @param path the JSON-normalized path to the current object
-     * @param into xgboost predictor FVec object
+     * @param node trie node of the JSON-normalized path to the current object, null if no model
+     *             feature starts with this path
+     * @param into a double[] into which values will be inserted, or null if sparseInto is used
+     * @param sparseInto a SparseFVec into which values will be inserted, or null if into is used
      * @param noiseShift a small bias value added to each of values encoded form item
      * @param noiseScale a small multiplier for each of values encoded form item
      */
-    private void encode(Object obj, String path, double[] into, double noiseShift, double noiseScale) {
+    private void encode(Object obj, FeaturePathTrie node, double[] into, SparseFVec sparseInto, double noiseShift, double noiseScale) {
         if (obj instanceof Boolean || obj instanceof Number) {
-            if (!featureIndexes.containsKey(path)) {
+            if (node == null || node.featureIndex < 0) {
                 return;
             }
-            int featureIndex = featureIndexes.get(path);
+            int featureIndex = node.featureIndex;
 
             if (obj instanceof Boolean) {
-                into[featureIndex] = sprinkle((Boolean) obj ? 1.0 : 0.0, noiseShift, noiseScale);
+                put(into, sparseInto, featureIndex, sprinkle((Boolean) obj ? 1.0 : 0.0, noiseShift, noiseScale));
             } else {
-                into[featureIndex] = sprinkle(((Number) obj).doubleValue(), noiseShift, noiseScale);
+                put(into, sparseInto, featureIndex, sprinkle(((Number) obj).doubleValue(), noiseShift, noiseScale));
             }
 
         } else if (obj instanceof String) {
-            if (!featureIndexes.containsKey(path)) {
+            if (node == null || node.featureIndex < 0) {
                 return;
             }
-            int featureIndex = featureIndexes.get(path);
-            into[featureIndex] = sprinkle(internalStringTables.get(featureIndex).encode((String) obj), noiseShift, noiseScale);
+            int featureIndex = node.featureIndex;
+            put(into, sparseInto, featureIndex, sprinkle(internalStringTables.get(featureIndex).encode((String) obj), noiseShift, noiseScale));
         } else if (obj instanceof List) {
 
             List<Object> objList = (List<Object>) obj;
+            boolean hasChildren = node != null && node.hasChildren();
 
-            for (int i = 0; i < ((List<?>) obj).size(); i++) {
-                encode(objList.get(i), path + "." + i, into, noiseShift, noiseScale);
+            for (int i = 0; i < objList.size(); i++) {
+                encode(objList.get(i), hasChildren ? node.element(i) : null, into, sparseInto, noiseShift, noiseScale);
             }
 
         } else if (obj instanceof Map) {
+            boolean hasChildren = node != null && node.hasChildren();
             for (Map.Entry<String, Object> entry : ((Map<String, Object>)obj).entrySet()) {
                 if(!(entry.getKey() instanceof String)) {
                     throw new IllegalArgumentException("Map keys must be String.");
                 }
-                encode(entry.getValue(), path + "." + entry.getKey(), into, noiseShift, noiseScale);
+                encode(entry.getValue(), hasChildren ? node.child(entry.getKey()) : null, into, sparseInto, noiseShift, noiseScale);
             }
 
         } else if (obj == null || obj.equals(null)) {
@@ -170,6 +573,14 @@ public class FeatureEncoder {
         }
     }
 
+    private static void put(double[] into, SparseFVec sparseInto, int featureIndex, double value) {
+        if (sparseInto != null) {
+            sparseInto.set(featureIndex, value);
+        } else {
+            into[featureIndex] = value;
+        }
+    }
+
     /**
      * Returns noise shift (small value added to feature value) and noise scale
      * (value by which shifted feature value is multiplied)
@@ -0,0 +1,174 @@
+package ai.improve.encoder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Model feature names compiled into a trie of '.' separated path segments, e.g.
+ * "item.a.0" -> item -> a -> 0
+ *
+ * FeatureEncoder walks the trie together with the encoded object, so a feature index
+ * can be resolved without building the "item.a.0" path string, and subtrees that
+ * don't lead to any model feature can be skipped.
+ */
+final class FeaturePathTrie {
+
+    /**
+     * Feature index of the path ending at this node, or -1 if the path is not a model feature
+     */
+    int featureIndex = -1;
+
+    /**
+     * segment -> child node
+     */
+    private Map<String, FeaturePathTrie> children;
+
+    /**
+     * Children whose segments are list indices, i.e. elements[i] == children.get("" + i).
+     * Allows list elements to be resolved without converting the index to a string.
+     */
+    private FeaturePathTrie[] elements;
+
+    /**
+     * Whether some list index segment is too large to be kept in elements
+     */
+    private boolean hasLargeElements;
+
+    /**
+     * Largest list index kept in elements
+     */
+    private static final int MAX_ELEMENT_INDEX = 4095;
+
+    /**
+     * @param featureIndexes a mapping containing feature name -> feature index pairs
+     * @return root node of the trie
+     */
+    static FeaturePathTrie compile(Map<String, Integer> featureIndexes) {
+        FeaturePathTrie root = new FeaturePathTrie();
+        for (Map.Entry<String, Integer> entry : featureIndexes.entrySet()) {
+            root.insert(entry.getKey(), entry.getValue());
+        }
+        root.compileElements();
+        return root;
+    }
+
+    /**
+     * @return whether any model feature is nested below this node
+     */
+    boolean hasChildren() {
+        return children != null;
+    }
+
+    /**
+     * Returns the child node for a map key. Keys containing '.' span several trie levels, exactly
+     * like they would in a concatenated feature name.
+     * @param key map key
+     * @return child node or null if no model feature starts with this path
+     */
+    FeaturePathTrie child(String key) {
+        if (children == null) {
+            return null;
+        }
+        FeaturePathTrie node = children.get(key);
+        if (node != null || key.indexOf('.') < 0) {
+            return node;
+        }
+        return descend(key);
+    }
+
+    /**
+     * Returns the child node for a list index.
+     * @param index list index
+     * @return child node or null if no model feature starts with this path
+     */
+    FeaturePathTrie element(int index) {
+        if (elements != null && index < elements.length) {
+            return elements[index];
+        }
+        if (hasLargeElements) {
+            return children.get(Integer.toString(index));
+        }
+        return null;
+    }
+
+    private void insert(String featureName, int featureIndex) {
+        FeaturePathTrie node = this;
+        int start = 0;
+        while (true) {
+            int end = featureName.indexOf('.', start);
+            String segment = featureName.substring(start, end < 0 ? featureName.length() : end);
+            if (node.children == null) {
+                node.children = new HashMap<>();
+            }
+            FeaturePathTrie next = node.children.get(segment);
+            if (next == null) {
+                next = new FeaturePathTrie();
+                node.children.put(segment, next);
+            }
+            node = next;
+            if (end < 0) {
+                break;
+            }
+            start = end + 1;
+        }
+        node.featureIndex = featureIndex;
+    }
+
+    private void compileElements() {
+        if (children == null) {
+            return;
+        }
+        int maxIndex = -1;
+        for (Map.Entry<String, FeaturePathTrie> entry : children.entrySet()) {
+            int index = parseIndex(entry.getKey());
+            if (index > MAX_ELEMENT_INDEX) {
+                hasLargeElements = true;
+            } else if (index > maxIndex) {
+                maxIndex = index;
+            }
+            entry.getValue().compileElements();
+        }
+        if (maxIndex >= 0) {
+            elements = new FeaturePathTrie[maxIndex + 1];
+            for (int i = 0; i <= maxIndex; ++i) {
+                elements[i] = children.get(Integer.toString(i));
+            }
+        }
+    }
+
+    private FeaturePathTrie descend(String key) {
+        FeaturePathTrie node = this;
+        int start = 0;
+        while (node != null) {
+            int end = key.indexOf('.', start);
+            if (node.children == null) {
+                return null;
+            }
+            node = node.children.get(key.substring(start, end < 0 ? key.length() : end));
+            if (end < 0) {
+                break;
+            }
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * @return value of segment if it is a list index as printed by path + "." + i, otherwise -1
+     */
+    private static int parseIndex(String segment) {
+        int length = segment.length();
+        if (length == 0 || length > 10 || (length > 1 && segment.charAt(0) == '0')) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < length; ++i) {
+            char c = segment.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value > Integer.MAX_VALUE ? -1 : (int) value;
+    }
+}
@@ -0,0 +1,151 @@
+package ai.improve.encoder;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import ai.improve.util.SnapshotUtils;
+
+/**
+ * An open addressing (linear probing) hash table of non-negative long keys to double values,
+ * backed by primitive arrays.
+ * It replaces HashMap<Long, Double> where a lookup would box the key and every entry costs
+ * three objects.
+ */
+final class LongDoubleMap {
+
+    /**
+     * Marks an empty slot. Keys must be non-negative.
+     */
+    private static final long EMPTY = -1;
+
+    private static final double MAX_LOAD_FACTOR = 0.75;
+
+    private final long[] keys;
+
+    private final double[] values;
+
+    private final int mask;
+
+    private int size;
+
+    /**
+     * @param expectedSize maximum number of entries, the table is sized for a load factor <= 0.75
+     */
+    LongDoubleMap(int expectedSize) {
+        int minCapacity = Math.max((int) Math.ceil(expectedSize / MAX_LOAD_FACTOR), 2);
+        int capacity = Integer.highestOneBit(minCapacity - 1) << 1;
+        keys = new long[capacity];
+        values = new double[capacity];
+        mask = capacity - 1;
+        Arrays.fill(keys, EMPTY);
+    }
+
+    private LongDoubleMap(long[] keys, double[] values) {
+        this.keys = keys;
+        this.values = values;
+        this.mask = keys.length - 1;
+        for (long key : keys) {
+            if (key != EMPTY) {
+                size++;
+            }
+        }
+    }
+
+    /**
+     * @return approximate heap bytes of the table
+     */
+    long estimateMemory() {
+        // the object and two array headers
+        return 64 + 16L * keys.length;
+    }
+
+    /**
+     * Writes the table arrays for readSnapshot()
+     */
+    void writeSnapshot(DataOutput out) throws IOException {
+        SnapshotUtils.writeLongArray(out, keys);
+        SnapshotUtils.writeDoubleArray(out, values);
+    }
+
+    /**
+     * Reads a table written by writeSnapshot(), without rehashing its entries
+     * @throws IOException If the arrays are truncated or can't be a table
+     */
+    static LongDoubleMap readSnapshot(ByteBuffer in) throws IOException {
+        long[] keys = SnapshotUtils.readLongArray(in);
+        double[] values = SnapshotUtils.readDoubleArray(in);
+        if (keys.length < 2 || Integer.bitCount(keys.length) != 1 || values.length != keys.length) {
+            throw new IOException("Invalid snapshot, bad string table size " + keys.length);
+        }
+        LongDoubleMap map = new LongDoubleMap(keys, values);
+        // a table without empty slots would make lookups of missing keys probe forever
+        if (map.size > keys.length * MAX_LOAD_FACTOR) {
+            throw new IOException("Invalid snapshot, string table of " + keys.length + " slots has " + map.size + " entries");
+        }
+        return map;
+    }
+
+    /**
+     * Associates value with key, replacing the previous value of key if any
+     * @param key a non-negative key
+     */
+    void put(long key, double value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("key must be non-negative");
+        }
+        int slot = slotOf(key);
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] == EMPTY) {
+            if (size + 1 > keys.length * MAX_LOAD_FACTOR) {
+                throw new IllegalStateException("LongDoubleMap is full");
+            }
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * @return value of key, or defaultValue if key is not present
+     */
+    double get(long key, double defaultValue) {
+        int slot = slotOf(key);
+        long k;
+        while ((k = keys[slot]) != EMPTY) {
+            if (k == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return defaultValue;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return a copy of the entries as boxed keys and values
+     */
+    HashMap<Long, Double> toHashMap() {
+        HashMap<Long, Double> map = new HashMap<>(Math.max((int) (size / 0.75f) + 1, 16));
+        for (int slot = 0; slot < keys.length; ++slot) {
+            if (keys[slot] != EMPTY) {
+                map.put(keys[slot], values[slot]);
+            }
+        }
+        return map;
+    }
+
+    private int slotOf(long key) {
+        // keys are masked string hashes, mix them anyway so that tables with structured keys
+        // don't form long probe sequences
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,122 @@
+package ai.improve.encoder;
+
+import java.util.Arrays;
+
+import biz.k11i.xgboost.util.FVec;
+
+/**
+ * A feature vector which only stores the features that are present, as index/value pairs sorted
+ * by feature index. Missing features are NaN.
+ * Memory and encoding cost are proportional to the number of present features instead of the
+ * number of model features.
+ */
+public class SparseFVec implements FVec {
+
+    private static final long serialVersionUID = 1L;
+
+    private int[] indexes;
+
+    private double[] values;
+
+    private int size;
+
+    /**
+     * Whether indexes are sorted and free of duplicates
+     */
+    private boolean compacted = true;
+
+    SparseFVec(int capacity) {
+        indexes = new int[Math.max(capacity, 4)];
+        values = new double[indexes.length];
+    }
+
+    /**
+     * Creates a copy of other with room for additional features
+     */
+    SparseFVec(SparseFVec other, int extraCapacity) {
+        indexes = Arrays.copyOf(other.indexes, Math.max(other.size + extraCapacity, 4));
+        values = Arrays.copyOf(other.values, indexes.length);
+        size = other.size;
+        compacted = other.compacted;
+    }
+
+    /**
+     * Sets a feature value. Setting the same index twice keeps the last value, like writing
+     * into a double[] would.
+     */
+    void set(int index, double value) {
+        if (size == indexes.length) {
+            indexes = Arrays.copyOf(indexes, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        if (size > 0 && indexes[size - 1] >= index) {
+            compacted = false;
+        }
+        indexes[size] = index;
+        values[size] = value;
+        size++;
+    }
+
+    /**
+     * Sorts the features by index and drops all but the last value set for each index.
+     * Must be called before the vector is used for prediction.
+     */
+    SparseFVec compact() {
+        if (compacted) {
+            return this;
+        }
+        // sort (index, insertion order) pairs so the last value of an index comes last
+        long[] order = new long[size];
+        for (int i = 0; i < size; ++i) {
+            order[i] = ((long) indexes[i] << 32) | i;
+        }
+        Arrays.sort(order);
+
+        int[] sortedIndexes = new int[size];
+        double[] sortedValues = new double[size];
+        int n = 0;
+        for (int i = 0; i < size; ++i) {
+            int index = (int) (order[i] >>> 32);
+            double value = values[(int) order[i]];
+            if (n > 0 && sortedIndexes[n - 1] == index) {
+                sortedValues[n - 1] = value;
+            } else {
+                sortedIndexes[n] = index;
+                sortedValues[n] = value;
+                n++;
+            }
+        }
+        indexes = sortedIndexes;
+        values = sortedValues;
+        size = n;
+        compacted = true;
+        return this;
+    }
+
+    /**
+     * @return number of present features
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return feature index of the i-th present feature
+     */
+    public int indexAt(int i) {
+        return indexes[i];
+    }
+
+    /**
+     * @return value of the i-th present feature
+     */
+    public double valueAt(int i) {
+        return values[i];
+    }
+
+    @Override
+    public float fvalue(int index) {
+        int i = Arrays.binarySearch(indexes, 0, size, index);
+        return i < 0 ? Float.NaN : (float) values[i];
+    }
+}
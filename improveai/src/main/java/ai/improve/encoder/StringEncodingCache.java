@@ -0,0 +1,95 @@
+package ai.improve.encoder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded string -> encoded value cache for a StringTable.
+ *
+ * The cache is direct-mapped: each string can only live in the slot selected by its hashCode(),
+ * and storing a string evicts whichever string occupied that slot. Lookups and stores are
+ * lock free. Entries are immutable, so concurrent readers either see a complete entry or
+ * a miss.
+ */
+public final class StringEncodingCache {
+
+    private static final class Entry {
+        final String string;
+        final double value;
+
+        Entry(String string, double value) {
+            this.string = string;
+            this.value = value;
+        }
+    }
+
+    private final Entry[] entries;
+
+    private final int mask;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param capacity maximum number of cached strings, rounded up to a power of 2
+     */
+    public StringEncodingCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        }
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        entries = new Entry[size];
+        mask = size - 1;
+    }
+
+    /**
+     * @return cached encoding of string, or NaN if string is not cached
+     */
+    double get(String string) {
+        Entry entry = entries[slotOf(string)];
+        if (entry != null && entry.string.equals(string)) {
+            hits.incrementAndGet();
+            return entry.value;
+        }
+        misses.incrementAndGet();
+        return Double.NaN;
+    }
+
+    void put(String string, double value) {
+        entries[slotOf(string)] = new Entry(string, value);
+    }
+
+    /**
+     * @return maximum number of cached strings
+     */
+    public int getCapacity() {
+        return entries.length;
+    }
+
+    /**
+     * @return approximate heap bytes of the cache once it is full of short strings
+     */
+    public long estimateMemory() {
+        // a slot, an entry and the string it keeps alive
+        return 64 + (4 + 24 + 56) * (long) entries.length;
+    }
+
+    /**
+     * @return number of lookups answered from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of lookups that had to hash the string
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private int slotOf(String string) {
+        int h = string.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -1,8 +1,13 @@
 package ai.improve.encoder;
 
-import java.util.List;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.HashMap;
-import java.util.Collections;
+import java.util.List;
+
+import ai.improve.util.SnapshotUtils;
 
 
 public class StringTable {
@@ -26,14 +31,46 @@ public class StringTable {
     public double missWidth;
 
     /**
-     * target -> value encoding hash table
+     * target -> value encoding hash table, null until the first string is encoded
+     */
+    private volatile LongDoubleMap valueTable;
+
+    /**
+     * Target hashes valueTable is built from, null once it is built
+     */
+    private long[] stringTable;
+
+    /**
+     * Number of target hashes
+     */
+    private final int targetCount;
+
+    /**
+     * Optional cache of string -> encoded value, null if caching is disabled
      */
-    public HashMap<Long, Double> valueTable;
+    private volatile StringEncodingCache cache;
 
     private static final String Tag = "StringTable";
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Whether strings are hashed with the native xxhash library instead of XXHash3
+     */
+    private static volatile boolean useNativeHash = false;
+
 
     public StringTable(List<Long> jsonStringTable, long modelSeed){
+        this(toArray(jsonStringTable), modelSeed);
+    }
+
+    /**
+     * @param stringTable target hashes of the string feature, as in the model metadata. The
+     *                    hash table is built from it on the first encode(), so it must not be
+     *                    modified.
+     * @param modelSeed a non-negative 32 bit int used for xxhash3
+     */
+    public StringTable(long[] stringTable, long modelSeed){
         // init modelSeed param
         // make sure that input modelSeed is a valid result of pythonic random.getrandbits(32)
         if (modelSeed < 0) {
@@ -42,29 +79,162 @@ public class StringTable {
         this.modelSeed = modelSeed;
 
         // set mask for xxhash string encoding
-        this.mask = getMask(jsonStringTable);
+        this.mask = getMask(stringTable);
 
         // get max position in string table
-        int maxPosition = jsonStringTable.size() - 1;
+        int maxPosition = stringTable.length - 1;
 
         // empty and single entry tables will have a miss_width of 1 or range [-0.5, 0.5]
         // 2 / max_position keeps miss values from overlapping with nonzero table values
         this.missWidth = ((maxPosition < 1) ? 1 : 2 / (double) maxPosition);
-        this.valueTable = new HashMap<>();
-
-        // copy list but not elements
-        List<Long> reversedStringTable = jsonStringTable.subList(0, jsonStringTable.size());
-        // reverse copied inplace
-        Collections.reverse(reversedStringTable);
-        // iterate over reversed string table to populate target - value encoding hash table
-        for (int i = 0; i < reversedStringTable.size(); i++) {
-            this.valueTable.put(
-                    reversedStringTable.get(i),
+        this.targetCount = stringTable.length;
+
+        if (stringTable.length == 0) {
+            this.valueTable = new LongDoubleMap(0);
+        } else {
+            this.stringTable = stringTable;
+        }
+    }
+
+    /**
+     * Builds the hash table once, many models carry string tables of features which are rarely
+     * or never encoded
+     */
+    private synchronized LongDoubleMap materialize() {
+        LongDoubleMap valueTable = this.valueTable;
+        if (valueTable != null) {
+            return valueTable;
+        }
+        long[] stringTable = this.stringTable;
+
+        // get max position in string table
+        int maxPosition = stringTable.length - 1;
+        valueTable = new LongDoubleMap(stringTable.length);
+
+        // iterate over the string table in reverse order to populate target - value encoding hash table
+        for (int i = 0; i < stringTable.length; i++) {
+            long target = stringTable[maxPosition - i];
+            // masked string hashes are never negative, so negative targets can't be hit
+            if (target < 0) {
+                continue;
+            }
+            valueTable.put(
+                    target,
                     (maxPosition == 0.0) ? 1.0 : StringTable.scale( (double) i / (double) maxPosition));
         }
 
+        this.valueTable = valueTable;
+        this.stringTable = null;
+        return valueTable;
+    }
+
+    /**
+     * @return true if the hash table has been built, i.e. a string has been encoded with this
+     * table or it is empty
+     */
+    public boolean isMaterialized() {
+        return valueTable != null;
+    }
+
+    /**
+     * Builds the hash table if it isn't built yet.
+     * @return a copy of the target -> value encoding hash table, made on every call
+     * @deprecated the table is kept in primitive arrays, which this boxes. Use encode() to look
+     * up values.
+     */
+    @Deprecated
+    public HashMap<Long, Double> getValueTable() {
+        LongDoubleMap valueTable = this.valueTable;
+        if (valueTable == null) {
+            valueTable = materialize();
+        }
+        return valueTable.toHashMap();
+    }
+
+    /**
+     * @return number of target hashes, i.e. known values of the feature
+     */
+    public int getTargetCount() {
+        return targetCount;
+    }
+
+    /**
+     * @return true if the table has no targets, every string is encoded as a miss
+     */
+    public boolean isEmpty() {
+        LongDoubleMap valueTable = this.valueTable;
+        return valueTable != null && valueTable.size() == 0;
+    }
+
+    /**
+     * The target hashes are counted even once the hash table is built, since the model metadata
+     * they come from usually keeps them.
+     * @return approximate heap bytes of the table, including the cache if any
+     */
+    public long estimateMemory() {
+        LongDoubleMap valueTable = this.valueTable;
+        long bytes = 64 + 16 + 8L * targetCount;
+        if (valueTable != null) {
+            bytes += valueTable.estimateMemory();
+        }
+        StringEncodingCache cache = this.cache;
+        if (cache != null) {
+            bytes += cache.estimateMemory();
+        }
+        return bytes;
+    }
+
+    private static long[] toArray(List<Long> values) {
+        long[] array = new long[values.size()];
+        for (int i = 0; i < array.length; ++i) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+
+    private StringTable(long modelSeed, long mask, double missWidth, LongDoubleMap valueTable, long[] stringTable) {
+        this.modelSeed = modelSeed;
+        this.mask = mask;
+        this.missWidth = missWidth;
+        this.valueTable = valueTable;
+        this.stringTable = stringTable;
+        this.targetCount = valueTable != null ? valueTable.size() : stringTable.length;
+    }
+
+    /**
+     * Writes the encoding parameters and the built value table for readSnapshot(), or the
+     * target hashes if the table hasn't been built yet
+     */
+    synchronized void writeSnapshot(DataOutput out) throws IOException {
+        out.writeLong(modelSeed);
+        out.writeLong(mask);
+        out.writeDouble(missWidth);
+        out.writeBoolean(valueTable != null);
+        if (valueTable != null) {
+            valueTable.writeSnapshot(out);
+        } else {
+            SnapshotUtils.writeLongArray(out, stringTable);
+        }
     }
 
+    /**
+     * Reads a string table written by writeSnapshot(). A built value table is used as written
+     * instead of being rebuilt, otherwise it is built on the first encode() as usual.
+     */
+    static StringTable readSnapshot(ByteBuffer in) throws IOException {
+        long modelSeed = SnapshotUtils.readLong(in);
+        long mask = SnapshotUtils.readLong(in);
+        double missWidth = SnapshotUtils.readDouble(in);
+        if (SnapshotUtils.readBoolean(in)) {
+            return new StringTable(modelSeed, mask, missWidth, LongDoubleMap.readSnapshot(in), null);
+        }
+        long[] stringTable = SnapshotUtils.readLongArray(in);
+        if (stringTable.length == 0) {
+            throw new IOException("Invalid snapshot, empty string tables are always built");
+        }
+        return new StringTable(modelSeed, mask, missWidth, null, stringTable);
+    }
 
     /**
      * Encodes string hash as a miss
@@ -82,21 +252,57 @@ public class StringTable {
      * @return encoded value
      */
     public double encode(String string){
+        StringEncodingCache cache = this.cache;
+        if (cache != null) {
+            // encoded values are never NaN
+            double cached = cache.get(string);
+            if (!Double.isNaN(cached)) {
+                return cached;
+            }
+            double value = encodeUncached(string);
+            cache.put(string, value);
+            return value;
+        }
+        return encodeUncached(string);
+    }
+
+    private double encodeUncached(String string) {
         // compute xxhash3 for input string
-        long stringHash = xxhash3(string.getBytes(), this.modelSeed);
+        long stringHash = hash(string.getBytes(UTF_8), this.modelSeed);
 
         // compute mask hash because it will be used twice
         long maskedHashedString = stringHash & this.mask;
 
         // if value present in target-value encoding hash table, return it
-        if (this.valueTable.containsKey(maskedHashedString)) {
-            return this.valueTable.get(maskedHashedString);
+        // (table values are never NaN)
+        LongDoubleMap valueTable = this.valueTable;
+        if (valueTable == null) {
+            valueTable = materialize();
+        }
+        double value = valueTable.get(maskedHashedString, Double.NaN);
+        if (!Double.isNaN(value)) {
+            return value;
         }
 
         // return miss
         return this.encodeMiss(stringHash);
     }
 
+    /**
+     * Enables caching of encoded strings, or disables it if cache is null.
+     * @param cache cache to be used by this table only
+     */
+    public void setCache(StringEncodingCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return cache of encoded strings, or null if caching is disabled
+     */
+    public StringEncodingCache getCache() {
+        return cache;
+    }
+
     /**
      * helper method to calculate log2
      * @param x value to calculate log2 of
@@ -114,11 +320,21 @@ public class StringTable {
      * @return uint32 mask used for string encoding
      */
     public static long getMask(List<Long> stringTable){
-        if (stringTable.size() == 0) {
+        return getMask(toArray(stringTable));
+    }
+
+    /**
+     * @see #getMask(List)
+     */
+    public static long getMask(long[] stringTable){
+        if (stringTable.length == 0) {
             return 0;
         }
 
-        long maxValue = Collections.max(stringTable);
+        long maxValue = stringTable[0];
+        for (long value : stringTable) {
+            maxValue = Math.max(maxValue, value);
+        }
         if (maxValue == 0) {
             return 0;
         }
@@ -150,9 +366,32 @@ public class StringTable {
 
     }
 
-    public static native long xxhash3(byte[] data, long seed);
+    /**
+     * Computes xxhash3 of data, with the pure Java XXHash3 by default or with the native
+     * xxhash library if enabled with setUseNativeHash(true). Both produce the same hash.
+     * @param data bytes to hash
+     * @param seed model seed
+     * @return 64 bit xxhash3
+     */
+    public static long hash(byte[] data, long seed) {
+        if (useNativeHash) {
+            return xxhash3(data, seed);
+        }
+        return XXHash3.hash64(data, seed);
+    }
 
-    static {
-        System.loadLibrary("xxhash");
+    /**
+     * Switches string hashing between the pure Java XXHash3 (default) and the native xxhash
+     * library. The native library is loaded on first use.
+     * @param useNative true to hash with the native xxhash library
+     * @throws UnsatisfiedLinkError if the native xxhash library can't be loaded
+     */
+    public static synchronized void setUseNativeHash(boolean useNative) {
+        if (useNative) {
+            System.loadLibrary("xxhash");
+        }
+        useNativeHash = useNative;
     }
+
+    public static native long xxhash3(byte[] data, long seed);
 }
@@ -0,0 +1,365 @@
+package ai.improve.encoder;
+
+/**
+ * Pure Java implementation of the 64 bit XXH3 hash with seed, bit-exact with
+ * XXH3_64bits_withSeed() of xxHash 0.8.0 that is bundled as the native xxhash library.
+ *
+ * Input is read with explicit little-endian loads so that results don't depend on the
+ * platform byte order, and no JNI transition is needed per hash.
+ */
+public final class XXHash3 {
+
+    private static final long PRIME32_1 = 0x9E3779B1L;
+    private static final long PRIME32_2 = 0x85EBCA77L;
+    private static final long PRIME32_3 = 0xC2B2AE3DL;
+
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    private static final int SECRET_SIZE = 192;
+    private static final int SECRET_SIZE_MIN = 136;
+    private static final int STRIPE_LEN = 64;
+    private static final int SECRET_CONSUME_RATE = 8;
+    private static final int ACC_NB = 8;
+    private static final int MIDSIZE_MAX = 240;
+    private static final int MIDSIZE_STARTOFFSET = 3;
+    private static final int MIDSIZE_LASTOFFSET = 17;
+    private static final int SECRET_LASTACC_START = 7;
+    private static final int SECRET_MERGEACCS_START = 11;
+
+    private static final byte[] K_SECRET = toBytes(new int[] {
+            0xb8, 0xfe, 0x6c, 0x39, 0x23, 0xa4, 0x4b, 0xbe, 0x7c, 0x01, 0x81, 0x2c, 0xf7, 0x21, 0xad, 0x1c,
+            0xde, 0xd4, 0x6d, 0xe9, 0x83, 0x90, 0x97, 0xdb, 0x72, 0x40, 0xa4, 0xa4, 0xb7, 0xb3, 0x67, 0x1f,
+            0xcb, 0x79, 0xe6, 0x4e, 0xcc, 0xc0, 0xe5, 0x78, 0x82, 0x5a, 0xd0, 0x7d, 0xcc, 0xff, 0x72, 0x21,
+            0xb8, 0x08, 0x46, 0x74, 0xf7, 0x43, 0x24, 0x8e, 0xe0, 0x35, 0x90, 0xe6, 0x81, 0x3a, 0x26, 0x4c,
+            0x3c, 0x28, 0x52, 0xbb, 0x91, 0xc3, 0x00, 0xcb, 0x88, 0xd0, 0x65, 0x8b, 0x1b, 0x53, 0x2e, 0xa3,
+            0x71, 0x64, 0x48, 0x97, 0xa2, 0x0d, 0xf9, 0x4e, 0x38, 0x19, 0xef, 0x46, 0xa9, 0xde, 0xac, 0xd8,
+            0xa8, 0xfa, 0x76, 0x3f, 0xe3, 0x9c, 0x34, 0x3f, 0xf9, 0xdc, 0xbb, 0xc7, 0xc7, 0x0b, 0x4f, 0x1d,
+            0x8a, 0x51, 0xe0, 0x4b, 0xcd, 0xb4, 0x59, 0x31, 0xc8, 0x9f, 0x7e, 0xc9, 0xd9, 0x78, 0x73, 0x64,
+            0xea, 0xc5, 0xac, 0x83, 0x34, 0xd3, 0xeb, 0xc3, 0xc5, 0x81, 0xa0, 0xff, 0xfa, 0x13, 0x63, 0xeb,
+            0x17, 0x0d, 0xdd, 0x51, 0xb7, 0xf0, 0xda, 0x49, 0xd3, 0x16, 0x55, 0x26, 0x29, 0xd4, 0x68, 0x9e,
+            0x2b, 0x16, 0xbe, 0x58, 0x7d, 0x47, 0xa1, 0xfc, 0x8f, 0xf8, 0xb8, 0xd1, 0x7a, 0xd0, 0x31, 0xce,
+            0x45, 0xcb, 0x3a, 0x8f, 0x95, 0x16, 0x04, 0x28, 0xaf, 0xd7, 0xfb, 0xca, 0xbb, 0x4b, 0x40, 0x7e,
+    });
+
+    private XXHash3() {
+    }
+
+    /**
+     * @param input bytes to hash
+     * @param seed 64 bit seed
+     * @return XXH3 64 bit hash of input
+     */
+    public static long hash64(byte[] input, long seed) {
+        return hash64(input, 0, input.length, seed);
+    }
+
+    /**
+     * @param input bytes to hash
+     * @param offset offset of the first byte to hash
+     * @param length number of bytes to hash
+     * @param seed 64 bit seed
+     * @return XXH3 64 bit hash of input[offset, offset + length)
+     */
+    public static long hash64(byte[] input, int offset, int length, long seed) {
+        if (length <= 16) {
+            return len0To16(input, offset, length, K_SECRET, seed);
+        }
+        if (length <= 128) {
+            return len17To128(input, offset, length, K_SECRET, seed);
+        }
+        if (length <= MIDSIZE_MAX) {
+            return len129To240(input, offset, length, K_SECRET, seed);
+        }
+        return hashLong(input, offset, length, seed);
+    }
+
+    /**
+     * Incremental XXH3 64 bit hash of input fed in pieces, e.g. of a download while it is
+     * streamed to disk. digest() equals hash64() of all bytes passed to update() so far.
+     */
+    public static final class Streaming {
+        private static final int BLOCK_LEN = STRIPE_LEN * ((SECRET_SIZE - STRIPE_LEN) / SECRET_CONSUME_RATE);
+
+        private final long seed;
+
+        private final byte[] secret;
+
+        private final long[] acc = {PRIME32_3, PRIME64_1, PRIME64_2, PRIME64_3, PRIME64_4, PRIME32_2, PRIME64_5, PRIME32_1};
+
+        /**
+         * Bytes of the current block. A full block is only accumulated once more input
+         * follows, because the last block of the input is finished differently.
+         */
+        private final byte[] block = new byte[BLOCK_LEN];
+
+        private int buffered;
+
+        private long length;
+
+        /**
+         * @param seed 64 bit seed
+         */
+        public Streaming(long seed) {
+            this.seed = seed;
+            this.secret = seed == 0 ? K_SECRET : customSecret(seed);
+        }
+
+        /**
+         * Adds input[offset, offset + length) to the hashed bytes
+         */
+        public void update(byte[] input, int offset, int length) {
+            this.length += length;
+            while (length > 0) {
+                if (buffered == BLOCK_LEN) {
+                    accumulate(acc, block, 0, secret, BLOCK_LEN / STRIPE_LEN);
+                    scrambleAcc(acc, secret, SECRET_SIZE - STRIPE_LEN);
+                    buffered = 0;
+                }
+                int n = Math.min(length, BLOCK_LEN - buffered);
+                System.arraycopy(input, offset, block, buffered, n);
+                buffered += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        /**
+         * @return number of bytes hashed so far
+         */
+        public long length() {
+            return length;
+        }
+
+        /**
+         * @return XXH3 64 bit hash of the bytes so far, more can be added afterwards
+         */
+        public long digest() {
+            if (length <= MIDSIZE_MAX) {
+                return hash64(block, 0, buffered, seed);
+            }
+            long[] acc = this.acc.clone();
+            accumulate(acc, block, 0, secret, (buffered - 1) / STRIPE_LEN);
+            // the last stripe may start in the previous block, whose end is still in place
+            byte[] lastStripe = new byte[STRIPE_LEN];
+            if (buffered >= STRIPE_LEN) {
+                System.arraycopy(block, buffered - STRIPE_LEN, lastStripe, 0, STRIPE_LEN);
+            } else {
+                int previous = STRIPE_LEN - buffered;
+                System.arraycopy(block, BLOCK_LEN - previous, lastStripe, 0, previous);
+                System.arraycopy(block, 0, lastStripe, previous, buffered);
+            }
+            accumulate512(acc, lastStripe, 0, secret, SECRET_SIZE - STRIPE_LEN - SECRET_LASTACC_START);
+            return mergeAccs(acc, secret, length);
+        }
+    }
+
+    private static long len0To16(byte[] input, int off, int len, byte[] secret, long seed) {
+        if (len > 8) {
+            long bitflip1 = (readLE64(secret, 24) ^ readLE64(secret, 32)) + seed;
+            long bitflip2 = (readLE64(secret, 40) ^ readLE64(secret, 48)) - seed;
+            long inputLo = readLE64(input, off) ^ bitflip1;
+            long inputHi = readLE64(input, off + len - 8) ^ bitflip2;
+            long acc = len + Long.reverseBytes(inputLo) + inputHi + mul128Fold64(inputLo, inputHi);
+            return avalanche(acc);
+        }
+        if (len >= 4) {
+            seed ^= (Integer.reverseBytes((int) seed) & 0xFFFFFFFFL) << 32;
+            long input1 = readLE32(input, off);
+            long input2 = readLE32(input, off + len - 4);
+            long bitflip = (readLE64(secret, 8) ^ readLE64(secret, 16)) - seed;
+            long input64 = input2 + (input1 << 32);
+            return rrmxmx(input64 ^ bitflip, len);
+        }
+        if (len > 0) {
+            int c1 = input[off] & 0xFF;
+            int c2 = input[off + (len >> 1)] & 0xFF;
+            int c3 = input[off + len - 1] & 0xFF;
+            long combined = ((c1 << 16) | (c2 << 24) | c3 | (len << 8)) & 0xFFFFFFFFL;
+            long bitflip = (readLE32(secret, 0) ^ readLE32(secret, 4)) + seed;
+            return xxh64Avalanche(combined ^ bitflip);
+        }
+        return xxh64Avalanche(seed ^ (readLE64(secret, 56) ^ readLE64(secret, 64)));
+    }
+
+    private static long len17To128(byte[] input, int off, int len, byte[] secret, long seed) {
+        long acc = len * PRIME64_1;
+        if (len > 32) {
+            if (len > 64) {
+                if (len > 96) {
+                    acc += mix16B(input, off + 48, secret, 96, seed);
+                    acc += mix16B(input, off + len - 64, secret, 112, seed);
+                }
+                acc += mix16B(input, off + 32, secret, 64, seed);
+                acc += mix16B(input, off + len - 48, secret, 80, seed);
+            }
+            acc += mix16B(input, off + 16, secret, 32, seed);
+            acc += mix16B(input, off + len - 32, secret, 48, seed);
+        }
+        acc += mix16B(input, off, secret, 0, seed);
+        acc += mix16B(input, off + len - 16, secret, 16, seed);
+        return avalanche(acc);
+    }
+
+    private static long len129To240(byte[] input, int off, int len, byte[] secret, long seed) {
+        long acc = len * PRIME64_1;
+        int nbRounds = len / 16;
+        for (int i = 0; i < 8; i++) {
+            acc += mix16B(input, off + 16 * i, secret, 16 * i, seed);
+        }
+        acc = avalanche(acc);
+        for (int i = 8; i < nbRounds; i++) {
+            acc += mix16B(input, off + 16 * i, secret, 16 * (i - 8) + MIDSIZE_STARTOFFSET, seed);
+        }
+        acc += mix16B(input, off + len - 16, secret, SECRET_SIZE_MIN - MIDSIZE_LASTOFFSET, seed);
+        return avalanche(acc);
+    }
+
+    private static long hashLong(byte[] input, int off, int len, long seed) {
+        byte[] secret = seed == 0 ? K_SECRET : customSecret(seed);
+        long[] acc = {PRIME32_3, PRIME64_1, PRIME64_2, PRIME64_3, PRIME64_4, PRIME32_2, PRIME64_5, PRIME32_1};
+
+        int nbStripesPerBlock = (SECRET_SIZE - STRIPE_LEN) / SECRET_CONSUME_RATE;
+        int blockLen = STRIPE_LEN * nbStripesPerBlock;
+        int nbBlocks = (len - 1) / blockLen;
+
+        for (int n = 0; n < nbBlocks; n++) {
+            accumulate(acc, input, off + n * blockLen, secret, nbStripesPerBlock);
+            scrambleAcc(acc, secret, SECRET_SIZE - STRIPE_LEN);
+        }
+
+        int nbStripes = ((len - 1) - (blockLen * nbBlocks)) / STRIPE_LEN;
+        accumulate(acc, input, off + nbBlocks * blockLen, secret, nbStripes);
+        accumulate512(acc, input, off + len - STRIPE_LEN, secret, SECRET_SIZE - STRIPE_LEN - SECRET_LASTACC_START);
+        return mergeAccs(acc, secret, len);
+    }
+
+    private static long mergeAccs(long[] acc, byte[] secret, long len) {
+        long result = len * PRIME64_1;
+        for (int i = 0; i < 4; i++) {
+            result += mul128Fold64(
+                    acc[2 * i] ^ readLE64(secret, SECRET_MERGEACCS_START + 16 * i),
+                    acc[2 * i + 1] ^ readLE64(secret, SECRET_MERGEACCS_START + 16 * i + 8));
+        }
+        return avalanche(result);
+    }
+
+    private static byte[] customSecret(long seed) {
+        byte[] secret = new byte[SECRET_SIZE];
+        for (int i = 0; i < SECRET_SIZE / 16; i++) {
+            writeLE64(secret, 16 * i, readLE64(K_SECRET, 16 * i) + seed);
+            writeLE64(secret, 16 * i + 8, readLE64(K_SECRET, 16 * i + 8) - seed);
+        }
+        return secret;
+    }
+
+    private static void accumulate(long[] acc, byte[] input, int off, byte[] secret, int nbStripes) {
+        for (int n = 0; n < nbStripes; n++) {
+            accumulate512(acc, input, off + n * STRIPE_LEN, secret, n * SECRET_CONSUME_RATE);
+        }
+    }
+
+    private static void accumulate512(long[] acc, byte[] input, int off, byte[] secret, int secretOff) {
+        for (int i = 0; i < ACC_NB; i++) {
+            long dataVal = readLE64(input, off + 8 * i);
+            long dataKey = dataVal ^ readLE64(secret, secretOff + 8 * i);
+            acc[i ^ 1] += dataVal;
+            acc[i] += (dataKey & 0xFFFFFFFFL) * (dataKey >>> 32);
+        }
+    }
+
+    private static void scrambleAcc(long[] acc, byte[] secret, int secretOff) {
+        for (int i = 0; i < ACC_NB; i++) {
+            long acc64 = acc[i];
+            acc64 ^= acc64 >>> 47;
+            acc64 ^= readLE64(secret, secretOff + 8 * i);
+            acc64 *= PRIME32_1;
+            acc[i] = acc64;
+        }
+    }
+
+    private static long mix16B(byte[] input, int off, byte[] secret, int secretOff, long seed) {
+        long inputLo = readLE64(input, off);
+        long inputHi = readLE64(input, off + 8);
+        return mul128Fold64(
+                inputLo ^ (readLE64(secret, secretOff) + seed),
+                inputHi ^ (readLE64(secret, secretOff + 8) - seed));
+    }
+
+    /**
+     * @return low 64 bits xor high 64 bits of the unsigned 128 bit product lhs * rhs
+     */
+    private static long mul128Fold64(long lhs, long rhs) {
+        long lo = lhs * rhs;
+        long lhsLo = lhs & 0xFFFFFFFFL;
+        long lhsHi = lhs >>> 32;
+        long rhsLo = rhs & 0xFFFFFFFFL;
+        long rhsHi = rhs >>> 32;
+        long loLo = lhsLo * rhsLo;
+        long hiLo = lhsHi * rhsLo;
+        long loHi = lhsLo * rhsHi;
+        long hiHi = lhsHi * rhsHi;
+        long cross = (loLo >>> 32) + (hiLo & 0xFFFFFFFFL) + loHi;
+        long hi = (hiLo >>> 32) + (cross >>> 32) + hiHi;
+        return lo ^ hi;
+    }
+
+    private static long avalanche(long h) {
+        h ^= h >>> 37;
+        h *= 0x165667919E3779F9L;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long rrmxmx(long h, long len) {
+        h ^= Long.rotateLeft(h, 49) ^ Long.rotateLeft(h, 24);
+        h *= 0x9FB21C651E98DF25L;
+        h ^= (h >>> 35) + len;
+        h *= 0x9FB21C651E98DF25L;
+        return h ^ (h >>> 28);
+    }
+
+    private static long xxh64Avalanche(long h) {
+        h ^= h >>> 33;
+        h *= PRIME64_2;
+        h ^= h >>> 29;
+        h *= PRIME64_3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private static long readLE64(byte[] b, int i) {
+        return (b[i] & 0xFFL)
+                | (b[i + 1] & 0xFFL) << 8
+                | (b[i + 2] & 0xFFL) << 16
+                | (b[i + 3] & 0xFFL) << 24
+                | (b[i + 4] & 0xFFL) << 32
+                | (b[i + 5] & 0xFFL) << 40
+                | (b[i + 6] & 0xFFL) << 48
+                | (b[i + 7] & 0xFFL) << 56;
+    }
+
+    private static long readLE32(byte[] b, int i) {
+        return (b[i] & 0xFFL)
+                | (b[i + 1] & 0xFFL) << 8
+                | (b[i + 2] & 0xFFL) << 16
+                | (b[i + 3] & 0xFFL) << 24;
+    }
+
+    private static void writeLE64(byte[] b, int i, long v) {
+        for (int k = 0; k < 8; k++) {
+            b[i + k] = (byte) (v >>> (8 * k));
+        }
+    }
+
+    private static byte[] toBytes(int[] values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
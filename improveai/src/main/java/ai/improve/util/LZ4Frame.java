@@ -0,0 +1,353 @@
+package ai.improve.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Pure Java decoder of the LZ4 frame format (version 1.6.x of the specification), i.e. of files
+ * written by the lz4 command line tool and LZ4F_compressFrame().
+ *
+ * Supports independent and linked blocks, uncompressed blocks, block and content checksums,
+ * the content size field, and concatenated and skippable frames. Dictionaries and the legacy
+ * frame format aren't supported.
+ */
+public final class LZ4Frame {
+
+    private static final int MAGIC = 0x184D2204;
+
+    private static final int SKIPPABLE_MAGIC = 0x184D2A50;
+
+    private static final int SKIPPABLE_MAGIC_MASK = 0xFFFFFFF0;
+
+    private static final int MIN_MATCH = 4;
+
+    /**
+     * Arrays can't be quite as long as Integer.MAX_VALUE on all VMs
+     */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * Upper bound of the bytes a compressed byte decodes to: a match length grows by at most
+     * 255 per byte
+     */
+    private static final int MAX_COMPRESSION_RATIO = 255;
+
+    private static final int PRIME32_1 = 0x9E3779B1;
+    private static final int PRIME32_2 = 0x85EBCA77;
+    private static final int PRIME32_3 = 0xC2B2AE3D;
+    private static final int PRIME32_4 = 0x27D4EB2F;
+    private static final int PRIME32_5 = 0x165667B1;
+
+    private LZ4Frame() {
+    }
+
+    /**
+     * @return true if the remaining bytes of the buffer start with the magic number of an LZ4
+     * frame or of a skippable frame
+     */
+    public static boolean isFrame(ByteBuffer buffer) {
+        if (buffer.remaining() < 4) {
+            return false;
+        }
+        int magic = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(buffer.position());
+        return magic == MAGIC || (magic & SKIPPABLE_MAGIC_MASK) == SKIPPABLE_MAGIC;
+    }
+
+    /**
+     * Decompresses all frames of the buffer. Doesn't change the buffer's position.
+     * @param source LZ4 frames from the buffer's position to its limit
+     * @return the decompressed bytes of all frames
+     * @throws IOException If the frames are malformed or truncated, their checksums don't match,
+     * or they use features this decoder doesn't support
+     */
+    public static byte[] decompress(ByteBuffer source) throws IOException {
+        byte[] src;
+        int sp;
+        int srcEnd;
+        if (source.hasArray()) {
+            src = source.array();
+            sp = source.arrayOffset() + source.position();
+            srcEnd = sp + source.remaining();
+        } else {
+            // typically mapped, the compressed bytes are a fraction of the decompressed ones
+            src = new byte[source.remaining()];
+            source.duplicate().get(src);
+            sp = 0;
+            srcEnd = src.length;
+        }
+        ByteBuffer in = ByteBuffer.wrap(src).order(ByteOrder.LITTLE_ENDIAN);
+
+        byte[] dst = new byte[0];
+        int dp = 0;
+        boolean first = true;
+        while (sp < srcEnd) {
+            if (srcEnd - sp < 4) {
+                throw new EOFException("truncated LZ4 frame");
+            }
+            int magic = in.getInt(sp);
+            sp += 4;
+            if ((magic & SKIPPABLE_MAGIC_MASK) == SKIPPABLE_MAGIC) {
+                if (srcEnd - sp < 4) {
+                    throw new EOFException("truncated skippable frame");
+                }
+                long size = in.getInt(sp) & 0xFFFFFFFFL;
+                if (size > srcEnd - sp - 4) {
+                    throw new EOFException("truncated skippable frame");
+                }
+                sp += 4 + (int) size;
+                first = false;
+                continue;
+            }
+            if (magic != MAGIC) {
+                throw new IOException(first ? "not an LZ4 frame" : "unexpected bytes after LZ4 frame");
+            }
+            first = false;
+
+            // frame descriptor
+            if (srcEnd - sp < 3) {
+                throw new EOFException("truncated LZ4 frame descriptor");
+            }
+            int descriptorStart = sp;
+            int flags = src[sp++] & 0xFF;
+            int blockDescriptor = src[sp++] & 0xFF;
+            if ((flags >>> 6) != 1) {
+                throw new IOException("unsupported LZ4 frame version " + (flags >>> 6));
+            }
+            if ((flags & 0x02) != 0 || (blockDescriptor & 0x8F) != 0) {
+                throw new IOException("reserved bits set in LZ4 frame descriptor");
+            }
+            boolean independentBlocks = (flags & 0x20) != 0;
+            boolean blockChecksum = (flags & 0x10) != 0;
+            boolean hasContentSize = (flags & 0x08) != 0;
+            boolean contentChecksum = (flags & 0x04) != 0;
+            if ((flags & 0x01) != 0) {
+                throw new IOException("LZ4 frames with a dictionary aren't supported");
+            }
+            int blockSizeId = blockDescriptor >>> 4;
+            if (blockSizeId < 4) {
+                throw new IOException("invalid LZ4 block size " + blockSizeId);
+            }
+            int maxBlockSize = 1 << (8 + 2 * blockSizeId);
+
+            long contentSize = -1;
+            if (hasContentSize) {
+                if (srcEnd - sp < 9) {
+                    throw new EOFException("truncated LZ4 frame descriptor");
+                }
+                contentSize = in.getLong(sp);
+                sp += 8;
+                if (contentSize < 0 || contentSize > MAX_ARRAY_SIZE - dp) {
+                    throw new IOException("LZ4 frame content is too large: " + contentSize + " bytes");
+                }
+            }
+            if (srcEnd - sp < 1) {
+                throw new EOFException("truncated LZ4 frame descriptor");
+            }
+            int headerChecksum = src[sp] & 0xFF;
+            if (headerChecksum != ((xxhash32(src, descriptorStart, sp - descriptorStart, 0) >>> 8) & 0xFF)) {
+                throw new IOException("LZ4 frame descriptor checksum mismatch");
+            }
+            sp++;
+
+            if (contentSize >= 0) {
+                // the descriptor checksum has only 8 bits, so a corrupt content size only
+                // preallocates as much as the rest of the source can decompress to
+                long maxContentSize = (long) MAX_COMPRESSION_RATIO * (srcEnd - sp);
+                dst = grow(dst, dp + (int) Math.min(contentSize, maxContentSize));
+            }
+
+            int frameStart = dp;
+            while (true) {
+                if (srcEnd - sp < 4) {
+                    throw new EOFException("truncated LZ4 frame");
+                }
+                int blockHeader = in.getInt(sp);
+                sp += 4;
+                if (blockHeader == 0) {
+                    break;
+                }
+                boolean uncompressed = (blockHeader & 0x80000000) != 0;
+                int blockSize = blockHeader & 0x7FFFFFFF;
+                if (blockSize > maxBlockSize) {
+                    throw new IOException("LZ4 block of " + blockSize + " bytes exceeds the maximum block size");
+                }
+                if (blockSize > srcEnd - sp - (blockChecksum ? 4 : 0)) {
+                    throw new EOFException("truncated LZ4 block");
+                }
+                if (blockChecksum) {
+                    if (in.getInt(sp + blockSize) != xxhash32(src, sp, blockSize, 0)) {
+                        throw new IOException("LZ4 block checksum mismatch");
+                    }
+                }
+
+                long blockLimit = (long) dp + maxBlockSize;
+                long frameLimit = MAX_ARRAY_SIZE;
+                if (contentSize >= 0) {
+                    // the content size is a promise, more bytes would be malformed
+                    frameLimit = frameStart + contentSize;
+                    blockLimit = Math.min(blockLimit, frameLimit);
+                }
+                if (blockLimit > dst.length) {
+                    if (blockLimit > MAX_ARRAY_SIZE) {
+                        throw new IOException("LZ4 frame content is too large");
+                    }
+                    dst = grow(dst, (int) Math.max(blockLimit, Math.min(frameLimit, 2L * dst.length)));
+                }
+                int dstLimit = (int) blockLimit;
+
+                if (uncompressed) {
+                    if (blockSize > dstLimit - dp) {
+                        throw new IOException("LZ4 frame content exceeds its content size");
+                    }
+                    System.arraycopy(src, sp, dst, dp, blockSize);
+                    dp += blockSize;
+                } else {
+                    dp = decompressBlock(src, sp, sp + blockSize, dst, dp, dstLimit, independentBlocks ? dp : frameStart);
+                }
+                sp += blockSize + (blockChecksum ? 4 : 0);
+            }
+
+            if (contentChecksum) {
+                if (srcEnd - sp < 4) {
+                    throw new EOFException("truncated LZ4 frame checksum");
+                }
+                if (in.getInt(sp) != xxhash32(dst, frameStart, dp - frameStart, 0)) {
+                    throw new IOException("LZ4 content checksum mismatch");
+                }
+                sp += 4;
+            }
+            if (contentSize >= 0 && dp - frameStart != contentSize) {
+                throw new IOException("LZ4 frame content is shorter than its content size");
+            }
+        }
+        if (first) {
+            throw new EOFException("empty LZ4 source");
+        }
+        return dp == dst.length ? dst : Arrays.copyOf(dst, dp);
+    }
+
+    private static byte[] grow(byte[] array, int capacity) {
+        return capacity <= array.length ? array : Arrays.copyOf(array, capacity);
+    }
+
+    /**
+     * Decompresses an LZ4 block into dst.
+     * @param windowStart matches can't reach before it: the start of the frame for linked
+     *                    blocks, the start of the block for independent ones
+     * @return the end of the decompressed bytes in dst
+     */
+    private static int decompressBlock(byte[] src, int sp, int srcEnd, byte[] dst, int dp, int dstEnd, int windowStart) throws IOException {
+        while (true) {
+            if (sp >= srcEnd) {
+                throw new IOException("malformed LZ4 block");
+            }
+            int token = src[sp++] & 0xFF;
+
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int b;
+                do {
+                    if (sp >= srcEnd) {
+                        throw new IOException("malformed LZ4 block");
+                    }
+                    b = src[sp++] & 0xFF;
+                    literalLength += b;
+                } while (b == 255 && literalLength > 0);
+            }
+            if (literalLength < 0 || literalLength > srcEnd - sp || literalLength > dstEnd - dp) {
+                throw new IOException("malformed LZ4 block");
+            }
+            System.arraycopy(src, sp, dst, dp, literalLength);
+            sp += literalLength;
+            dp += literalLength;
+            if (sp == srcEnd) {
+                // the last sequence has no match
+                return dp;
+            }
+
+            if (srcEnd - sp < 2) {
+                throw new IOException("malformed LZ4 block");
+            }
+            int offset = (src[sp] & 0xFF) | (src[sp + 1] & 0xFF) << 8;
+            sp += 2;
+            if (offset == 0 || offset > dp - windowStart) {
+                throw new IOException("malformed LZ4 block");
+            }
+
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (sp >= srcEnd) {
+                        throw new IOException("malformed LZ4 block");
+                    }
+                    b = src[sp++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255 && matchLength > 0);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength < MIN_MATCH || matchLength > dstEnd - dp) {
+                throw new IOException("malformed LZ4 block");
+            }
+
+            int from = dp - offset;
+            if (offset >= matchLength) {
+                System.arraycopy(dst, from, dst, dp, matchLength);
+                dp += matchLength;
+            } else {
+                // overlapping match, repeats the last offset bytes. Each copy doubles the
+                // bytes that can be copied at once.
+                int end = dp + matchLength;
+                while (dp < end) {
+                    int n = Math.min(dp - from, end - dp);
+                    System.arraycopy(dst, from, dst, dp, n);
+                    dp += n;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the 32 bit xxHash of the bytes, as used for LZ4 checksums
+     */
+    static int xxhash32(byte[] input, int off, int len, int seed) {
+        ByteBuffer in = ByteBuffer.wrap(input).order(ByteOrder.LITTLE_ENDIAN);
+        int end = off + len;
+        int h;
+        if (len >= 16) {
+            int v1 = seed + PRIME32_1 + PRIME32_2;
+            int v2 = seed + PRIME32_2;
+            int v3 = seed;
+            int v4 = seed - PRIME32_1;
+            int limit = end - 16;
+            do {
+                v1 = Integer.rotateLeft(v1 + in.getInt(off) * PRIME32_2, 13) * PRIME32_1;
+                v2 = Integer.rotateLeft(v2 + in.getInt(off + 4) * PRIME32_2, 13) * PRIME32_1;
+                v3 = Integer.rotateLeft(v3 + in.getInt(off + 8) * PRIME32_2, 13) * PRIME32_1;
+                v4 = Integer.rotateLeft(v4 + in.getInt(off + 12) * PRIME32_2, 13) * PRIME32_1;
+                off += 16;
+            } while (off <= limit);
+            h = Integer.rotateLeft(v1, 1) + Integer.rotateLeft(v2, 7) + Integer.rotateLeft(v3, 12) + Integer.rotateLeft(v4, 18);
+        } else {
+            h = seed + PRIME32_5;
+        }
+        h += len;
+        while (off + 4 <= end) {
+            h = Integer.rotateLeft(h + in.getInt(off) * PRIME32_3, 17) * PRIME32_4;
+            off += 4;
+        }
+        while (off < end) {
+            h = Integer.rotateLeft(h + (input[off] & 0xFF) * PRIME32_5, 11) * PRIME32_1;
+            off++;
+        }
+        h ^= h >>> 15;
+        h *= PRIME32_2;
+        h ^= h >>> 13;
+        h *= PRIME32_3;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,142 @@
+package ai.improve.util;
+
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Helpers for writing snapshots of loaded models with a DataOutput and reading them back from a
+ * (typically memory mapped) ByteBuffer. Values are big endian, arrays and strings are prefixed
+ * with their int length.
+ */
+public class SnapshotUtils {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(ByteBuffer in) throws IOException {
+        int length = readLength(in, 1);
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            value = new String(bytes, UTF_8);
+        }
+        return value;
+    }
+
+    public static void writeIntArray(DataOutput out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    public static int[] readIntArray(ByteBuffer in) throws IOException {
+        int[] values = new int[readLength(in, 4)];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + values.length * 4);
+        return values;
+    }
+
+    public static void writeFloatArray(DataOutput out, float[] values) throws IOException {
+        out.writeInt(values.length);
+        for (float value : values) {
+            out.writeFloat(value);
+        }
+    }
+
+    public static float[] readFloatArray(ByteBuffer in) throws IOException {
+        float[] values = new float[readLength(in, 4)];
+        in.asFloatBuffer().get(values);
+        in.position(in.position() + values.length * 4);
+        return values;
+    }
+
+    public static void writeLongArray(DataOutput out, long[] values) throws IOException {
+        out.writeInt(values.length);
+        for (long value : values) {
+            out.writeLong(value);
+        }
+    }
+
+    public static long[] readLongArray(ByteBuffer in) throws IOException {
+        long[] values = new long[readLength(in, 8)];
+        in.asLongBuffer().get(values);
+        in.position(in.position() + values.length * 8);
+        return values;
+    }
+
+    public static void writeDoubleArray(DataOutput out, double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    public static double[] readDoubleArray(ByteBuffer in) throws IOException {
+        double[] values = new double[readLength(in, 8)];
+        in.asDoubleBuffer().get(values);
+        in.position(in.position() + values.length * 8);
+        return values;
+    }
+
+    /**
+     * Reads an int, throwing EOFException instead of BufferUnderflowException if the buffer is
+     * exhausted
+     */
+    public static int readInt(ByteBuffer in) throws IOException {
+        require(in, 4);
+        return in.getInt();
+    }
+
+    public static boolean readBoolean(ByteBuffer in) throws IOException {
+        require(in, 1);
+        return in.get() != 0;
+    }
+
+    public static long readLong(ByteBuffer in) throws IOException {
+        require(in, 8);
+        return in.getLong();
+    }
+
+    public static float readFloat(ByteBuffer in) throws IOException {
+        require(in, 4);
+        return in.getFloat();
+    }
+
+    public static double readDouble(ByteBuffer in) throws IOException {
+        require(in, 8);
+        return in.getDouble();
+    }
+
+    /**
+     * Reads the length of an array of elements of elementSize bytes and checks that the buffer
+     * holds all of them, so that a corrupt length can't trigger a huge allocation
+     */
+    private static int readLength(ByteBuffer in, int elementSize) throws IOException {
+        int length = readInt(in);
+        if (length < 0) {
+            throw new IOException("Invalid snapshot, negative length " + length);
+        }
+        require(in, (long) length * elementSize);
+        return length;
+    }
+
+    private static void require(ByteBuffer in, long numBytes) throws EOFException {
+        if (in.remaining() < numBytes) {
+            throw new EOFException("Snapshot is truncated, expected " + numBytes + " bytes, "
+                    + in.remaining() + " remaining");
+        }
+    }
+}
@@ -3,9 +3,6 @@ package ai.improve.util;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 public class Utils {
@@ -48,25 +45,191 @@ public class Utils {
             throw new IllegalArgumentException("variants.size() must be equal to scores.size()");
         }
 
-        Integer[] indices = new Integer[variants.size()];
-        for(int i = 0; i < variants.size(); ++i) {
-            indices[i] = i;
+        double[] primitiveScores = new double[scores.size()];
+        for(int i = 0; i < primitiveScores.length; ++i) {
+            primitiveScores[i] = scores.get(i);
         }
+        return rank(variants, primitiveScores);
+    }
+
+    /**
+     * This method is likely to be changed in the future. Try not to use it in your code.
+     * @param variants A list of variants to be ranked.
+     * @param scores Scores of the variants.
+     * @return a list of the variants ranked from best to worst by scores
+     * @throws IllegalArgumentException Thrown if variants or scores is null; Thrown if
+     * variants.size() not equal to scores.length.
+     * @hidden
+     */
+    public static <T> List<T> rank(List<T> variants, double[] scores) {
+        checkRankArguments(variants, scores);
+        return select(variants, rankIndexes(scores));
+    }
+
+    /**
+     * This method is likely to be changed in the future. Try not to use it in your code.
+     * @param variants A list of variants to be ranked.
+     * @param scores Scores of the variants.
+     * @param k maximum number of variants to return
+     * @return the best k variants ranked from best to worst by scores, the same as the first k
+     * variants of rank()
+     * @throws IllegalArgumentException Thrown if variants or scores is null; Thrown if
+     * variants.size() not equal to scores.length; Thrown if k is negative.
+     * @hidden
+     */
+    public static <T> List<T> rankTopK(List<T> variants, double[] scores, int k) {
+        checkRankArguments(variants, scores);
+        return select(variants, topKIndexes(scores, k));
+    }
+
+    /**
+     * Sorts indexes by score without boxing. Scores are compared like Double.compare() and
+     * equal scores keep their order, like the stable sort of rank() always did.
+     * @param scores scores to rank
+     * @return indexes of scores ranked from highest to lowest score
+     * @hidden
+     */
+    public static int[] rankIndexes(double[] scores) {
+        long[] keys = sortKeys(scores);
+        int[] indexes = new int[scores.length];
+        for(int i = 0; i < indexes.length; ++i) {
+            indexes[i] = i;
+        }
+        mergeSort(keys, indexes, new int[indexes.length], 0, indexes.length);
+        return indexes;
+    }
 
-        Arrays.sort(indices, Collections.reverseOrder(new Comparator<>() {
-            public int compare(Integer obj1, Integer obj2) {
-                return Double.compare(scores.get(obj1), scores.get(obj2));
+    /**
+     * Selects the indexes of the k highest scores with a bounded heap, in O(n log k) time.
+     * @param scores scores to rank
+     * @param k maximum number of indexes to return
+     * @return the first min(k, scores.length) indexes of rankIndexes(scores)
+     * @throws IllegalArgumentException Thrown if k is negative.
+     * @hidden
+     */
+    public static int[] topKIndexes(double[] scores, int k) {
+        if(k < 0) {
+            throw new IllegalArgumentException("k can't be negative");
+        }
+        long[] keys = sortKeys(scores);
+        int size = Math.min(k, scores.length);
+
+        // the root of the heap is the kept index which ranks last
+        int[] heap = new int[size];
+        for(int i = 0; i < size; ++i) {
+            heap[i] = i;
+            siftUp(keys, heap, i);
+        }
+        for(int i = size; i < scores.length && size > 0; ++i) {
+            if(ranksBefore(keys, i, heap[0])) {
+                heap[0] = i;
+                siftDown(keys, heap, 0, size);
             }
-        }));
+        }
+
+        // move the last ranked index to the end until the heap is sorted from best to worst
+        for(int end = size - 1; end > 0; --end) {
+            int last = heap[0];
+            heap[0] = heap[end];
+            heap[end] = last;
+            siftDown(keys, heap, 0, end);
+        }
+        return heap;
+    }
 
-        List<T> result = new ArrayList<>(variants.size());
-        for(int i = 0; i < indices.length; ++i) {
-            result.add(variants.get(indices[i]));
+    private static void checkRankArguments(List<?> variants, double[] scores) {
+        if(variants == null || scores == null) {
+            throw new IllegalArgumentException("variants or scores can't be null");
         }
 
+        if(variants.size() != scores.length) {
+            throw new IllegalArgumentException("variants.size() must be equal to scores.size()");
+        }
+    }
+
+    private static <T> List<T> select(List<T> variants, int[] indexes) {
+        List<T> result = new ArrayList<>(indexes.length);
+        for(int i = 0; i < indexes.length; ++i) {
+            result.add(variants.get(indexes[i]));
+        }
         return result;
     }
 
+    /**
+     * @return longs which compare like Double.compare() compares scores
+     */
+    private static long[] sortKeys(double[] scores) {
+        long[] keys = new long[scores.length];
+        for(int i = 0; i < scores.length; ++i) {
+            long bits = Double.doubleToLongBits(scores[i]);
+            // flip the magnitude bits of negative numbers so that they order as two's complement
+            keys[i] = bits ^ ((bits >> 63) & Long.MAX_VALUE);
+        }
+        return keys;
+    }
+
+    /**
+     * @return whether index a ranks before index b: a higher score, or an equal score and a
+     * lower index
+     */
+    private static boolean ranksBefore(long[] keys, int a, int b) {
+        return keys[a] > keys[b] || (keys[a] == keys[b] && a < b);
+    }
+
+    private static void mergeSort(long[] keys, int[] indexes, int[] buffer, int from, int to) {
+        if(to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(keys, indexes, buffer, from, mid);
+        mergeSort(keys, indexes, buffer, mid, to);
+        if(!ranksBefore(keys, indexes[mid], indexes[mid - 1])) {
+            return;
+        }
+        System.arraycopy(indexes, from, buffer, from, to - from);
+        int i = from;
+        int j = mid;
+        for(int n = from; n < to; ++n) {
+            if(j >= to || (i < mid && ranksBefore(keys, buffer[i], buffer[j]))) {
+                indexes[n] = buffer[i++];
+            } else {
+                indexes[n] = buffer[j++];
+            }
+        }
+    }
+
+    private static void siftUp(long[] keys, int[] heap, int i) {
+        int index = heap[i];
+        while(i > 0) {
+            int parent = (i - 1) >>> 1;
+            if(!ranksBefore(keys, heap[parent], index)) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = index;
+    }
+
+    private static void siftDown(long[] keys, int[] heap, int i, int size) {
+        int index = heap[i];
+        while(true) {
+            int child = 2 * i + 1;
+            if(child >= size) {
+                break;
+            }
+            if(child + 1 < size && ranksBefore(keys, heap[child], heap[child + 1])) {
+                child++;
+            }
+            if(!ranksBefore(keys, index, heap[child])) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = index;
+    }
+
     public static boolean isValidModelName(String modelName) {
         return modelName != null && modelName.matches("^[a-zA-Z0-9][\\w\\-.]{0,63}$");
     }
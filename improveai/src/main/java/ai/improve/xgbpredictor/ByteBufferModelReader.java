@@ -0,0 +1,351 @@
+package ai.improve.xgbpredictor;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.concurrent.FutureTask;
+
+import biz.k11i.xgboost.util.ModelReader;
+
+/**
+ * A ModelReader which parses a model straight from a ByteBuffer, typically a MappedByteBuffer of
+ * a model file, instead of copying every value through a stream into an intermediate buffer.
+ * Values are read with the same byte order and produce the same results and errors as
+ * ModelReader does for the same bytes.
+ */
+class ByteBufferModelReader extends ModelReader {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+
+    /**
+     * Bytes of buffer written so far if it is still being filled, null if it is complete
+     */
+    private final Progress progress;
+
+    /**
+     * @param buffer model bytes from its position to its limit. The reader reads from a
+     *               little endian duplicate, buffer itself is left untouched.
+     */
+    ByteBufferModelReader(ByteBuffer buffer) {
+        this(buffer, null);
+    }
+
+    /**
+     * @param progress reads wait until the bytes they need have been written, null if buffer
+     *                 is complete
+     */
+    ByteBufferModelReader(ByteBuffer buffer, Progress progress) {
+        super(new ByteArrayInputStream(new byte[0]));
+        this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.progress = progress;
+    }
+
+    /**
+     * @return a reader of the same bytes starting at an absolute position of the buffer
+     */
+    ByteBufferModelReader readerAt(int position) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position);
+        return new ByteBufferModelReader(duplicate, progress);
+    }
+
+    /**
+     * @return absolute position of the next byte in the buffer
+     */
+    int position() {
+        return buffer.position();
+    }
+
+    /**
+     * @return true if all bytes of the buffer have been written, false while it is being filled
+     */
+    boolean isComplete() {
+        return progress == null;
+    }
+
+    /**
+     * @return absolute index of the end of the model bytes
+     */
+    int limit() {
+        return buffer.limit();
+    }
+
+    @Override
+    public int readByteAsInt() throws IOException {
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        require(1, "byte");
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public byte[] readByteArray(int numBytes) throws IOException {
+        require(numBytes, "byte array");
+        byte[] bytes = new byte[numBytes];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        require(4, "int");
+        return buffer.getInt();
+    }
+
+    @Override
+    public int readIntBE() throws IOException {
+        require(4, "int");
+        return Integer.reverseBytes(buffer.getInt());
+    }
+
+    @Override
+    public int[] readIntArray(int numValues) throws IOException {
+        require(numValues * 4L, "int array");
+        int[] values = new int[numValues];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + numValues * 4);
+        return values;
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        require(8, "long");
+        return buffer.getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        require(4, "float");
+        return buffer.getFloat();
+    }
+
+    @Override
+    public float[] readFloatArray(int numValues) throws IOException {
+        require(numValues * 4L, "float array");
+        float[] values = new float[numValues];
+        buffer.asFloatBuffer().get(values);
+        buffer.position(buffer.position() + numValues * 4);
+        return values;
+    }
+
+    @Override
+    public double[] readDoubleArrayBE(int numValues) throws IOException {
+        require(numValues * 8L, "double array");
+        double[] values = new double[numValues];
+        buffer.duplicate().order(ByteOrder.BIG_ENDIAN).asDoubleBuffer().get(values);
+        buffer.position(buffer.position() + numValues * 8);
+        return values;
+    }
+
+    @Override
+    public void skip(long numBytes) throws IOException {
+        long skipped = Math.max(0, Math.min(numBytes, buffer.remaining()));
+        await(skipped);
+        buffer.position(buffer.position() + (int) skipped);
+        if (skipped < numBytes) {
+            throw new IOException("Cannot skip bytes: " + skipped);
+        }
+    }
+
+    @Override
+    public String readString(int numBytes) throws IOException {
+        if (buffer.remaining() < numBytes) {
+            throw new IOException(String.format("Cannot read string(%d) (shortage): %d", numBytes, buffer.remaining()));
+        }
+        await(numBytes);
+        String s;
+        if (buffer.hasArray()) {
+            s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), numBytes, UTF_8);
+            buffer.position(buffer.position() + numBytes);
+        } else {
+            byte[] bytes = new byte[numBytes];
+            buffer.get(bytes);
+            s = new String(bytes, UTF_8);
+        }
+        return s;
+    }
+
+    @Override
+    public String readUTF(int numBytes) throws IOException {
+        require(numBytes, "UTF string bytes");
+        // DataInputStream decodes the same modified UTF-8 as ModelReader
+        byte[] bytes = new byte[numBytes + 2];
+        bytes[0] = (byte) (numBytes >>> 8);
+        bytes[1] = (byte) numBytes;
+        buffer.get(bytes, 2, numBytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void require(long numBytes, String what) throws IOException {
+        if (buffer.remaining() < numBytes) {
+            throw new EOFException(String.format("Cannot read %s (shortage): expected = %d, actual = %d",
+                    what, numBytes, buffer.remaining()));
+        }
+        await(numBytes);
+    }
+
+    /**
+     * Waits until the bytes up to an absolute position have been written
+     */
+    void awaitAvailable(long end) throws IOException {
+        if (progress != null) {
+            progress.await(end);
+        }
+    }
+
+    private void await(long numBytes) throws IOException {
+        if (progress != null) {
+            progress.await(buffer.position() + numBytes);
+        }
+    }
+
+    /**
+     * Tracks how much of a buffer has been written by a producer, e.g. while a model is being
+     * decompressed into it, so that readers can parse the bytes written so far
+     */
+    static final class Progress {
+        /**
+         * Volatile so that reads of bytes written long ago don't take the lock
+         */
+        private volatile int available;
+
+        private boolean finished;
+
+        private IOException failure;
+
+        private long finishTime;
+
+        /**
+         * Set once a reader was interrupted, the producer should stop writing
+         */
+        private volatile boolean stopped;
+
+        /**
+         * Task producing the bytes, run by a reader which needs bytes before it has started
+         */
+        private volatile FutureTask<?> producer;
+
+        /**
+         * @param producer a FutureTask, so that running it again or while it runs does nothing
+         */
+        void setProducer(FutureTask<?> producer) {
+            this.producer = producer;
+        }
+
+        private void runProducer() {
+            FutureTask<?> producer = this.producer;
+            if (producer != null) {
+                producer.run();
+            }
+        }
+
+        /**
+         * @return true if the producer should stop, the progress is then already finished
+         */
+        boolean isStopped() {
+            return stopped;
+        }
+
+        /**
+         * Called by a reader which is interrupted while waiting, i.e. before the progress is
+         * finished. Finishes it so that the other readers fail too, and keeps the producer
+         * from running or, if it is running, has it stop at its next check of isStopped().
+         */
+        private synchronized InterruptedIOException stop() {
+            InterruptedIOException failure = new InterruptedIOException("interrupted while loading the model");
+            finish(failure);
+            stopped = true;
+            FutureTask<?> producer = this.producer;
+            if (producer != null) {
+                producer.cancel(false);
+            }
+            Thread.currentThread().interrupt();
+            return failure;
+        }
+
+        /**
+         * Called by the producer after writing bytes up to end
+         */
+        synchronized void advance(int end) {
+            available = end;
+            notifyAll();
+        }
+
+        /**
+         * Called by the producer once all bytes have been written, or with the reason it
+         * stopped. Readers waiting for more bytes then fail. Ignored once a reader stopped
+         * the progress.
+         */
+        synchronized void finish(IOException failure) {
+            if (finished) {
+                return;
+            }
+            this.finished = true;
+            this.failure = failure;
+            this.finishTime = System.nanoTime();
+            notifyAll();
+        }
+
+        void await(long end) throws IOException {
+            if (end <= available) {
+                return;
+            }
+            runProducer();
+            awaitSlowly(end);
+        }
+
+        private synchronized void awaitSlowly(long end) throws IOException {
+            while (available < end && !finished) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw stop();
+                }
+            }
+            if (available < end) {
+                throw failure != null ? failure : new EOFException("Model is truncated");
+            }
+        }
+
+        /**
+         * @return System.nanoTime() when the producer finished
+         */
+        synchronized long finishTime() {
+            return finishTime;
+        }
+
+        /**
+         * Waits for the producer to finish
+         * @throws IOException the reason it failed
+         */
+        void awaitFinished() throws IOException {
+            runProducer();
+            awaitFinishedSlowly();
+        }
+
+        private synchronized void awaitFinishedSlowly() throws IOException {
+            while (!finished) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw stop();
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package ai.improve.xgbpredictor;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import ai.improve.util.SnapshotUtils;
+import biz.k11i.xgboost.gbm.GBTree;
+import biz.k11i.xgboost.gbm.GradBooster;
+import biz.k11i.xgboost.tree.RegTree;
+import biz.k11i.xgboost.tree.RegTreeNode;
+import biz.k11i.xgboost.util.FVec;
+
+/**
+ * The trees of a GBTree booster flattened into primitive arrays (structure of arrays).
+ * Nodes of all trees are stored back to back, so predicting walks a few contiguous
+ * arrays instead of chasing node objects across the heap.
+ *
+ * Predictions are bit-identical to GBTree.predictSingle(): trees are visited and their
+ * leaf values summed in the same order with the same float arithmetic.
+ *
+ * Generating JVM bytecode with the split conditions as constants was tried and dropped:
+ * scoring a row at a time through the generated code wasn't faster than predictBatch(),
+ * even for 20 trees of depth 4.
+ */
+public class FlatTreeEnsemble implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of rows predictBatch() runs all trees over before moving on to the next rows,
+     * so that both the trees and the feature rows of a block stay in cache
+     */
+    private static final int BATCH_BLOCK_SIZE = 64;
+
+    /**
+     * Per node: -1 for leaves, otherwise (split feature index << 1) | default left bit
+     */
+    private final int[] splits;
+
+    /**
+     * Per node: split condition for inner nodes, leaf value for leaves
+     */
+    private final float[] values;
+
+    /**
+     * Per node: absolute index of the left / right child node
+     */
+    private final int[] leftChildren;
+
+    private final int[] rightChildren;
+
+    /**
+     * Absolute index of the root node of each tree
+     */
+    private final int[] roots;
+
+    private FlatTreeEnsemble(RegTree[] trees) {
+        int numNodes = 0;
+        for (RegTree tree : trees) {
+            numNodes += tree.getNodes().length;
+        }
+
+        splits = new int[numNodes];
+        values = new float[numNodes];
+        leftChildren = new int[numNodes];
+        rightChildren = new int[numNodes];
+        roots = new int[trees.length];
+
+        int offset = 0;
+        for (int t = 0; t < trees.length; ++t) {
+            RegTreeNode[] nodes = trees[t].getNodes();
+            roots[t] = offset;
+            for (int i = 0; i < nodes.length; ++i) {
+                RegTreeNode node = nodes[i];
+                int n = offset + i;
+                if (node.isLeaf()) {
+                    splits[n] = -1;
+                    values[n] = node.getLeafValue();
+                } else {
+                    splits[n] = (node.getSplitIndex() << 1) | (node.default_left() ? 1 : 0);
+                    values[n] = node.getSplitCondition();
+                    leftChildren[n] = offset + node.getLeftChildIndex();
+                    rightChildren[n] = offset + node.getRightChildIndex();
+                }
+            }
+            offset += nodes.length;
+        }
+    }
+
+    private FlatTreeEnsemble(int[] splits, float[] values, int[] leftChildren, int[] rightChildren, int[] roots) {
+        this.splits = splits;
+        this.values = values;
+        this.leftChildren = leftChildren;
+        this.rightChildren = rightChildren;
+        this.roots = roots;
+    }
+
+    /**
+     * Flattens the trees of a booster.
+     * @param booster a loaded booster
+     * @return the flattened trees, or null if the booster isn't a single output GBTree
+     * (e.g. DART, linear or multi-class models)
+     */
+    public static FlatTreeEnsemble from(GradBooster booster) {
+        if (booster == null || booster.getClass() != GBTree.class) {
+            return null;
+        }
+        RegTree[][] groupedTrees = ((GBTree) booster).getGroupedTrees();
+        if (groupedTrees == null || groupedTrees.length != 1) {
+            return null;
+        }
+        return new FlatTreeEnsemble(groupedTrees[0]);
+    }
+
+    /**
+     * Writes the arrays for readSnapshot()
+     */
+    void writeSnapshot(DataOutput out) throws IOException {
+        SnapshotUtils.writeIntArray(out, splits);
+        SnapshotUtils.writeFloatArray(out, values);
+        SnapshotUtils.writeIntArray(out, leftChildren);
+        SnapshotUtils.writeIntArray(out, rightChildren);
+        SnapshotUtils.writeIntArray(out, roots);
+    }
+
+    /**
+     * Reads trees written by writeSnapshot()
+     * @throws IOException If the arrays are truncated or don't form valid trees
+     */
+    static FlatTreeEnsemble readSnapshot(ByteBuffer in) throws IOException {
+        int[] splits = SnapshotUtils.readIntArray(in);
+        float[] values = SnapshotUtils.readFloatArray(in);
+        int[] leftChildren = SnapshotUtils.readIntArray(in);
+        int[] rightChildren = SnapshotUtils.readIntArray(in);
+        int[] roots = SnapshotUtils.readIntArray(in);
+
+        int numNodes = splits.length;
+        if (values.length != numNodes || leftChildren.length != numNodes || rightChildren.length != numNodes) {
+            throw new IOException("Invalid snapshot, tree arrays differ in length");
+        }
+        // checked once here, so that predicting can't walk out of the arrays
+        for (int n = 0; n < numNodes; ++n) {
+            if (splits[n] >= 0 && (leftChildren[n] < 0 || leftChildren[n] >= numNodes
+                    || rightChildren[n] < 0 || rightChildren[n] >= numNodes)) {
+                throw new IOException("Invalid snapshot, bad child of node " + n);
+            }
+        }
+        for (int root : roots) {
+            if (root < 0 || root >= numNodes) {
+                throw new IOException("Invalid snapshot, bad root node " + root);
+            }
+        }
+        checkAcyclic(splits, leftChildren, rightChildren, roots);
+        return new FlatTreeEnsemble(splits, values, leftChildren, rightChildren, roots);
+    }
+
+    /**
+     * Walks every tree once and fails if a node is reached twice, so that predicting can't run
+     * in circles. Children don't necessarily come after their parent, xgboost reuses the slots of
+     * pruned nodes.
+     */
+    private static void checkAcyclic(int[] splits, int[] leftChildren, int[] rightChildren, int[] roots) throws IOException {
+        boolean[] visited = new boolean[splits.length];
+        // right children still to walk, each pushed after visiting a new node
+        int[] pending = new int[splits.length];
+        for (int root : roots) {
+            int count = 0;
+            pending[count++] = root;
+            while (count > 0) {
+                int node = pending[--count];
+                while (true) {
+                    if (visited[node]) {
+                        throw new IOException("Invalid snapshot, node " + node + " is reached twice");
+                    }
+                    visited[node] = true;
+                    if (splits[node] < 0) {
+                        break;
+                    }
+                    pending[count++] = rightChildren[node];
+                    node = leftChildren[node];
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of trees
+     */
+    public int getNumTrees() {
+        return roots.length;
+    }
+
+    /**
+     * @return number of nodes of all trees
+     */
+    public int getNumNodes() {
+        return splits.length;
+    }
+
+    /**
+     * @return approximate heap bytes of the arrays
+     */
+    public long estimateMemory() {
+        return 16 * 5 + 16L * splits.length + 4L * roots.length;
+    }
+
+    /**
+     * Sums the leaf values of the trees for a feature vector, like GBTree.predictSingle()
+     * @param feat feature vector
+     * @param ntree_limit limit the number of trees used in prediction, 0 for all
+     * @return sum of leaf values
+     */
+    public float predictSingle(FVec feat, int ntree_limit) {
+        int numTrees = treeCount(ntree_limit);
+        float sum = 0;
+        for (int t = 0; t < numTrees; ++t) {
+            sum += leafValue(feat, roots[t]);
+        }
+        return sum;
+    }
+
+    /**
+     * Sums the leaf values of the trees for each row of a row-major feature matrix.
+     * Trees are evaluated tree-outer, row-inner over blocks of rows, so each tree is loaded
+     * once per block instead of once per row. Sums are bit-identical to predictSingle().
+     * @param features feature matrix, numRows rows of numFeatures values, NaN for missing features
+     * @param numFeatures number of values per row
+     * @param numRows number of rows
+     * @param ntree_limit limit the number of trees used in prediction, 0 for all
+     * @param out receives the sum of leaf values of row i at index i
+     */
+    public void predictBatch(float[] features, int numFeatures, int numRows, int ntree_limit, float[] out) {
+        int numTrees = treeCount(ntree_limit);
+        Arrays.fill(out, 0, numRows, 0);
+        for (int start = 0; start < numRows; start += BATCH_BLOCK_SIZE) {
+            int end = Math.min(start + BATCH_BLOCK_SIZE, numRows);
+            for (int t = 0; t < numTrees; ++t) {
+                int root = roots[t];
+                for (int r = start; r < end; ++r) {
+                    out[r] += leafValue(features, r * numFeatures, numFeatures, root);
+                }
+            }
+        }
+    }
+
+    /**
+     * Like predictBatch(float[], int, int, int, float[]), but writes into a double[]. The sums
+     * are still computed with float arithmetic, so they are identical to predictSingle().
+     */
+    public void predictBatch(float[] features, int numFeatures, int numRows, int ntree_limit, double[] out) {
+        int numTrees = treeCount(ntree_limit);
+        Arrays.fill(out, 0, numRows, 0);
+        for (int start = 0; start < numRows; start += BATCH_BLOCK_SIZE) {
+            int end = Math.min(start + BATCH_BLOCK_SIZE, numRows);
+            for (int t = 0; t < numTrees; ++t) {
+                int root = roots[t];
+                for (int r = start; r < end; ++r) {
+                    // out[r] always holds a float, so this is a float addition
+                    out[r] = (float) out[r] + leafValue(features, r * numFeatures, numFeatures, root);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sums the leaf values of the trees for each feature vector, tree-outer and
+     * feature-vector-inner like predictBatch(float[], int, int, int, float[])
+     * @param feats feature vectors
+     * @param ntree_limit limit the number of trees used in prediction, 0 for all
+     * @param out receives the sum of leaf values of feats.get(i) at index i
+     */
+    public void predictBatch(List<? extends FVec> feats, int ntree_limit, float[] out) {
+        int numTrees = treeCount(ntree_limit);
+        int numRows = feats.size();
+        Arrays.fill(out, 0, numRows, 0);
+        for (int start = 0; start < numRows; start += BATCH_BLOCK_SIZE) {
+            int end = Math.min(start + BATCH_BLOCK_SIZE, numRows);
+            for (int t = 0; t < numTrees; ++t) {
+                int root = roots[t];
+                for (int r = start; r < end; ++r) {
+                    out[r] += leafValue(feats.get(r), root);
+                }
+            }
+        }
+    }
+
+    private int treeCount(int ntree_limit) {
+        return (ntree_limit == 0 || ntree_limit > roots.length) ? roots.length : ntree_limit;
+    }
+
+    private float leafValue(float[] features, int offset, int numFeatures, int node) {
+        int split;
+        while ((split = splits[node]) >= 0) {
+            int featureIndex = split >>> 1;
+            float fvalue = featureIndex < numFeatures ? features[offset + featureIndex] : Float.NaN;
+            if (fvalue != fvalue) {
+                node = (split & 1) != 0 ? leftChildren[node] : rightChildren[node];
+            } else {
+                node = fvalue < values[node] ? leftChildren[node] : rightChildren[node];
+            }
+        }
+        return values[node];
+    }
+
+    private float leafValue(FVec feat, int node) {
+        int split;
+        while ((split = splits[node]) >= 0) {
+            float fvalue = feat.fvalue(split >>> 1);
+            if (fvalue != fvalue) {
+                node = (split & 1) != 0 ? leftChildren[node] : rightChildren[node];
+            } else {
+                node = fvalue < values[node] ? leftChildren[node] : rightChildren[node];
+            }
+        }
+        return values[node];
+    }
+}
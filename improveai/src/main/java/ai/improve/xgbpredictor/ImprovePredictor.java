@@ -1,15 +1,21 @@
 package ai.improve.xgbpredictor;
 
+import ai.improve.util.SnapshotUtils;
 import biz.k11i.xgboost.config.PredictorConfiguration;
+import biz.k11i.xgboost.gbm.GBTree;
 import biz.k11i.xgboost.gbm.GradBooster;
 import biz.k11i.xgboost.learner.ObjFunction;
 import biz.k11i.xgboost.spark.SparkModelParam;
+import biz.k11i.xgboost.tree.RegTree;
 import biz.k11i.xgboost.util.FVec;
 import biz.k11i.xgboost.util.ModelReader;
 
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
  * Predicts using the Xgboost model.
@@ -20,11 +26,47 @@ public class ImprovePredictor implements Serializable {
     private String name_obj;
     private String name_gbm;
     private ObjFunction obj;
+
+    /**
+     * Null if the predictor is read from a snapshot or the booster was dropped after its trees
+     * were flattened, see setKeepBooster(). Predictions then use flatTrees.
+     */
     private GradBooster gbm;
     private ModelMetadata modelMetadata;
 
+    /**
+     * Trees of gbm flattened into primitive arrays, null if gbm can't be flattened
+     */
+    private FlatTreeEnsemble flatTrees;
+
     private float base_score;
 
+    /**
+     * Durations of the load of this predictor, 0 if not measured, e.g. for snapshots
+     */
+    long decompressNanos;
+
+    private long treeParseNanos;
+
+    private long metadataParseNanos;
+
+    /**
+     * Bytes of the uncompressed model, -1 if unknown
+     */
+    long modelSize = -1;
+
+    /**
+     * Approximate heap bytes of the predictor without its trees, of a tree object of the
+     * booster without its nodes, and of a node with its stats
+     */
+    private static final int PREDICTOR_OVERHEAD = 1024;
+
+    private static final int TREE_OBJECT_SIZE = 256;
+
+    private static final int NODE_OBJECT_SIZE = 88;
+
+    private static volatile boolean keepBooster = true;
+
     public ImprovePredictor(InputStream in) throws IOException {
         this(in, null);
     }
@@ -37,17 +79,107 @@ public class ImprovePredictor implements Serializable {
      * @throws IOException If an I/O error occurs
      */
     public ImprovePredictor(InputStream in, PredictorConfiguration configuration) throws IOException {
+        this(new ModelReader(in), configuration);
+    }
+
+    /**
+     * Instantiates with the Xgboost model in a buffer, e.g. a MappedByteBuffer of a model file.
+     * The model is parsed straight from the buffer, which isn't referenced after construction.
+     *
+     * @param buffer model bytes from the buffer's position to its limit
+     * @throws IOException If the model is malformed
+     */
+    public ImprovePredictor(ByteBuffer buffer) throws IOException {
+        this(new ByteBufferModelReader(buffer), null);
+    }
+
+    ImprovePredictor(ByteBufferModelReader reader) throws IOException {
+        this(reader, null);
+    }
+
+    /**
+     * Loads a gzip compressed model, which is much faster than parsing it through a
+     * GZIPInputStream. On multi-core devices it is decompressed on another thread while it is
+     * parsed, see setLoadParallelism().
+     *
+     * @param compressed gzip bytes from the buffer's position to its limit
+     * @throws IOException If the model is malformed
+     */
+    public static ImprovePredictor loadGzip(ByteBuffer compressed) throws IOException {
+        return ParallelModelLoader.loadGzip(compressed);
+    }
+
+    /**
+     * Models in buffers are parsed by several threads: trees are parsed in chunks in parallel
+     * with the metadata, and gzip compressed models are decompressed while they are parsed.
+     * Defaults to the number of available processors.
+     *
+     * @param threads number of threads a model is loaded with, 1 to load models on the calling
+     *                thread only
+     */
+    public static void setLoadParallelism(int threads) {
+        ParallelModelLoader.setParallelism(threads);
+    }
+
+    /**
+     * Predictions walk the flattened trees, the booster the trees were parsed into is only
+     * needed by getBooster(), predictLeaf() and predictLeafPath(). Apps that don't call these
+     * can drop the booster of the predictors loaded from then on, which halves the heap of
+     * their trees. getBooster() of these predictors returns null and predictLeaf() and
+     * predictLeafPath() throw an IllegalStateException, as for predictors read from a snapshot.
+     * Boosters whose trees can't be flattened, e.g. of DART or multi-class models, are always
+     * kept. Defaults to true.
+     *
+     * @param keep false to drop the booster once its trees are flattened
+     */
+    public static void setKeepBooster(boolean keep) {
+        keepBooster = keep;
+    }
+
+    private ImprovePredictor(ModelReader reader, PredictorConfiguration configuration) throws IOException {
         if (configuration == null) {
             configuration = PredictorConfiguration.DEFAULT;
         }
-
-        ModelReader reader = new ModelReader(in);
+        long start = System.nanoTime();
+        if (reader instanceof ByteBufferModelReader) {
+            modelSize = ((ByteBufferModelReader) reader).limit() - ((ByteBufferModelReader) reader).position();
+        }
 
         readParam(reader);
         initObjFunction(configuration);
         initObjGbm();
 
-        gbm.loadModel(configuration, reader, mparam.saved_with_pbuffer != 0);
+        // bytes still being decompressed are checked against the gzip trailer instead
+        if (reader instanceof ByteBufferModelReader && ((ByteBufferModelReader) reader).isComplete()
+                && "gbtree".equals(name_gbm)) {
+            ParallelModelLoader.checkLength((ByteBufferModelReader) reader, mparam.saved_with_pbuffer != 0);
+        }
+
+        // trees and metadata of models in buffers are parsed ahead on other threads
+        ParallelModelLoader.Prefetch prefetch = null;
+        if (reader instanceof ByteBufferModelReader && configuration == PredictorConfiguration.DEFAULT
+                && "gbtree".equals(name_gbm) && ParallelModelLoader.isEnabled()) {
+            prefetch = ParallelModelLoader.prefetch((ByteBufferModelReader) reader, mparam.saved_with_pbuffer != 0);
+        }
+        int boosterStart = prefetch != null ? ((ByteBufferModelReader) reader).position() : 0;
+        try {
+            gbm.loadModel(prefetch != null ? prefetch.configuration() : configuration, reader, mparam.saved_with_pbuffer != 0);
+        } catch (IOException | RuntimeException e) {
+            if (prefetch == null) {
+                throw e;
+            }
+            // the parallel parse relies on the layout of the trees, the sequential parser
+            // reports the error if the model is malformed
+            prefetch.cancel();
+            prefetch = null;
+            reader = ((ByteBufferModelReader) reader).readerAt(boosterStart);
+            initObjGbm();
+            gbm.loadModel(configuration, reader, mparam.saved_with_pbuffer != 0);
+        }
+        flatTrees = FlatTreeEnsemble.from(gbm);
+        if (flatTrees != null && !keepBooster) {
+            gbm = null;
+        }
 
         if (mparam.major_version >= 1) {
             base_score = obj.probToMargin(mparam.base_score);
@@ -55,9 +187,71 @@ public class ImprovePredictor implements Serializable {
             base_score = mparam.base_score;
         }
 
-        modelMetadata = new ModelMetadata(reader);
+        long treesEnd = System.nanoTime();
+        treeParseNanos = treesEnd - start;
+
+        if (prefetch != null) {
+            modelMetadata = prefetch.metadata((ByteBufferModelReader) reader);
+            metadataParseNanos = prefetch.metadataParseNanos();
+        } else {
+            modelMetadata = new ModelMetadata(reader);
+            metadataParseNanos = System.nanoTime() - treesEnd;
+        }
     }
 
+    private ImprovePredictor() {
+    }
+
+    /**
+     * @return true if writeSnapshot() can write this predictor, i.e. its trees are flattened
+     */
+    public boolean canWriteSnapshot() {
+        return flatTrees != null && sparkModelParam == null;
+    }
+
+    /**
+     * Writes the parameters, flattened trees and metadata of the model, so that readSnapshot()
+     * can restore the predictor without parsing the model again.
+     *
+     * @param out output for the snapshot
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalStateException If canWriteSnapshot() is false
+     */
+    public void writeSnapshot(DataOutput out) throws IOException {
+        if (!canWriteSnapshot()) {
+            throw new IllegalStateException("only models with flattened trees can be written to a snapshot");
+        }
+        mparam.writeSnapshot(out);
+        SnapshotUtils.writeString(out, name_obj);
+        SnapshotUtils.writeString(out, name_gbm);
+        out.writeFloat(base_score);
+        flatTrees.writeSnapshot(out);
+        modelMetadata.writeSnapshot(out);
+    }
+
+    /**
+     * Restores a predictor written by writeSnapshot(). Predictions are identical to those of
+     * the original predictor, but there is no booster: getBooster() returns null and
+     * predictLeaf() / predictLeafPath() aren't supported.
+     *
+     * @param in snapshot bytes from the buffer's position, the position is advanced past them
+     * @throws IOException If the snapshot is truncated or malformed
+     */
+    public static ImprovePredictor readSnapshot(ByteBuffer in) throws IOException {
+        ImprovePredictor predictor = new ImprovePredictor();
+        predictor.mparam = new ModelParam(in);
+        predictor.name_obj = SnapshotUtils.readString(in);
+        predictor.name_gbm = SnapshotUtils.readString(in);
+        predictor.base_score = SnapshotUtils.readFloat(in);
+        predictor.flatTrees = FlatTreeEnsemble.readSnapshot(in);
+        predictor.modelMetadata = ModelMetadata.readSnapshot(in);
+        try {
+            predictor.obj = ObjFunction.fromName(predictor.name_obj);
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid snapshot, unknown objective " + predictor.name_obj);
+        }
+        return predictor;
+    }
 
     void readParam(ModelReader reader) throws IOException {
         byte[] first4Bytes = reader.readByteArray(4);
@@ -198,8 +392,42 @@ public class ImprovePredictor implements Serializable {
         return preds;
     }
 
+    /**
+     * Generates predictions for given feature vector into a caller supplied array.
+     *
+     * @param feat feature vector
+     * @param out  receives getNumClass() predictions for multi-class models, a single
+     *             prediction otherwise
+     */
+    public void predictInto(FVec feat, float[] out) {
+        predictInto(feat, false, 0, out);
+    }
+
+    /**
+     * Generates predictions for given feature vector into a caller supplied array. Single
+     * output models with flattened trees predict without allocating.
+     *
+     * @param feat          feature vector
+     * @param output_margin whether to only predict margin value instead of transformed prediction
+     * @param ntree_limit   limit the number of trees used in prediction
+     * @param out           receives getNumClass() predictions for multi-class models, a single
+     *                      prediction otherwise
+     */
+    public void predictInto(FVec feat, boolean output_margin, int ntree_limit, float[] out) {
+        if (flatTrees != null) {
+            checkBatch(false, 1, out.length);
+            out[0] = predictSingle(feat, output_margin, ntree_limit);
+            return;
+        }
+        float[] preds = predict(feat, output_margin, ntree_limit);
+        checkBatch(false, preds.length, out.length);
+        System.arraycopy(preds, 0, out, 0, preds.length);
+    }
+
     float[] predictRaw(FVec feat, float base_score, int ntree_limit) {
-        float[] preds = gbm.predict(feat, ntree_limit);
+        float[] preds = flatTrees != null
+                ? new float[]{ flatTrees.predictSingle(feat, ntree_limit) }
+                : gbm.predict(feat, ntree_limit);
         for (int i = 0; i < preds.length; i++) {
             preds[i] += base_score;
         }
@@ -253,9 +481,161 @@ public class ImprovePredictor implements Serializable {
     }
 
     float predictSingleRaw(FVec feat, int ntree_limit) {
+        if (flatTrees != null) {
+            return flatTrees.predictSingle(feat, ntree_limit) + base_score;
+        }
         return gbm.predictSingle(feat, ntree_limit) + base_score;
     }
 
+    /**
+     * Generates predictions for each row of a feature matrix.
+     * <p>
+     * This method only works when the model outputs single value. Each tree is evaluated over
+     * many rows before moving on to the next tree, which is faster than calling predictSingle()
+     * per row. Predictions are identical to predictSingle().
+     * </p>
+     *
+     * @param features    row-major feature matrix, numRows rows of numFeatures values, NaN for
+     *                    missing features
+     * @param numFeatures number of values per row
+     * @param numRows     number of rows
+     * @param out         receives the prediction of row i at index i
+     */
+    public void predictBatch(float[] features, int numFeatures, int numRows, float[] out) {
+        predictBatch(features, numFeatures, numRows, out, false, 0);
+    }
+
+    /**
+     * Generates predictions for each row of a feature matrix.
+     * <p>
+     * This method only works when the model outputs single value.
+     * </p>
+     *
+     * @param features      row-major feature matrix, numRows rows of numFeatures values, NaN for
+     *                      missing features
+     * @param numFeatures   number of values per row
+     * @param numRows       number of rows
+     * @param out           receives the prediction of row i at index i
+     * @param output_margin whether to only predict margin value instead of transformed prediction
+     * @param ntree_limit   limit the number of trees used in prediction
+     */
+    public void predictBatch(float[] features, int numFeatures, int numRows, float[] out, boolean output_margin, int ntree_limit) {
+        checkBatch(features.length < numFeatures * numRows, numRows, out.length);
+        if (flatTrees != null) {
+            flatTrees.predictBatch(features, numFeatures, numRows, ntree_limit, out);
+            for (int i = 0; i < numRows; ++i) {
+                out[i] += base_score;
+            }
+        } else {
+            MatrixRow row = new MatrixRow(features, numFeatures);
+            for (int i = 0; i < numRows; ++i) {
+                row.offset = i * numFeatures;
+                out[i] = predictSingleRaw(row, ntree_limit);
+            }
+        }
+        transformBatch(out, numRows, output_margin);
+    }
+
+    /**
+     * Generates predictions for each row of a feature matrix into a double[].
+     *
+     * @see #predictBatch(float[], int, int, float[])
+     */
+    public void predictBatch(float[] features, int numFeatures, int numRows, double[] out) {
+        checkBatch(features.length < numFeatures * numRows, numRows, out.length);
+        if (flatTrees != null) {
+            flatTrees.predictBatch(features, numFeatures, numRows, 0, out);
+            for (int i = 0; i < numRows; ++i) {
+                out[i] = obj.predTransform((float) out[i] + base_score);
+            }
+        } else {
+            MatrixRow row = new MatrixRow(features, numFeatures);
+            for (int i = 0; i < numRows; ++i) {
+                row.offset = i * numFeatures;
+                out[i] = obj.predTransform(predictSingleRaw(row, 0));
+            }
+        }
+    }
+
+    /**
+     * Generates predictions for each of the feature vectors.
+     * <p>
+     * This method only works when the model outputs single value. Predictions are identical
+     * to predictSingle().
+     * </p>
+     *
+     * @param feats feature vectors
+     * @param out   receives the prediction of feats.get(i) at index i
+     */
+    public void predictBatch(List<? extends FVec> feats, float[] out) {
+        predictBatch(feats, out, false, 0);
+    }
+
+    /**
+     * Generates predictions for each of the feature vectors.
+     * <p>
+     * This method only works when the model outputs single value.
+     * </p>
+     *
+     * @param feats         feature vectors
+     * @param out           receives the prediction of feats.get(i) at index i
+     * @param output_margin whether to only predict margin value instead of transformed prediction
+     * @param ntree_limit   limit the number of trees used in prediction
+     */
+    public void predictBatch(List<? extends FVec> feats, float[] out, boolean output_margin, int ntree_limit) {
+        int numRows = feats.size();
+        checkBatch(false, numRows, out.length);
+        if (flatTrees != null) {
+            flatTrees.predictBatch(feats, ntree_limit, out);
+            for (int i = 0; i < numRows; ++i) {
+                out[i] += base_score;
+            }
+        } else {
+            for (int i = 0; i < numRows; ++i) {
+                out[i] = predictSingleRaw(feats.get(i), ntree_limit);
+            }
+        }
+        transformBatch(out, numRows, output_margin);
+    }
+
+    private static void checkBatch(boolean featuresTooShort, int numRows, int outLength) {
+        if (featuresTooShort) {
+            throw new IllegalArgumentException("features must contain numRows * numFeatures values");
+        }
+        if (outLength < numRows) {
+            throw new IllegalArgumentException("out must have room for " + numRows + " prediction(s)");
+        }
+    }
+
+    private void transformBatch(float[] preds, int numRows, boolean output_margin) {
+        if (!output_margin) {
+            for (int i = 0; i < numRows; ++i) {
+                preds[i] = obj.predTransform(preds[i]);
+            }
+        }
+    }
+
+    /**
+     * A row of a feature matrix viewed as a feature vector
+     */
+    private static class MatrixRow implements FVec {
+        private static final long serialVersionUID = 1L;
+
+        private final float[] features;
+        private final int numFeatures;
+        int offset;
+
+        MatrixRow(float[] features, int numFeatures) {
+            this.features = features;
+            this.numFeatures = numFeatures;
+        }
+
+        @Override
+        public float fvalue(int index) {
+            return index < numFeatures ? features[offset + index] : Float.NaN;
+        }
+    }
+
     /**
      * Predicts leaf index of each tree.
      *
@@ -274,6 +654,7 @@ public class ImprovePredictor implements Serializable {
      * @return leaf indexes
      */
     public int[] predictLeaf(FVec feat, int ntree_limit) {
+        checkBooster();
         return gbm.predictLeaf(feat, ntree_limit);
     }
 
@@ -295,9 +676,16 @@ public class ImprovePredictor implements Serializable {
      * @return leaf paths
      */
     public String[] predictLeafPath(FVec feat, int ntree_limit) {
+        checkBooster();
         return gbm.predictLeafPath(feat, ntree_limit);
     }
 
+    private void checkBooster() {
+        if (gbm == null) {
+            throw new IllegalStateException("not supported, the booster was dropped or the predictor is read from a snapshot");
+        }
+    }
+
     public SparkModelParam getSparkModelParam() {
         return sparkModelParam;
     }
@@ -345,12 +733,111 @@ public class ImprovePredictor implements Serializable {
             this.minor_version = reader.readUnsignedInt();
             this.reserved = reader.readIntArray(27);
         }
+
+        /**
+         * Reads parameters written by writeSnapshot()
+         */
+        ModelParam(ByteBuffer in) throws IOException {
+            this.base_score = SnapshotUtils.readFloat(in);
+            this.num_feature = SnapshotUtils.readInt(in);
+            this.num_class = SnapshotUtils.readInt(in);
+            this.saved_with_pbuffer = SnapshotUtils.readInt(in);
+            this.contain_eval_metrics = SnapshotUtils.readInt(in);
+            this.major_version = SnapshotUtils.readInt(in);
+            this.minor_version = SnapshotUtils.readInt(in);
+            this.reserved = SnapshotUtils.readIntArray(in);
+        }
+
+        void writeSnapshot(DataOutput out) throws IOException {
+            out.writeFloat(base_score);
+            out.writeInt(num_feature);
+            out.writeInt(num_class);
+            out.writeInt(saved_with_pbuffer);
+            out.writeInt(contain_eval_metrics);
+            out.writeInt(major_version);
+            out.writeInt(minor_version);
+            SnapshotUtils.writeIntArray(out, reserved);
+        }
     }
 
+    /**
+     * @return the booster, null if the predictor is read from a snapshot or if the booster was
+     * dropped after its trees were flattened, see setKeepBooster()
+     */
     public GradBooster getBooster(){
         return gbm;
     }
 
+    /**
+     * @return trees of the booster flattened into primitive arrays, null if the booster can't be
+     * flattened and predictSingle() walks the booster's trees instead
+     */
+    public FlatTreeEnsemble getFlatTrees() {
+        return flatTrees;
+    }
+
+    /**
+     * @return nanoseconds spent decompressing the model while loading this predictor, 0 if it
+     * wasn't compressed or was decompressed as a stream along with parsing it
+     */
+    public long getDecompressNanos() {
+        return decompressNanos;
+    }
+
+    /**
+     * @return nanoseconds spent parsing and flattening the trees while loading this predictor,
+     * including waiting for bytes still being decompressed. 0 if restored from a snapshot.
+     */
+    public long getTreeParseNanos() {
+        return treeParseNanos;
+    }
+
+    /**
+     * @return nanoseconds spent parsing the metadata while loading this predictor, on another
+     * thread if the model was loaded in parallel. 0 if restored from a snapshot.
+     */
+    public long getMetadataParseNanos() {
+        return metadataParseNanos;
+    }
+
+    /**
+     * @return bytes of the uncompressed model this predictor was parsed from, -1 if unknown,
+     * e.g. if it was read from a stream or restored from a snapshot
+     */
+    public long getModelSize() {
+        return modelSize;
+    }
+
+    /**
+     * Estimates the heap used by the trees and the feature names of the model, so that apps
+     * can budget the memory of their models. The string tables of the metadata aren't
+     * included, they are counted by FeatureEncoder.estimateMemory().
+     *
+     * @return approximate heap bytes of the predictor
+     */
+    public long estimateMemory() {
+        long bytes = PREDICTOR_OVERHEAD;
+        if (flatTrees != null) {
+            bytes += flatTrees.estimateMemory();
+        }
+        if (gbm instanceof GBTree) {
+            RegTree[][] groupedTrees = ((GBTree) gbm).getGroupedTrees();
+            if (groupedTrees != null) {
+                for (RegTree[] trees : groupedTrees) {
+                    for (RegTree tree : trees) {
+                        bytes += TREE_OBJECT_SIZE + NODE_OBJECT_SIZE * (long) tree.getNodes().length;
+                    }
+                }
+            }
+        }
+        if (modelMetadata != null && modelMetadata.getFeatureNameArray() != null) {
+            for (String featureName : modelMetadata.getFeatureNameArray()) {
+                bytes += 48 + 2L * featureName.length();
+            }
+        }
+        return bytes;
+    }
+
     public String getObjName() {
         return name_obj;
     }
@@ -1,18 +1,23 @@
 package ai.improve.xgbpredictor;
 
 import ai.improve.constants.BuildProperties;
+import ai.improve.util.SnapshotUtils;
 import biz.k11i.xgboost.util.ModelReader;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.lang.reflect.Type;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -31,15 +36,23 @@ public class ModelMetadata {
 
     public static final String IMPROVE_STRING_TABLES_KEY = "ai.improve.string_tables";
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Attributes other than the user defined metadata, which is only kept in parsed form
+     */
     private Map<String, String> storage = new HashMap<>();
 
     private String modelName;
 
     private long modelSeed;
 
-    private List<String> modelFeatureNames;
+    private String[] modelFeatureNames;
 
-    private Map<String, List<Long>> stringTables;
+    /**
+     * feature name -> string table, in the order of the metadata
+     */
+    private Map<String, long[]> stringTables;
 
     public ModelMetadata(ModelReader r) throws IOException {
         long num_attrs = r.readLong();
@@ -48,14 +61,72 @@ public class ModelMetadata {
             String key = r.readString((int) strlenkey);
 
             long strlenval = r.readLong();
+            if(USER_DEFINED_METADATA.equals(key)) {
+                // the largest attribute by far, parsed from its bytes without building a String
+                parseMetadata(r.readByteArray((int) strlenval));
+                continue;
+            }
             String val = r.readString((int) strlenval);
 
-            if("user_defined_metadata".equals(key)) {
-                parseMetadata(val);
+            storage.put(key, val);
+        }
+    }
+
+    private ModelMetadata() {
+    }
+
+    /**
+     * Writes the metadata for readSnapshot()
+     */
+    void writeSnapshot(DataOutput out) throws IOException {
+        out.writeInt(storage.size());
+        for (Map.Entry<String, String> entry : storage.entrySet()) {
+            SnapshotUtils.writeString(out, entry.getKey());
+            SnapshotUtils.writeString(out, entry.getValue());
+        }
+        out.writeBoolean(modelFeatureNames != null);
+        if (modelFeatureNames != null) {
+            SnapshotUtils.writeString(out, modelName);
+            out.writeLong(modelSeed);
+            out.writeInt(modelFeatureNames.length);
+            for (String featureName : modelFeatureNames) {
+                SnapshotUtils.writeString(out, featureName);
+            }
+            out.writeInt(stringTables.size());
+            for (Map.Entry<String, long[]> entry : stringTables.entrySet()) {
+                SnapshotUtils.writeString(out, entry.getKey());
+                SnapshotUtils.writeLongArray(out, entry.getValue());
             }
+        }
+    }
 
-            storage.put(key, val);
+    /**
+     * Reads metadata written by writeSnapshot()
+     */
+    static ModelMetadata readSnapshot(ByteBuffer in) throws IOException {
+        ModelMetadata metadata = new ModelMetadata();
+        int numAttrs = SnapshotUtils.readInt(in);
+        for (int i = 0; i < numAttrs; ++i) {
+            String key = SnapshotUtils.readString(in);
+            metadata.storage.put(key, SnapshotUtils.readString(in));
         }
+        if (SnapshotUtils.readBoolean(in)) {
+            metadata.modelName = SnapshotUtils.readString(in);
+            metadata.modelSeed = SnapshotUtils.readLong(in);
+            int numFeatures = SnapshotUtils.readInt(in);
+            List<String> featureNames = new ArrayList<>(Math.min(numFeatures, in.remaining() / 4));
+            for (int i = 0; i < numFeatures; ++i) {
+                featureNames.add(SnapshotUtils.readString(in));
+            }
+            metadata.modelFeatureNames = featureNames.toArray(new String[0]);
+            int numTables = SnapshotUtils.readInt(in);
+            metadata.stringTables = new LinkedHashMap<>();
+            for (int i = 0; i < numTables; ++i) {
+                String featureName = SnapshotUtils.readString(in);
+                metadata.stringTables.put(featureName, SnapshotUtils.readLongArray(in));
+            }
+        }
+        return metadata;
     }
 
     public String getModelName() {
@@ -67,45 +138,130 @@ public class ModelMetadata {
     }
 
     public List<String> getModelFeatureNames() {
+        return modelFeatureNames == null ? null : Collections.unmodifiableList(Arrays.asList(modelFeatureNames));
+    }
+
+    /**
+     * @return the model feature names, must not be modified
+     */
+    public String[] getFeatureNameArray() {
         return modelFeatureNames;
     }
 
+    /**
+     * @return a boxed copy of the string tables, getStringTableArrays() doesn't copy them
+     */
     public Map<String, List<Long>> getStringTables() {
-        return stringTables;
+        if (stringTables == null) {
+            return null;
+        }
+        Map<String, List<Long>> boxed = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> entry : stringTables.entrySet()) {
+            long[] table = entry.getValue();
+            List<Long> list = new ArrayList<>(table.length);
+            for (long value : table) {
+                list.add(value);
+            }
+            boxed.put(entry.getKey(), list);
+        }
+        return boxed;
+    }
+
+    /**
+     * @return feature name -> string table, the tables must not be modified
+     */
+    public Map<String, long[]> getStringTableArrays() {
+        return stringTables == null ? null : Collections.unmodifiableMap(stringTables);
     }
 
     public String getValue(String key) {
         return storage.get(key);
     }
 
+    /**
+     * @return null, the user defined metadata is parsed into the model name, seed, feature
+     * names and string tables and isn't kept as JSON
+     * @deprecated use getModelName(), getModelSeed(), getModelFeatureNames() and
+     * getStringTables() instead
+     */
+    @Deprecated
     public String getUserDefinedMetadata() {
         return getValue(USER_DEFINED_METADATA);
     }
 
-    private void parseMetadata(String value) throws IOException {
+    private void parseMetadata(byte[] value) throws IOException {
+        String modelVersion = null;
+        Map<String, long[]> tables = null;
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(value), UTF_8));
         try {
-            JsonObject root = JsonParser.parseString(value).getAsJsonObject();
-            if(root.has(IMPROVE_VERSION_KEY)) {
-                String modelVersion = root.get(IMPROVE_VERSION_KEY).getAsString();
-                if(!canParseModel(modelVersion, BuildProperties.getSDKVersion())) {
-                    throw new IOException("Major version don't match. ImproveAI SDK version(" + BuildProperties.getSDKVersion()+") " +
-                            "can't load the model of version("+ modelVersion + ").");
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (IMPROVE_VERSION_KEY.equals(name)) {
+                    modelVersion = reader.nextString();
+                } else if (IMPROVE_MODEL_NAME_KEY.equals(name)) {
+                    modelName = reader.nextString();
+                } else if (IMPROVE_SEED_KEY.equals(name)) {
+                    modelSeed = reader.nextLong();
+                } else if (IMPROVE_FEAtURES_KEY.equals(name)) {
+                    modelFeatureNames = readStringArray(reader);
+                } else if (IMPROVE_STRING_TABLES_KEY.equals(name)) {
+                    tables = readStringTables(reader);
+                } else {
+                    reader.skipValue();
                 }
             }
-            modelName = root.get(IMPROVE_MODEL_NAME_KEY).getAsString();
-            modelSeed = root.get(IMPROVE_SEED_KEY).getAsLong();
-
-            JsonArray featuresArray = root.get(IMPROVE_FEAtURES_KEY).getAsJsonArray();
-            modelFeatureNames = new ArrayList<>(featuresArray.size());
-            for (int i = 0; i < featuresArray.size(); ++i) {
-                modelFeatureNames.add(featuresArray.get(i).getAsString());
-            }
+            reader.endObject();
+        } catch (IOException | RuntimeException e) {
+            // malformed JSON or values of the wrong type
+            throw new IOException("Failed to parse the model metadata. Looks like the model being loaded is invalid.");
+        } finally {
+            reader.close();
+        }
 
-            Type type = new TypeToken<Map<String, List<Long>>>(){}.getType();
-            stringTables = new Gson().fromJson(root.get(IMPROVE_STRING_TABLES_KEY), type);
-        } catch (RuntimeException e) {
+        if(modelVersion != null && !canParseModel(modelVersion, BuildProperties.getSDKVersion())) {
+            throw new IOException("Major version don't match. ImproveAI SDK version(" + BuildProperties.getSDKVersion()+") " +
+                    "can't load the model of version("+ modelVersion + ").");
+        }
+        if (modelName == null || modelFeatureNames == null) {
             throw new IOException("Failed to parse the model metadata. Looks like the model being loaded is invalid.");
         }
+        stringTables = tables != null ? tables : new LinkedHashMap<String, long[]>();
+    }
+
+    private static String[] readStringArray(JsonReader reader) throws IOException {
+        List<String> values = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            values.add(reader.nextString());
+        }
+        reader.endArray();
+        return values.toArray(new String[0]);
+    }
+
+    private static Map<String, long[]> readStringTables(JsonReader reader) throws IOException {
+        Map<String, long[]> tables = new LinkedHashMap<>();
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return tables;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String featureName = reader.nextName();
+            long[] table = new long[16];
+            int size = 0;
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (size == table.length) {
+                    table = Arrays.copyOf(table, size * 2);
+                }
+                table[size++] = reader.nextLong();
+            }
+            reader.endArray();
+            tables.put(featureName, size == table.length ? table : Arrays.copyOf(table, size));
+        }
+        reader.endObject();
+        return tables;
     }
 
     /**
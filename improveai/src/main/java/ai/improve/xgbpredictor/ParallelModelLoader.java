@@ -0,0 +1,590 @@
+package ai.improve.xgbpredictor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import ai.improve.log.IMPLog;
+import ai.improve.util.ByteBufferInputStream;
+import biz.k11i.xgboost.config.PredictorConfiguration;
+import biz.k11i.xgboost.gbm.GradBooster;
+import biz.k11i.xgboost.tree.RegTree;
+import biz.k11i.xgboost.tree.RegTreeFactory;
+import biz.k11i.xgboost.util.FVec;
+import biz.k11i.xgboost.util.ModelReader;
+
+/**
+ * Loads gbtree models from a buffer on several threads.
+ *
+ * The offsets of the trees are found by reading only their node counts, then chunks of trees
+ * and the model metadata are parsed by parallel tasks while GBTree.loadModel() takes the parsed
+ * trees in order through a RegTreeFactory. A GBTree built this way is identical to one loaded
+ * sequentially. Gzip compressed models are decompressed by a parse thread while they are parsed.
+ *
+ * Tasks never wait for each other, and a thread needing a result which hasn't been started
+ * runs the task itself, so loads progress even if all parse threads are busy.
+ */
+final class ParallelModelLoader {
+    static final String Tag = "ParallelModelLoader";
+
+    /**
+     * Sizes of GBTree.ModelParam, RegTreeImpl.Param and of a node plus its stats in the binary
+     * format read by xgboost-predictor, verified once by checkLayout()
+     */
+    static final int GBTREE_PARAM_SIZE = 160;
+
+    static final int TREE_PARAM_SIZE = 148;
+
+    static final int NODE_SIZE = 20 + 16;
+
+    /**
+     * Number of tree chunks per thread, smaller chunks balance the threads better
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * Bytes of trees parsed by a task at least, lowered by tests
+     */
+    static int minChunkSize = 64 * 1024;
+
+    /**
+     * Deflate can't compress better than this, larger trailer sizes are corrupt
+     */
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    /**
+     * Input buffer of GZIPInputStream. Its default of 512 bytes costs 10-25% of the inflate
+     * time in JNI calls, larger buffers than this only add allocation time for small models.
+     */
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    private static final RegTreeFactory TREE_FACTORY = PredictorConfiguration.DEFAULT.getRegTreeFactory();
+
+    private static volatile int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private static ThreadPoolExecutor executor;
+
+    private ParallelModelLoader() {
+    }
+
+    /**
+     * @param threads number of threads a model is loaded with, including the loading thread.
+     *                1 loads models sequentially.
+     */
+    static synchronized void setParallelism(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        parallelism = threads;
+        if (executor != null && threads > 1) {
+            if (threads - 1 > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(threads - 1);
+                executor.setCorePoolSize(threads - 1);
+            } else {
+                executor.setCorePoolSize(threads - 1);
+                executor.setMaximumPoolSize(threads - 1);
+            }
+        }
+    }
+
+    static int getParallelism() {
+        return parallelism;
+    }
+
+    static boolean isEnabled() {
+        return parallelism > 1 && layoutMatches();
+    }
+
+    /**
+     * @return true if the layout sizes above match the parser of the xgboost-predictor on the
+     * classpath. If they don't, models are parsed sequentially and their length isn't checked
+     * ahead.
+     */
+    static boolean layoutMatches() {
+        return Layout.MATCHES;
+    }
+
+    private static final class Layout {
+        static final boolean MATCHES = checkLayout(GBTREE_PARAM_SIZE, TREE_PARAM_SIZE, NODE_SIZE);
+    }
+
+    /**
+     * Parses a synthetic single leaf model with the sequential parser
+     * @return true if it consumes exactly the bytes the sizes add up to and predicts the leaf
+     */
+    static boolean checkLayout(int gbtreeParamSize, int treeParamSize, int nodeSize) {
+        float leafValue = 0.25f;
+        ByteBuffer model = ByteBuffer.allocate(gbtreeParamSize + treeParamSize + nodeSize + 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        // GBTree.ModelParam num_trees and num_roots, then the same in RegTreeImpl.Param and
+        // num_nodes
+        model.putInt(0, 1).putInt(4, 1);
+        model.putInt(gbtreeParamSize, 1).putInt(gbtreeParamSize + 4, 1);
+        // a leaf without parent and children, the tree info after it stays 0
+        int node = gbtreeParamSize + treeParamSize;
+        model.putInt(node, -1).putInt(node + 4, -1).putInt(node + 8, -1).putFloat(node + 16, leafValue);
+        try {
+            GradBooster gbm = GradBooster.Factory.createGradBooster("gbtree");
+            gbm.setNumClass(0);
+            gbm.setNumFeature(1);
+            ByteBufferModelReader reader = new ByteBufferModelReader(model);
+            gbm.loadModel(PredictorConfiguration.DEFAULT, reader, false);
+            if (reader.position() == model.limit()
+                    && gbm.predictSingle(FVec.Transformer.fromArray(new float[1], false), 0) == leafValue) {
+                return true;
+            }
+        } catch (IOException | RuntimeException e) {
+            // not the expected layout either
+        }
+        IMPLog.w(Tag, "unexpected layout of xgboost-predictor models, loading them sequentially");
+        return false;
+    }
+
+    /**
+     * @return the executor of the parse tasks and inflaters of all loads, created on first use
+     */
+    static synchronized ThreadPoolExecutor executor() {
+        if (executor == null) {
+            int threads = Math.max(1, parallelism - 1);
+            executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, Tag + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Runs the task on the calling thread unless a parse thread has started it, and returns its
+     * result
+     */
+    private static <T> T join(FutureTask<T> task) throws IOException {
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while loading the model");
+        } catch (CancellationException e) {
+            throw new IOException("model loading cancelled");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(String.valueOf(cause));
+        }
+    }
+
+    /**
+     * Decompresses a gzip compressed model into a single array and parses it from there. If
+     * enabled, the array is filled on another thread while the calling thread parses the bytes
+     * decompressed so far.
+     * @param compressed gzip bytes from the buffer's position to its limit
+     */
+    static ImprovePredictor loadGzip(ByteBuffer compressed) throws IOException {
+        // the gzip trailer ends with the uncompressed size modulo 2^32
+        int size = compressed.remaining() < 18 ? -1
+                : compressed.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(compressed.limit() - 4);
+        if (size <= 0 || size / MAX_DEFLATE_RATIO > compressed.remaining()) {
+            return loadGzipSequentially(compressed);
+        }
+
+        final ByteBuffer compressedBytes = compressed.duplicate();
+        final byte[] bytes = new byte[size];
+        final ByteBufferModelReader.Progress progress = new ByteBufferModelReader.Progress();
+        long start = System.nanoTime();
+        if (!isEnabled()) {
+            inflate(compressedBytes, bytes, progress);
+            try {
+                progress.awaitFinished();
+            } catch (SizeMismatchException e) {
+                return loadGzipSequentially(compressed);
+            }
+            // all bytes are there, reads needn't check the progress
+            ImprovePredictor predictor = new ImprovePredictor(new ByteBufferModelReader(ByteBuffer.wrap(bytes)));
+            predictor.decompressNanos = progress.finishTime() - start;
+            return predictor;
+        }
+
+        // on a parse thread, or on this thread once it needs bytes and all parse threads are
+        // still busy, e.g. with other loads
+        FutureTask<Void> inflater = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                inflate(compressedBytes, bytes, progress);
+            }
+        }, null);
+        progress.setProducer(inflater);
+        executor().execute(inflater);
+
+        try {
+            ImprovePredictor predictor = new ImprovePredictor(new ByteBufferModelReader(ByteBuffer.wrap(bytes), progress));
+            progress.awaitFinished();
+            predictor.decompressNanos = progress.finishTime() - start;
+            return predictor;
+        } catch (SizeMismatchException e) {
+            // e.g. concatenated gzip members, the trailer only has the size of the last one
+            return loadGzipSequentially(compressed);
+        } catch (IOException | RuntimeException e) {
+            // the model may only look malformed because its size was misread
+            try {
+                progress.awaitFinished();
+            } catch (SizeMismatchException mismatch) {
+                return loadGzipSequentially(compressed);
+            } catch (IOException ignored) {
+                // the parse error is more telling
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Fills bytes with the decompressed model, reporting the progress as it goes. Always
+     * finishes the progress, with a SizeMismatchException if the model isn't exactly as long.
+     */
+    private static void inflate(ByteBuffer compressed, byte[] bytes, ByteBufferModelReader.Progress progress) {
+        IOException failure = null;
+        try {
+            InputStream inputStream = newGZIPInputStream(compressed);
+            try {
+                int length = 0;
+                int n;
+                while (length < bytes.length && !progress.isStopped() && (n = inputStream.read(bytes, length, Math.min(bytes.length - length, 262144))) >= 0) {
+                    length += n;
+                    progress.advance(length);
+                }
+                if (progress.isStopped()) {
+                    return;
+                }
+                // also checks the crc of the last bytes
+                if (length < bytes.length || inputStream.read() >= 0) {
+                    throw new SizeMismatchException();
+                }
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new IOException(e.getMessage());
+        } finally {
+            progress.finish(failure);
+        }
+    }
+
+    private static InputStream newGZIPInputStream(ByteBuffer compressed) throws IOException {
+        int bufferSize = Math.max(512, Math.min(GZIP_BUFFER_SIZE, compressed.remaining()));
+        return new GZIPInputStream(new ByteBufferInputStream(compressed), bufferSize);
+    }
+
+    static ImprovePredictor loadGzipSequentially(ByteBuffer compressed) throws IOException {
+        InputStream inputStream = newGZIPInputStream(compressed);
+        try {
+            return new ImprovePredictor(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static class SizeMismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        SizeMismatchException() {
+            super("decompressed size doesn't match the gzip trailer");
+        }
+    }
+
+    /**
+     * Checks that a gbtree model in a complete buffer is as long as its trees and metadata say,
+     * so that a truncated model, e.g. a partially copied file, fails before it is parsed instead
+     * of deep inside the tree or metadata parser. Only reads the sizes of the trees and of the
+     * metadata attributes.
+     * @param reader positioned at the booster, it isn't advanced
+     * @param withPbuffer whether the model was saved with a prediction buffer
+     * @throws EOFException If the model is truncated
+     */
+    static void checkLength(ByteBufferModelReader reader, boolean withPbuffer) throws IOException {
+        if (!layoutMatches()) {
+            return;
+        }
+        long limit = reader.limit();
+        long position = reader.position() + (long) GBTREE_PARAM_SIZE;
+        if (position > limit) {
+            throw truncated(limit, position, "the tree parameters");
+        }
+        ByteBufferModelReader scan = reader.readerAt(reader.position());
+        int numTrees = scan.readInt();
+        scan.skip(12);
+        long numPbuffer = scan.readLong();
+        for (int t = 0; t < numTrees; ++t) {
+            if (position + TREE_PARAM_SIZE > limit) {
+                throw truncated(limit, position + TREE_PARAM_SIZE, "tree " + t);
+            }
+            int numNodes = reader.readerAt((int) position + 4).readInt();
+            if (numNodes < 0) {
+                // malformed, not truncated, the parser reports it
+                return;
+            }
+            position += TREE_PARAM_SIZE + (long) numNodes * NODE_SIZE;
+            if (position > limit) {
+                throw truncated(limit, position, "tree " + t);
+            }
+        }
+        position += 4L * Math.max(numTrees, 0);
+        if (position > limit) {
+            throw truncated(limit, position, "the tree info");
+        }
+        if (numPbuffer != 0 && withPbuffer) {
+            // the metadata follows the prediction buffer, whose size depends on the objective
+            return;
+        }
+
+        // the metadata attributes, each a key and a value prefixed with their lengths
+        if (position + 8 > limit) {
+            throw truncated(limit, position + 8, "the metadata");
+        }
+        long numAttributes = reader.readerAt((int) position).readLong();
+        position += 8;
+        for (long i = 0; i < numAttributes; ++i) {
+            for (int part = 0; part < 2; ++part) {
+                if (position + 8 > limit) {
+                    throw truncated(limit, position + 8, "the metadata");
+                }
+                long length = reader.readerAt((int) position).readLong();
+                if (length < 0) {
+                    return;
+                }
+                position += 8 + length;
+                if (position > limit) {
+                    throw truncated(limit, position, "the metadata");
+                }
+            }
+        }
+    }
+
+    private static EOFException truncated(long limit, long needed, String what) {
+        return new EOFException("Model is truncated, " + what + " need at least " + needed
+                + " bytes but the model has " + limit);
+    }
+
+    /**
+     * Starts parsing the trees and the metadata of a gbtree model whose GBTree.ModelParam is
+     * next in the reader.
+     * @param reader positioned at the booster, it isn't advanced
+     * @param withPbuffer whether the model was saved with a prediction buffer
+     * @return null if the tree section can't be scanned, the model is then loaded
+     * sequentially and reports its error as usual
+     */
+    static Prefetch prefetch(ByteBufferModelReader reader, boolean withPbuffer) throws IOException {
+        int start = reader.position();
+        ByteBufferModelReader scan = reader.readerAt(start);
+        if (reader.limit() - start < GBTREE_PARAM_SIZE) {
+            return null;
+        }
+        int numTrees = scan.readInt();
+        scan.skip(12);
+        long numPbuffer = scan.readLong();
+        if (numTrees <= 0) {
+            return null;
+        }
+
+        Prefetch prefetch = new Prefetch(reader, numTrees);
+        long chunkSize = Math.max(minChunkSize, (reader.limit() - (long) start) / ((long) parallelism * CHUNKS_PER_THREAD));
+        long position = start + GBTREE_PARAM_SIZE;
+        int chunkStart = 0;
+        try {
+            for (int t = 0; t < numTrees; ++t) {
+                prefetch.offsets[t] = (int) position;
+                if (position + TREE_PARAM_SIZE > reader.limit()) {
+                    prefetch.cancel();
+                    return null;
+                }
+                scan = reader.readerAt((int) position + 4);
+                int numNodes = scan.readInt();
+                position += TREE_PARAM_SIZE + (long) numNodes * NODE_SIZE;
+                if (numNodes < 0 || position > reader.limit()) {
+                    prefetch.cancel();
+                    return null;
+                }
+                if (position - prefetch.offsets[chunkStart] >= chunkSize || t == numTrees - 1) {
+                    prefetch.offsets[t + 1] = (int) position;
+                    // tasks never wait for bytes still being decompressed
+                    reader.awaitAvailable(position);
+                    prefetch.submitChunk(chunkStart, t + 1);
+                    chunkStart = t + 1;
+                }
+            }
+        } catch (IOException e) {
+            prefetch.cancel();
+            return null;
+        }
+
+        // the tree info follows the trees, the metadata follows the prediction buffer
+        long metadataOffset = position + 4L * numTrees;
+        if (!(numPbuffer != 0 && withPbuffer) && metadataOffset <= reader.limit()) {
+            reader.awaitAvailable(reader.limit());
+            prefetch.submitMetadata((int) metadataOffset);
+        }
+        return prefetch;
+    }
+
+    /**
+     * Trees and metadata being parsed in parallel
+     */
+    static final class Prefetch implements RegTreeFactory {
+        private final ByteBufferModelReader reader;
+
+        /**
+         * Offset of each tree and of the end of the last one
+         */
+        private final int[] offsets;
+
+        /**
+         * Chunk of each tree
+         */
+        private final int[] treeChunks;
+
+        private final List<FutureTask<RegTree[]>> chunks = new ArrayList<>();
+
+        private final List<Integer> chunkStarts = new ArrayList<>();
+
+        private FutureTask<ModelMetadata> metadata;
+
+        private int metadataOffset;
+
+        /**
+         * Set by the metadata task, or by metadata() if it parses the metadata itself
+         */
+        private volatile long metadataParseNanos;
+
+        /**
+         * Index of the next tree loadTree() returns
+         */
+        private int next;
+
+        Prefetch(ByteBufferModelReader reader, int numTrees) {
+            this.reader = reader;
+            this.offsets = new int[numTrees + 1];
+            this.treeChunks = new int[numTrees];
+        }
+
+        private void submitChunk(final int start, final int end) {
+            final int startOffset = offsets[start];
+            final int endOffset = offsets[end];
+            FutureTask<RegTree[]> chunk = new FutureTask<>(new Callable<RegTree[]>() {
+                @Override
+                public RegTree[] call() throws IOException {
+                    ByteBufferModelReader chunkReader = reader.readerAt(startOffset);
+                    RegTree[] trees = new RegTree[end - start];
+                    for (int i = 0; i < trees.length; ++i) {
+                        trees[i] = TREE_FACTORY.loadTree(chunkReader);
+                    }
+                    if (chunkReader.position() != endOffset) {
+                        throw new IOException("Invalid model, unexpected tree size");
+                    }
+                    return trees;
+                }
+            });
+            for (int t = start; t < end; ++t) {
+                treeChunks[t] = chunks.size();
+            }
+            chunks.add(chunk);
+            chunkStarts.add(start);
+            executor().execute(chunk);
+        }
+
+        private void submitMetadata(final int offset) {
+            metadataOffset = offset;
+            metadata = new FutureTask<>(new Callable<ModelMetadata>() {
+                @Override
+                public ModelMetadata call() throws IOException {
+                    long start = System.nanoTime();
+                    ModelMetadata modelMetadata = new ModelMetadata(reader.readerAt(offset));
+                    metadataParseNanos = System.nanoTime() - start;
+                    return modelMetadata;
+                }
+            });
+            executor().execute(metadata);
+        }
+
+        /**
+         * @return the configuration GBTree.loadModel() takes the parsed trees from
+         */
+        PredictorConfiguration configuration() {
+            return PredictorConfiguration.builder().regTreeFactory(this).build();
+        }
+
+        /**
+         * Called by GBTree.loadModel() for each tree in order
+         */
+        @Override
+        public RegTree loadTree(ModelReader modelReader) throws IOException {
+            int index = next++;
+            if (index >= treeChunks.length) {
+                throw new IOException("Invalid model, too many trees");
+            }
+            int chunk = treeChunks[index];
+            RegTree[] trees = join(chunks.get(chunk));
+            modelReader.skip(offsets[index + 1] - offsets[index]);
+            return trees[index - chunkStarts.get(chunk)];
+        }
+
+        /**
+         * @param modelReader positioned at the metadata once GBTree.loadModel() is done
+         */
+        ModelMetadata metadata(ByteBufferModelReader modelReader) throws IOException {
+            if (metadata == null || modelReader.position() != metadataOffset) {
+                cancel();
+                long start = System.nanoTime();
+                ModelMetadata modelMetadata = new ModelMetadata(modelReader);
+                metadataParseNanos = System.nanoTime() - start;
+                return modelMetadata;
+            }
+            return join(metadata);
+        }
+
+        long metadataParseNanos() {
+            return metadataParseNanos;
+        }
+
+        /**
+         * Stops tasks which haven't started, e.g. after the model turned out to be malformed
+         */
+        void cancel() {
+            for (FutureTask<RegTree[]> chunk : chunks) {
+                chunk.cancel(false);
+            }
+            if (metadata != null) {
+                metadata.cancel(false);
+            }
+        }
+    }
+}
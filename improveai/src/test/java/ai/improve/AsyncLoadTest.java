@@ -0,0 +1,167 @@
+package ai.improve;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ai.improve.downloader.ModelDownloader;
+
+public class AsyncLoadTest {
+    public static final String Tag = "AsyncLoadTest";
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void setUp() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static URL modelUrl() {
+        return AsyncLoadTest.class.getClassLoader().getResource("dummy_v8.xgb.gz");
+    }
+
+    private static List<Object> items() {
+        List<Object> items = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            items.add("item " + i);
+        }
+        return items;
+    }
+
+    @Test
+    public void testLoadScorer() throws Exception {
+        Scorer scorer = Scorer.load(modelUrl(), executor).get(10, TimeUnit.SECONDS);
+        Scorer expected = new Scorer(modelUrl());
+        List<Double> expectedScores = expected.score(items(), null, 0.5);
+        List<Double> scores = scorer.score(items(), null, 0.5);
+        for (int i = 0; i < scores.size(); ++i) {
+            assertEquals(expectedScores.get(i), scores.get(i), Math.pow(2, -22));
+        }
+    }
+
+    @Test
+    public void testLoadRanker() throws Exception {
+        Ranker ranker = Ranker.load(modelUrl(), executor).get(10, TimeUnit.SECONDS);
+        List<Object> ranked = ranker.rank(items());
+        assertEquals(items().size(), ranked.size());
+        assertTrue(ranked.containsAll(items()));
+    }
+
+    @Test
+    public void testLoad_listener() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<Scorer> result = new AtomicReference<>();
+        AtomicReference<IOException> error = new AtomicReference<>();
+        Scorer.load(modelUrl(), executor, (scorer, e) -> {
+            result.set(scorer);
+            error.set(e);
+            latch.countDown();
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertNotNull(result.get());
+        assertNull(error.get());
+    }
+
+    @Test
+    public void testLoad_failure() throws Exception {
+        URL url = new File("not_exist.xgb").toURI().toURL();
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<IOException> error = new AtomicReference<>();
+        Future<Scorer> future = Scorer.load(url, executor, (scorer, e) -> {
+            error.set(e);
+            latch.countDown();
+        });
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IOException);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertTrue(error.get() != null);
+
+        e = assertThrows(ExecutionException.class, () -> Ranker.load(url, executor).get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IOException);
+    }
+
+    @Test
+    public void testScorerOnLoadingThreads() throws Exception {
+        // every loading thread creates a Scorer at the same time, which must not wait for them
+        int threads = 4;
+        CountDownLatch started = new CountDownLatch(threads);
+        CountDownLatch loaded = new CountDownLatch(threads);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        for (int i = 0; i < threads; ++i) {
+            ModelDownloader.getExecutor().execute(() -> {
+                try {
+                    assertTrue(ModelDownloader.isLoadingThread());
+                    started.countDown();
+                    started.await(1, TimeUnit.SECONDS);
+                    assertEquals(items().size(), new Scorer(modelUrl()).score(items()).size());
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+                loaded.countDown();
+            });
+        }
+        assertTrue(loaded.await(30, TimeUnit.SECONDS));
+        assertNull(error.get());
+        assertFalse(ModelDownloader.isLoadingThread());
+    }
+
+    @Test
+    public void testLoad_timeoutAndCancel() throws Exception {
+        // the single thread is busy, so the load is still queued
+        CountDownLatch blocker = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<IOException> error = new AtomicReference<>();
+        Future<Scorer> future = Scorer.load(modelUrl(), executor, (scorer, e) -> {
+            error.set(e);
+            latch.countDown();
+        });
+        assertThrows(TimeoutException.class, () -> future.get(50, TimeUnit.MILLISECONDS));
+        assertTrue(future.cancel(true));
+        assertThrows(CancellationException.class, future::get);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertTrue(error.get() instanceof InterruptedIOException);
+        blocker.countDown();
+    }
+
+    @Test
+    public void testLoad_nullExecutor() {
+        assertThrows(IllegalArgumentException.class, () -> Scorer.load(modelUrl(), (Executor) null));
+    }
+}
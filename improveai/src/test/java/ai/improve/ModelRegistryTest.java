@@ -0,0 +1,348 @@
+package ai.improve;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class ModelRegistryTest {
+    public static final String Tag = "ModelRegistryTest";
+
+    private File directory;
+
+    private byte[] model;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("registry").toFile();
+        InputStream inputStream = new GZIPInputStream(getClass().getClassLoader().getResourceAsStream("dummy_v8.xgb.gz"));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = inputStream.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            model = out.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @AfterEach
+    public void tearDown() {
+        Scorer.setModelRegistry(null);
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Writes the model gzip compressed with the given level, levels give different bytes
+     */
+    private URL writeModel(String name, final int level) throws IOException {
+        File file = new File(directory, name + ".xgb.gz");
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(file)) {
+            {
+                def.setLevel(level);
+            }
+        };
+        try {
+            out.write(model);
+        } finally {
+            out.close();
+        }
+        return file.toURI().toURL();
+    }
+
+    @Test
+    public void testShared() throws Exception {
+        ModelRegistry registry = new ModelRegistry(Long.MAX_VALUE);
+        Scorer.setModelRegistry(registry);
+        URL url = writeModel("a", Deflater.DEFAULT_COMPRESSION);
+
+        Scorer first = new Scorer(url);
+        Scorer second = new Scorer(url);
+        Ranker ranker = new Ranker(url);
+        assertSame(first.getModel(), second.getModel());
+        assertSame(first.getModel().predictor, second.getModel().predictor);
+        assertSame(first.getModel().featureEncoder, second.getModel().featureEncoder);
+        assertEquals(1, registry.getLoadCount());
+        assertEquals(2, registry.getHitCount());
+
+        List<ModelRegistry.ModelInfo> models = registry.getModels();
+        assertEquals(1, models.size());
+        assertEquals(url, models.get(0).getModelUrl());
+        assertEquals(3, models.get(0).getReferenceCount());
+        assertTrue(models.get(0).getEstimatedMemory() > 0);
+        assertEquals(first.estimateMemory(), models.get(0).getEstimatedMemory());
+        // the metrics of the one load
+        assertSame(first.getLoadMetrics(), second.getLoadMetrics());
+        assertEquals(first.estimateMemory(), first.getLoadMetrics().getEstimatedMemory());
+        assertEquals(registry.getEstimatedMemory(), models.get(0).getEstimatedMemory());
+
+        // closing twice releases once
+        first.close();
+        first.close();
+        ranker.close();
+        assertEquals(1, registry.getModels().get(0).getReferenceCount());
+        // the model keeps working after it is released
+        assertEquals(10, first.score(items()).size());
+        second.close();
+        assertEquals(0, registry.getModels().get(0).getReferenceCount());
+        assertEquals(0, registry.getEvictionCount());
+    }
+
+    @Test
+    public void testEvictReleased() throws Exception {
+        ModelRegistry registry = new ModelRegistry(0);
+        Scorer.setModelRegistry(registry);
+        URL url = writeModel("a", Deflater.DEFAULT_COMPRESSION);
+
+        Scorer first = new Scorer(url);
+        Scorer second = new Scorer(url);
+        first.close();
+        // still in use, even over the budget
+        assertEquals(1, registry.getModels().size());
+        second.close();
+        assertEquals(0, registry.getModels().size());
+        assertEquals(1, registry.getEvictionCount());
+
+        Scorer third = new Scorer(url);
+        assertNotSame(first.getModel(), third.getModel());
+        assertEquals(2, registry.getLoadCount());
+        third.close();
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        Scorer.setModelRegistry(new ModelRegistry(Long.MAX_VALUE));
+        Scorer probe = new Scorer(writeModel("probe", Deflater.DEFAULT_COMPRESSION));
+        long modelSize = probe.estimateMemory();
+        probe.close();
+
+        // room for three and a half models
+        ModelRegistry registry = new ModelRegistry(modelSize * 7 / 2);
+        Scorer.setModelRegistry(registry);
+        URL a = writeModel("a", Deflater.DEFAULT_COMPRESSION);
+        URL b = writeModel("b", Deflater.DEFAULT_COMPRESSION);
+        URL c = writeModel("c", Deflater.DEFAULT_COMPRESSION);
+        URL d = writeModel("d", Deflater.DEFAULT_COMPRESSION);
+        URL e = writeModel("e", Deflater.DEFAULT_COMPRESSION);
+
+        new Scorer(a).close();
+        new Scorer(b).close();
+        new Scorer(c).close();
+        assertEquals(3, registry.getModels().size());
+        assertEquals(0, registry.getEvictionCount());
+
+        // a is the least recently used released model
+        Scorer scorerD = new Scorer(d);
+        assertEquals(1, registry.getEvictionCount());
+        assertEquals(b, registry.getModels().get(0).getModelUrl());
+
+        // b is used again, so c is evicted for e
+        new Scorer(b).close();
+        Scorer scorerE = new Scorer(e);
+        assertEquals(2, registry.getEvictionCount());
+        assertEquals(3, registry.getModels().size());
+        assertEquals(b, registry.getModels().get(0).getModelUrl());
+        assertEquals(d, registry.getModels().get(1).getModelUrl());
+        assertEquals(e, registry.getModels().get(2).getModelUrl());
+        assertTrue(registry.getEstimatedMemory() <= registry.getHeapBudget());
+
+        // models in use stay
+        registry.evictAll();
+        assertEquals(2, registry.getModels().size());
+        scorerD.close();
+        scorerE.close();
+    }
+
+    @Test
+    public void testChangedModel() throws Exception {
+        // reads the url on every acquisition
+        ModelRegistry registry = new ModelRegistry(Long.MAX_VALUE, 0, TimeUnit.MILLISECONDS);
+        Scorer.setModelRegistry(registry);
+        URL url = writeModel("a", Deflater.BEST_SPEED);
+        Scorer first = new Scorer(url);
+
+        // same url, other bytes
+        writeModel("a", Deflater.BEST_COMPRESSION);
+        Scorer second = new Scorer(url);
+        assertNotSame(first.getModel(), second.getModel());
+        assertEquals(2, registry.getLoadCount());
+        assertEquals(2, registry.getModels().size());
+        assertTrue(registry.getModels().get(0).getContentHash() != registry.getModels().get(1).getContentHash());
+
+        // the previous version can't be acquired again, so it goes once released
+        first.close();
+        new Scorer(url).close();
+        assertEquals(1, registry.getModels().size());
+        second.close();
+    }
+
+    @Test
+    public void testRevalidateAfter() throws Exception {
+        ModelRegistry registry = new ModelRegistry(Long.MAX_VALUE, 200, TimeUnit.MILLISECONDS);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), registry.getRevalidateAfterNanos());
+        Scorer.setModelRegistry(registry);
+        URL url = writeModel("a", Deflater.BEST_SPEED);
+        Scorer first = new Scorer(url);
+
+        // not read again within the interval, even if it changed or is gone
+        new File(url.toURI()).delete();
+        Scorer second = new Scorer(url);
+        assertSame(first.getModel(), second.getModel());
+        assertEquals(1, registry.getLoadCount());
+        assertEquals(1, registry.getHitCount());
+
+        // read again after it
+        Thread.sleep(300);
+        writeModel("a", Deflater.BEST_COMPRESSION);
+        Scorer third = new Scorer(url);
+        assertNotSame(first.getModel(), third.getModel());
+        assertEquals(2, registry.getLoadCount());
+        first.close();
+        second.close();
+        third.close();
+        assertEquals(1, registry.getModels().size());
+
+        assertEquals(ModelRegistry.DEFAULT_REVALIDATE_AFTER_MILLIS,
+                TimeUnit.NANOSECONDS.toMillis(new ModelRegistry(0).getRevalidateAfterNanos()));
+        assertThrows(IllegalArgumentException.class, () -> new ModelRegistry(0, -1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRolledBackModel() throws Exception {
+        // reads the url on every acquisition
+        ModelRegistry registry = new ModelRegistry(Long.MAX_VALUE, 0, TimeUnit.MILLISECONDS);
+        Scorer.setModelRegistry(registry);
+        URL url = writeModel("a", Deflater.BEST_SPEED);
+        Scorer first = new Scorer(url);
+        writeModel("a", Deflater.BEST_COMPRESSION);
+        Scorer second = new Scorer(url);
+
+        // back to the first bytes, which are still loaded
+        writeModel("a", Deflater.BEST_SPEED);
+        Scorer third = new Scorer(url);
+        assertSame(first.getModel(), third.getModel());
+        assertEquals(2, registry.getLoadCount());
+
+        // the rolled back model is current again, so it stays once released
+        first.close();
+        third.close();
+        assertEquals(2, registry.getModels().size());
+        assertEquals(0, registry.getEvictionCount());
+        second.close();
+        assertEquals(1, registry.getModels().size());
+        assertSame(first.getModel(), new Scorer(url).getModel());
+        assertEquals(2, registry.getLoadCount());
+    }
+
+    @Test
+    public void testConcurrentLoads() throws Exception {
+        ModelRegistry registry = new ModelRegistry(Long.MAX_VALUE);
+        Scorer.setModelRegistry(registry);
+        URL url = writeModel("a", Deflater.DEFAULT_COMPRESSION);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Scorer>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; ++i) {
+                futures.add(Scorer.load(url, executor));
+            }
+            Future<Ranker> ranker = Ranker.load(url, executor);
+            List<Scorer> scorers = new ArrayList<>();
+            for (int i = 0; i < 8; ++i) {
+                scorers.add(futures.get(i).get(10, TimeUnit.SECONDS));
+            }
+            for (Scorer scorer : scorers) {
+                assertSame(scorers.get(0).getModel(), scorer.getModel());
+            }
+            ranker.get(10, TimeUnit.SECONDS);
+            assertEquals(1, registry.getLoadCount());
+            assertEquals(8, registry.getHitCount());
+            assertEquals(9, registry.getModels().get(0).getReferenceCount());
+            for (Scorer scorer : scorers) {
+                scorer.close();
+            }
+            assertEquals(1, registry.getModels().get(0).getReferenceCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testInterruptedLoad() throws Exception {
+        ModelRegistry registry = new ModelRegistry(Long.MAX_VALUE);
+        Scorer.setModelRegistry(registry);
+        URL url = writeModel("a", Deflater.DEFAULT_COMPRESSION);
+
+        Thread.currentThread().interrupt();
+        assertThrows(InterruptedException.class, () -> new Scorer(url));
+
+        // the model acquired in the background is released
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (registry.getModels().isEmpty() || registry.getModels().get(0).getReferenceCount() > 0) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals(1, registry.getLoadCount());
+    }
+
+    @Test
+    public void testLoadFailure() throws Exception {
+        ModelRegistry registry = new ModelRegistry(Long.MAX_VALUE);
+        Scorer.setModelRegistry(registry);
+        URL url = new File(directory, "not_exist.xgb").toURI().toURL();
+        assertThrows(IOException.class, () -> new Scorer(url));
+        assertEquals(0, registry.getModels().size());
+
+        assertThrows(IllegalArgumentException.class, () -> new ModelRegistry(-1));
+    }
+
+    @Test
+    public void testNotShared() throws Exception {
+        URL url = writeModel("a", Deflater.DEFAULT_COMPRESSION);
+        Scorer first = new Scorer(url);
+        Scorer second = new Scorer(url);
+        assertNotSame(first.getModel(), second.getModel());
+        assertTrue(first.estimateMemory() > 0);
+        first.close();
+    }
+
+    private static List<Object> items() {
+        List<Object> items = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            items.add("item " + i);
+        }
+        return items;
+    }
+}
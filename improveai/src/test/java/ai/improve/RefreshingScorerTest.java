@@ -0,0 +1,204 @@
+package ai.improve;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import ai.improve.downloader.ModelLoadMetrics;
+
+public class RefreshingScorerTest {
+    public static final String Tag = "RefreshingScorerTest";
+
+    private File modelFile;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        modelFile = File.createTempFile("model", ".xgb.gz");
+        writeModel(0);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        Scorer.setWarmUpBudget(0, TimeUnit.NANOSECONDS);
+        modelFile.delete();
+    }
+
+    /**
+     * Writes dummy_v8 with its base score shifted by delta, so that every delta is a different
+     * model with different scores
+     */
+    private void writeModel(float delta) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream inputStream = new GZIPInputStream(getClass().getClassLoader().getResourceAsStream("dummy_v8.xgb.gz"));
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = inputStream.read(buffer)) > 0) {
+                bytes.write(buffer, 0, n);
+            }
+        } finally {
+            inputStream.close();
+        }
+        // "binf" followed by the little endian base score
+        ByteBuffer model = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        model.putFloat(4, model.getFloat(4) + delta);
+
+        File tmpFile = new File(modelFile.getPath() + ".tmp");
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(tmpFile));
+        try {
+            out.write(model.array());
+        } finally {
+            out.close();
+        }
+        assertTrue(tmpFile.renameTo(modelFile));
+    }
+
+    private static List<Object> items() {
+        List<Object> items = new ArrayList<>();
+        for (int i = 0; i < 50; ++i) {
+            items.add(i % 2 == 0 ? "item " + i : i);
+        }
+        return items;
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        RefreshingScorer scorer = new RefreshingScorer(modelFile.toURI().toURL(), 0, TimeUnit.SECONDS);
+        try {
+            Scorer.Model model = scorer.getModel();
+            List<Double> before = scorer.score(items(), null, 0.5);
+
+            // unchanged models aren't loaded again
+            assertFalse(scorer.refresh().get());
+            assertSame(model, scorer.getModel());
+            assertEquals(0, scorer.getRefreshCount());
+
+            writeModel(0.5f);
+            // refreshed models are warmed up like any other loaded model
+            Scorer.setWarmUpBudget(50, TimeUnit.MILLISECONDS);
+            assertTrue(scorer.refresh().get());
+            assertNotSame(model, scorer.getModel());
+            assertEquals(1, scorer.getRefreshCount());
+            assertTrue(scorer.getLoadMetrics().getPhaseNanos(ModelLoadMetrics.Phase.WARM_UP) > 0);
+
+            Scorer expected = new Scorer(modelFile.toURI().toURL());
+            List<Double> after = scorer.score(items(), null, 0.5);
+            List<Double> expectedScores = expected.score(items(), null, 0.5);
+            for (int i = 0; i < after.size(); ++i) {
+                assertEquals(expectedScores.get(i), after.get(i), Math.pow(2, -22));
+                assertTrue(Math.abs(before.get(i) - after.get(i)) > 1e-3);
+            }
+        } finally {
+            scorer.close();
+        }
+    }
+
+    @Test
+    public void testRefresh_failureKeepsModel() throws Exception {
+        RefreshingScorer scorer = new RefreshingScorer(modelFile.toURI().toURL(), 0, TimeUnit.SECONDS);
+        try {
+            Scorer.Model model = scorer.getModel();
+            OutputStream out = new FileOutputStream(modelFile);
+            try {
+                out.write(new byte[]{1, 2, 3});
+            } finally {
+                out.close();
+            }
+            ExecutionException e = assertThrows(ExecutionException.class, () -> scorer.refresh().get());
+            assertTrue(e.getCause() instanceof IOException);
+            assertSame(model, scorer.getModel());
+            assertEquals(50, scorer.scoreArray(items()).length);
+        } finally {
+            scorer.close();
+        }
+    }
+
+    @Test
+    public void testLoadFailure() {
+        assertTrue(modelFile.delete());
+        assertThrows(IOException.class, () -> new RefreshingScorer(modelFile.toURI().toURL(), 0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testScheduledRefresh() throws Exception {
+        RefreshingScorer scorer = new RefreshingScorer(modelFile.toURI().toURL(), 20, TimeUnit.MILLISECONDS);
+        try {
+            writeModel(0.5f);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (scorer.getRefreshCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, scorer.getRefreshCount());
+        } finally {
+            scorer.close();
+        }
+    }
+
+    @Test
+    public void testScoringDuringRefreshes() throws Exception {
+        RefreshingScorer scorer = new RefreshingScorer(modelFile.toURI().toURL(), 0, TimeUnit.SECONDS);
+        try {
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 4; ++t) {
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (!done.get()) {
+                                double[] scores = scorer.scoreArray(items(), "context");
+                                for (double score : scores) {
+                                    if (Double.isNaN(score)) {
+                                        throw new AssertionError("NaN score");
+                                    }
+                                }
+                            }
+                        } catch (Throwable e) {
+                            failure.set(e);
+                        }
+                    }
+                };
+                thread.start();
+                threads.add(thread);
+            }
+            for (int i = 1; i <= 10; ++i) {
+                writeModel(i * 0.25f);
+                assertTrue(scorer.refresh().get());
+            }
+            done.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertNull(failure.get());
+            assertEquals(10, scorer.getRefreshCount());
+        } finally {
+            scorer.close();
+        }
+    }
+}
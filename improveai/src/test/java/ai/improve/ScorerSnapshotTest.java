@@ -0,0 +1,214 @@
+package ai.improve;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ai.improve.downloader.ModelDownloader;
+import ai.improve.downloader.ModelLoadMetrics;
+import biz.k11i.xgboost.util.FVec;
+
+public class ScorerSnapshotTest {
+    public static final String Tag = "ScorerSnapshotTest";
+
+    private File directory;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("snapshots").toFile();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        Scorer.setSnapshotDirectory(null);
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static URL modelUrl() {
+        return ScorerSnapshotTest.class.getClassLoader().getResource("dummy_v8.xgb.gz");
+    }
+
+    private static List<Object> items() {
+        List<Object> items = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            items.add(i % 3 == 0 ? "item " + i : i % 3 == 1 ? i * 0.5 : null);
+        }
+        return items;
+    }
+
+    private static void assertSameScores(Scorer.Model expected, Scorer.Model actual) {
+        Object context = "context";
+        List<FVec> expectedFeatures = expected.featureEncoder.encodeFeatureVectors(items(), context, 0.3);
+        List<FVec> actualFeatures = actual.featureEncoder.encodeFeatureVectors(items(), context, 0.3);
+        for (int i = 0; i < expectedFeatures.size(); ++i) {
+            assertEquals(expected.predictor.predictSingle(expectedFeatures.get(i)),
+                    actual.predictor.predictSingle(actualFeatures.get(i)));
+            assertArrayEquals(expected.predictor.predict(expectedFeatures.get(i)),
+                    actual.predictor.predict(actualFeatures.get(i)));
+        }
+    }
+
+    @Test
+    public void testLoadSnapshot() throws IOException {
+        URL url = modelUrl();
+        File file = ScorerSnapshot.snapshotFile(directory, url);
+
+        Scorer.Model loaded = ScorerSnapshot.load(url, directory);
+        assertNotNull(loaded.predictor.getBooster());
+        assertTrue(file.exists());
+
+        Scorer.Model restored = ScorerSnapshot.load(url, directory);
+        assertNull(restored.predictor.getBooster());
+        assertEquals(loaded.predictor.getModelMetadata().getModelName(), restored.predictor.getModelMetadata().getModelName());
+        assertEquals(loaded.predictor.getModelMetadata().getModelSeed(), restored.predictor.getModelMetadata().getModelSeed());
+        assertEquals(loaded.predictor.getModelMetadata().getModelFeatureNames(), restored.predictor.getModelMetadata().getModelFeatureNames());
+        assertEquals(loaded.predictor.getModelMetadata().getStringTables(), restored.predictor.getModelMetadata().getStringTables());
+        assertEquals(loaded.featureEncoder.featureIndexes, restored.featureEncoder.featureIndexes);
+        assertSameScores(loaded, restored);
+    }
+
+    @Test
+    public void testLoadMetrics() throws Exception {
+        List<ModelLoadMetrics> reported = new ArrayList<>();
+        Scorer.setLoadMetricsListener(reported::add);
+        try {
+            Scorer scorer = new Scorer(modelUrl());
+            ModelLoadMetrics parsed = scorer.getLoadMetrics();
+            assertEquals(1, reported.size());
+            assertSame(parsed, reported.get(0));
+            assertFalse(parsed.isFromSnapshot());
+            assertTrue(parsed.getPhaseNanos(ModelLoadMetrics.Phase.BUILD_ENCODER) > 0);
+            assertTrue(parsed.getStringTableCount() > 0);
+            assertTrue(parsed.getStringTableEntryCount() >= parsed.getStringTableCount());
+            assertEquals(scorer.estimateMemory(), parsed.getEstimatedMemory());
+            assertTrue(parsed.getTotalNanos() > 0);
+
+            Scorer.setSnapshotDirectory(directory);
+            new Scorer(modelUrl());
+            ModelLoadMetrics written = reported.get(1);
+            assertFalse(written.isFromSnapshot());
+            assertTrue(written.getPhaseNanos(ModelLoadMetrics.Phase.WRITE_SNAPSHOT) > 0);
+
+            ModelLoadMetrics restored = new Scorer(modelUrl()).getLoadMetrics();
+            assertSame(restored, reported.get(2));
+            assertTrue(restored.isFromSnapshot());
+            assertTrue(restored.getPhaseNanos(ModelLoadMetrics.Phase.READ_SNAPSHOT) > 0);
+            assertEquals(0, restored.getPhaseNanos(ModelLoadMetrics.Phase.PARSE_TREES));
+            assertNull(restored.getFormat());
+            assertEquals(parsed.getNodeCount(), restored.getNodeCount());
+            assertEquals(parsed.getStringTableEntryCount(), restored.getStringTableEntryCount());
+        } finally {
+            Scorer.setLoadMetricsListener(null);
+        }
+    }
+
+    @Test
+    public void testStaleSnapshot() throws IOException {
+        URL url = modelUrl();
+        ScorerSnapshot.load(url, directory);
+        File file = ScorerSnapshot.snapshotFile(directory, url);
+        long sourceHash = ScorerSnapshot.contentHash(ModelDownloader.readModelSource(url));
+        long sourceLength = new File(url.getPath()).length();
+
+        assertNotNull(ScorerSnapshot.read(file, sourceHash, sourceLength));
+        assertNull(ScorerSnapshot.read(file, sourceHash + 1, sourceLength));
+        assertNull(ScorerSnapshot.read(file, sourceHash, sourceLength + 1));
+    }
+
+    @Test
+    public void testCorruptSnapshot() throws IOException {
+        URL url = modelUrl();
+        Scorer.Model expected = ScorerSnapshot.load(url, directory);
+        File file = ScorerSnapshot.snapshotFile(directory, url);
+        long length = file.length();
+
+        // a truncated snapshot is ignored and written again
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(Arrays.copyOf(bytes, bytes.length / 2));
+        } finally {
+            out.close();
+        }
+        Scorer.Model loaded = ScorerSnapshot.load(url, directory);
+        assertNotNull(loaded.predictor.getBooster());
+        assertEquals(length, file.length());
+        assertSameScores(expected, loaded);
+
+        // so is a snapshot with a flipped bit, which the checksum catches before parsing
+        long sourceHash = ScorerSnapshot.contentHash(ModelDownloader.readModelSource(url));
+        long sourceLength = new File(url.getPath()).length();
+        bytes = Files.readAllBytes(file.toPath());
+        for (int offset : new int[]{bytes.length / 3, bytes.length - 5}) {
+            byte[] corrupt = bytes.clone();
+            corrupt[offset] ^= 0x04;
+            out = new FileOutputStream(file);
+            try {
+                out.write(corrupt);
+            } finally {
+                out.close();
+            }
+            assertNull(ScorerSnapshot.read(file, sourceHash, sourceLength));
+            loaded = ScorerSnapshot.load(url, directory);
+            assertNotNull(loaded.predictor.getBooster());
+            assertArrayEquals(bytes, Files.readAllBytes(file.toPath()));
+            assertNotNull(ScorerSnapshot.read(file, sourceHash, sourceLength));
+            assertSameScores(expected, loaded);
+        }
+    }
+
+    @Test
+    public void testContentHash() throws IOException {
+        byte[] bytes = new byte[300000];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) (i * 31);
+        }
+        ByteBuffer heap = ByteBuffer.wrap(bytes);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        assertEquals(ScorerSnapshot.contentHash(heap), ScorerSnapshot.contentHash(direct));
+        assertEquals(0, direct.position());
+
+        bytes[bytes.length - 1]++;
+        assertTrue(ScorerSnapshot.contentHash(heap) != ScorerSnapshot.contentHash(direct));
+    }
+
+    @Test
+    public void testScorerWithSnapshotDirectory() throws Exception {
+        Scorer.setSnapshotDirectory(directory);
+        Scorer first = new Scorer(modelUrl());
+        assertTrue(ScorerSnapshot.snapshotFile(directory, modelUrl()).exists());
+        Scorer second = new Scorer(modelUrl());
+
+        List<Double> expected = first.score(items(), "context", 0.5);
+        List<Double> actual = second.score(items(), "context", 0.5);
+        for (int i = 0; i < expected.size(); ++i) {
+            // scores only differ by the random tie breaking noise
+            assertEquals(expected.get(i), actual.get(i), Math.pow(2, -22));
+        }
+    }
+}
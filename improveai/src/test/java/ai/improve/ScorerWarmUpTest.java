@@ -0,0 +1,140 @@
+package ai.improve;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import ai.improve.downloader.ModelLoadMetrics;
+import ai.improve.encoder.FeatureEncoder;
+
+public class ScorerWarmUpTest {
+    public static final String Tag = "ScorerWarmUpTest";
+
+    @AfterEach
+    public void tearDown() {
+        Scorer.setWarmUpBudget(0, TimeUnit.NANOSECONDS);
+    }
+
+    private static URL modelUrl() {
+        return ScorerWarmUpTest.class.getClassLoader().getResource("dummy_v8.xgb.gz");
+    }
+
+    /**
+     * Collects the feature names a value would be encoded to
+     */
+    private static void collectPaths(String path, Object value, Set<String> paths) {
+        if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                collectPaths(path + "." + entry.getKey(), entry.getValue(), paths);
+            }
+        } else {
+            paths.add(path);
+            if (value instanceof String) {
+                paths.add(path + " string");
+            }
+        }
+    }
+
+    @Test
+    public void testInputs() {
+        String[] featureNames = {"item.a", "item.a.b", "item.c.d", "item.c.e", "context.f", "context"};
+        Set<String> stringFeatures = new HashSet<>(Arrays.asList("item.c.d", "context"));
+        ScorerWarmUp.Inputs inputs = new ScorerWarmUp.Inputs(featureNames, stringFeatures, new Random(1));
+
+        Set<String> paths = new HashSet<>();
+        List<Object> items = inputs.items(200);
+        for (Object item : items) {
+            collectPaths("item", item, paths);
+        }
+        for (int i = 0; i < 200; ++i) {
+            collectPaths("context", inputs.context(), paths);
+        }
+        // every feature is set, and only the string features get strings
+        assertTrue(paths.containsAll(Arrays.asList(featureNames)), paths.toString());
+        assertTrue(paths.contains("item.c.d string"));
+        assertTrue(paths.contains("context string"));
+        // and nothing but features, paths that only lead to features are always maps
+        assertEquals(new HashSet<>(Arrays.asList("item.a", "item.a.b", "item.c.d", "item.c.e",
+                "item.c.d string", "context", "context.f", "context string")), paths);
+
+        // models without context features are scored without a context
+        inputs = new ScorerWarmUp.Inputs(new String[]{"item"}, new HashSet<String>(), new Random(1));
+        assertNull(inputs.context());
+        assertTrue(inputs.items(1).get(0) instanceof Double);
+    }
+
+    @Test
+    public void testStringFeatures() {
+        String[] featureNames = {"item.a", "item.b", "item.c", "context.d"};
+        Map<String, long[]> stringTables = new HashMap<>();
+        stringTables.put("item.a", new long[]{1, 2, 3});
+        stringTables.put("item.b", new long[]{4, 5});
+        stringTables.put("item.c", new long[0]);
+        FeatureEncoder featureEncoder = new FeatureEncoder(featureNames, stringTables, 1);
+
+        // only the smallest table is built by the warm up
+        assertEquals(new HashSet<>(Arrays.asList("item.b")), ScorerWarmUp.stringFeatures(stringTables, featureEncoder));
+
+        // tables built by earlier calls are used instead
+        Map<String, Object> item = new HashMap<>();
+        item.put("a", "x");
+        featureEncoder.encodeItem(item, new double[featureNames.length], 0, 1);
+        assertEquals(new HashSet<>(Arrays.asList("item.a")), ScorerWarmUp.stringFeatures(stringTables, featureEncoder));
+
+        assertTrue(ScorerWarmUp.stringFeatures(new HashMap<String, long[]>(), featureEncoder).isEmpty());
+    }
+
+    @Test
+    public void testWarmUp() throws IOException, InterruptedException {
+        Scorer scorer = new Scorer(modelUrl());
+        Scorer.Model model = scorer.getModel();
+
+        int calls = ScorerWarmUp.warmUp(model, TimeUnit.SECONDS.toNanos(10));
+        assertTrue(calls >= ScorerWarmUp.MIN_WINDOWS * ScorerWarmUp.WINDOW || calls == ScorerWarmUp.MAX_CALLS);
+        assertTrue(calls <= ScorerWarmUp.MAX_CALLS);
+        // a single string table is built to warm up the string lookups
+        assertEquals(1, model.featureEncoder.getStringTableCount());
+        assertEquals(1, model.featureEncoder.getMaterializedStringTableCount());
+
+        // at least one call, however small the budget
+        assertEquals(1, ScorerWarmUp.warmUp(model, 1));
+    }
+
+    @Test
+    public void testWarmUpBudget() throws IOException, InterruptedException {
+        assertEquals(0, Scorer.getWarmUpBudgetNanos());
+        assertThrows(IllegalArgumentException.class, () -> Scorer.setWarmUpBudget(-1, TimeUnit.SECONDS));
+
+        Scorer scorer = new Scorer(modelUrl());
+        assertEquals(0, scorer.getLoadMetrics().getPhaseNanos(ModelLoadMetrics.Phase.WARM_UP));
+        assertEquals(0, scorer.getModel().featureEncoder.getMaterializedStringTableCount());
+
+        Scorer.setWarmUpBudget(200, TimeUnit.MILLISECONDS);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(200), Scorer.getWarmUpBudgetNanos());
+        long start = System.nanoTime();
+        scorer = new Scorer(modelUrl());
+        long warmUpNanos = scorer.getLoadMetrics().getPhaseNanos(ModelLoadMetrics.Phase.WARM_UP);
+        assertTrue(warmUpNanos > 0);
+        assertTrue(warmUpNanos < System.nanoTime() - start);
+        assertTrue(scorer.getLoadMetrics().getTotalNanos() >= warmUpNanos);
+        // the budget is only exceeded by the last call
+        assertTrue(warmUpNanos < TimeUnit.MILLISECONDS.toNanos(200) + TimeUnit.SECONDS.toNanos(1));
+        assertEquals(1, scorer.getModel().featureEncoder.getMaterializedStringTableCount());
+        assertEquals(3, scorer.score(Arrays.asList("a", "b", "c")).size());
+    }
+}
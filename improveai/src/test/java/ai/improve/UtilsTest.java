@@ -0,0 +1,97 @@
+package ai.improve;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import ai.improve.util.Utils;
+
+public class UtilsTest {
+    public static final String Tag = "UtilsTest";
+
+    private static final double[] SPECIAL_SCORES = {
+            Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0.0, -0.0,
+            Double.MIN_VALUE, -Double.MIN_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, 1.0, -1.0
+    };
+
+    private static double[] randomScores(Random random, int count) {
+        double[] scores = new double[count];
+        for (int i = 0; i < count; ++i) {
+            switch (random.nextInt(3)) {
+                case 0:
+                    scores[i] = SPECIAL_SCORES[random.nextInt(SPECIAL_SCORES.length)];
+                    break;
+                case 1:
+                    scores[i] = random.nextInt(10);
+                    break;
+                default:
+                    scores[i] = random.nextGaussian();
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * Ranking of the original boxed implementation of Utils.rank()
+     */
+    private static int[] boxedRank(double[] scores) {
+        Integer[] indices = new Integer[scores.length];
+        for (int i = 0; i < scores.length; ++i) {
+            indices[i] = i;
+        }
+        Arrays.sort(indices, Collections.reverseOrder((a, b) -> Double.compare(scores[a], scores[b])));
+        int[] result = new int[indices.length];
+        for (int i = 0; i < indices.length; ++i) {
+            result[i] = indices[i];
+        }
+        return result;
+    }
+
+    @Test
+    public void testRankIndexes() {
+        Random random = new Random(0);
+        for (int count : new int[]{0, 1, 2, 3, 10, 100, 1000}) {
+            for (int n = 0; n < 20; ++n) {
+                double[] scores = randomScores(random, count);
+                assertArrayEquals(boxedRank(scores), Utils.rankIndexes(scores));
+            }
+        }
+    }
+
+    @Test
+    public void testTopKIndexes() {
+        Random random = new Random(1);
+        for (int count : new int[]{0, 1, 2, 3, 10, 100, 1000}) {
+            for (int n = 0; n < 20; ++n) {
+                double[] scores = randomScores(random, count);
+                int[] ranked = boxedRank(scores);
+                for (int k : new int[]{0, 1, 2, 5, 10, count / 2, count, count + 1}) {
+                    assertArrayEquals(Arrays.copyOf(ranked, Math.min(k, count)), Utils.topKIndexes(scores, k));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTopKIndexes_negative_k() {
+        assertThrows(IllegalArgumentException.class, () -> Utils.topKIndexes(new double[]{1, 2}, -1));
+    }
+
+    @Test
+    public void testRank() {
+        List<String> variants = Arrays.asList("a", "b", "c", "d");
+        List<Double> scores = Arrays.asList(1.0, 3.0, 2.0, 3.0);
+        assertEquals(Arrays.asList("b", "d", "c", "a"), Utils.rank(variants, scores));
+        assertEquals(Arrays.asList("b", "d"), Utils.rankTopK(variants, new double[]{1.0, 3.0, 2.0, 3.0}, 2));
+        assertThrows(IllegalArgumentException.class, () -> Utils.rank(variants, new ArrayList<>()));
+        assertThrows(IllegalArgumentException.class, () -> Utils.rankTopK(variants, new double[3], 1));
+    }
+}
@@ -0,0 +1,121 @@
+package ai.improve.downloader;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import ai.improve.log.IMPLog;
+import ai.improve.xgbpredictor.ImprovePredictor;
+import ai.improve.xgbpredictor.SyntheticModels;
+
+/**
+ * Load time and peak heap of a 92.7 MB model (5000 trees of depth 8) read through a
+ * FileInputStream, a BufferedInputStream and a memory mapping. Run with
+ * -Dimproveai.benchmark=true.
+ */
+@EnabledIfSystemProperty(named = "improveai.benchmark", matches = "true")
+public class MappedModelLoadBenchmark {
+    public static final String Tag = "MappedModelLoadBenchmark";
+
+    static {
+        IMPLog.setLogLevel(IMPLog.LOG_LEVEL_ALL);
+    }
+
+    private interface Loader {
+        ImprovePredictor load(File file) throws IOException;
+    }
+
+    @Test
+    public void benchmarkLoad() throws IOException {
+        File file = File.createTempFile("benchmark", ".xgb");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(SyntheticModels.build(5000, 8, 0));
+            } finally {
+                out.close();
+            }
+
+            measure("FileInputStream", file, new Loader() {
+                @Override
+                public ImprovePredictor load(File file) throws IOException {
+                    InputStream in = new FileInputStream(file);
+                    try {
+                        return new ImprovePredictor(in);
+                    } finally {
+                        in.close();
+                    }
+                }
+            });
+            measure("BufferedInputStream", file, new Loader() {
+                @Override
+                public ImprovePredictor load(File file) throws IOException {
+                    InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+                    try {
+                        return new ImprovePredictor(in);
+                    } finally {
+                        in.close();
+                    }
+                }
+            });
+            measure("mapped", file, new Loader() {
+                @Override
+                public ImprovePredictor load(File file) throws IOException {
+                    return ModelDownloader.loadMappedModel(file);
+                }
+            });
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void measure(String name, File file, Loader loader) throws IOException {
+        long baseline = resetPeakHeap();
+        long start = System.nanoTime();
+        ImprovePredictor predictor = loader.load(file);
+        long nanos = System.nanoTime() - start;
+        long peak = peakHeap() - baseline;
+        assertEquals(5000, predictor.getFlatTrees().getNumTrees());
+        IMPLog.d(Tag, String.format("%.1f MB model, %s: %.2f s, peak heap +%d MB",
+                file.length() / 1e6, name, nanos / 1e9, peak >> 20));
+    }
+
+    /**
+     * @return heap in use after a gc, from which the peaks are measured
+     */
+    private static long resetPeakHeap() {
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    /**
+     * @return sum of the peaks of the heap pools, an upper bound of the peak heap
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
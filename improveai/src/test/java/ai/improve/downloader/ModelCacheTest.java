@@ -0,0 +1,511 @@
+package ai.improve.downloader;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import ai.improve.Scorer;
+import ai.improve.encoder.XXHash3;
+
+public class ModelCacheTest {
+    public static final String Tag = "ModelCacheTest";
+
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+    /**
+     * A local stand-in for the model server. Serves models from a map of path to bytes with
+     * an ETag and / or Last-Modified header, answers conditional requests with 304 and range
+     * requests whose If-Range matches with 206.
+     */
+    private static class ModelServer implements HttpHandler {
+        final Map<String, byte[]> models = new HashMap<>();
+        final Map<String, String> etags = new HashMap<>();
+        boolean sendLastModified = false;
+        boolean truncate = false;
+        /**
+         * Bytes sent per response before the connection drops, 0 for no limit
+         */
+        int dropAfter = 0;
+        boolean supportRanges = true;
+        /**
+         * Whether ranges are served without checking If-Range, like some misconfigured servers
+         */
+        boolean ignoreIfRange = false;
+        final Map<String, String> checksums = new HashMap<>();
+        final List<String> ranges = new ArrayList<>();
+        final AtomicInteger bytesSent = new AtomicInteger();
+        final AtomicInteger downloads = new AtomicInteger();
+        final AtomicInteger notModified = new AtomicInteger();
+        /**
+         * Path whose responses wait for release to count down, null if none waits
+         */
+        volatile String slowPath;
+        final CountDownLatch slowRequested = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals(slowPath)) {
+                slowRequested.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            byte[] model = models.get(path);
+            if (model == null) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            String etag = etags.get(path);
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+            if ((etag != null && etag.equals(ifNoneMatch))
+                    || (etag == null && sendLastModified && LAST_MODIFIED.equals(ifModifiedSince))) {
+                notModified.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            if (etag != null) {
+                exchange.getResponseHeaders().set("ETag", etag);
+            }
+            if (sendLastModified) {
+                exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+            }
+            if (checksums.containsKey(path)) {
+                exchange.getResponseHeaders().set(ModelCache.CHECKSUM_HEADER, checksums.get(path));
+            }
+            downloads.incrementAndGet();
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            ranges.add(range);
+            int start = 0;
+            if (supportRanges && range != null && (ignoreIfRange || (ifRange != null
+                    && (ifRange.equals(etag) || (sendLastModified && ifRange.equals(LAST_MODIFIED)))))) {
+                start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+                if (start >= model.length) {
+                    exchange.sendResponseHeaders(416, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (model.length - 1) + "/" + model.length);
+                exchange.sendResponseHeaders(206, model.length - start);
+            } else {
+                exchange.sendResponseHeaders(200, model.length);
+            }
+            int end = truncate ? model.length / 2 : model.length;
+            if (dropAfter > 0) {
+                end = Math.min(end, start + dropAfter);
+            }
+            OutputStream out = exchange.getResponseBody();
+            out.write(model, start, Math.max(0, end - start));
+            bytesSent.addAndGet(Math.max(0, end - start));
+            // closing the exchange before the announced length is sent drops the connection
+            exchange.close();
+        }
+    }
+
+    private HttpServer httpServer;
+
+    private ExecutorService executor;
+
+    private ModelServer server;
+
+    private File directory;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = new ModelServer();
+        httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        httpServer.createContext("/", server);
+        // requests are handled concurrently, so that a slow one doesn't hold up the others
+        executor = Executors.newCachedThreadPool();
+        httpServer.setExecutor(executor);
+        httpServer.start();
+        directory = Files.createTempDirectory("models").toFile();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        ModelDownloader.setModelCache(null);
+        server.release.countDown();
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+        executor.shutdownNow();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://127.0.0.1:" + httpServer.getAddress().getPort() + path);
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = (byte) (i * 31 + seed);
+        }
+        return bytes;
+    }
+
+    private File[] files(String suffix) {
+        File[] files = directory.listFiles();
+        List<File> result = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(suffix)) {
+                    result.add(file);
+                }
+            }
+        }
+        return result.toArray(new File[0]);
+    }
+
+    @Test
+    public void testFetch_etag() throws IOException {
+        server.models.put("/model.xgb", bytes(100000, 1));
+        server.etags.put("/model.xgb", "\"v1\"");
+        ModelCache cache = new ModelCache(directory, ModelCache.DEFAULT_MAX_SIZE);
+
+        File file = cache.fetch(url("/model.xgb"));
+        assertArrayEquals(bytes(100000, 1), Files.readAllBytes(file.toPath()));
+        assertEquals(1, server.downloads.get());
+
+        assertEquals(file, cache.fetch(url("/model.xgb")));
+        assertArrayEquals(bytes(100000, 1), Files.readAllBytes(file.toPath()));
+        assertEquals(1, server.downloads.get());
+        assertEquals(1, server.notModified.get());
+
+        // a changed model is downloaded again
+        server.models.put("/model.xgb", bytes(50000, 2));
+        server.etags.put("/model.xgb", "\"v2\"");
+        file = cache.fetch(url("/model.xgb"));
+        assertArrayEquals(bytes(50000, 2), Files.readAllBytes(file.toPath()));
+        assertEquals(2, server.downloads.get());
+        assertEquals(0, files(".tmp").length);
+    }
+
+    @Test
+    public void testFetch_lastModified() throws IOException {
+        server.models.put("/model.xgb", bytes(1000, 1));
+        server.sendLastModified = true;
+        ModelCache cache = new ModelCache(directory, ModelCache.DEFAULT_MAX_SIZE);
+
+        cache.fetch(url("/model.xgb"));
+        File file = cache.fetch(url("/model.xgb"));
+        assertArrayEquals(bytes(1000, 1), Files.readAllBytes(file.toPath()));
+        assertEquals(1, server.downloads.get());
+        assertEquals(1, server.notModified.get());
+    }
+
+    @Test
+    public void testFetch_noValidators() throws IOException {
+        server.models.put("/model.xgb", bytes(1000, 1));
+        ModelCache cache = new ModelCache(directory, ModelCache.DEFAULT_MAX_SIZE);
+
+        cache.fetch(url("/model.xgb"));
+        cache.fetch(url("/model.xgb"));
+        assertEquals(2, server.downloads.get());
+        assertEquals(0, server.notModified.get());
+    }
+
+    @Test
+    public void testFetch_truncated() throws IOException {
+        server.models.put("/model.xgb", bytes(100000, 1));
+        server.etags.put("/model.xgb", "\"v1\"");
+        server.truncate = true;
+        ModelCache cache = new ModelCache(directory, ModelCache.DEFAULT_MAX_SIZE);
+
+        assertThrows(IOException.class, () -> cache.fetch(url("/model.xgb")));
+        assertEquals(0, files(".model").length);
+        assertEquals(0, files(".tmp").length);
+
+        // a truncated update keeps the cached model
+        server.truncate = false;
+        cache.fetch(url("/model.xgb"));
+        server.models.put("/model.xgb", bytes(100000, 2));
+        server.etags.put("/model.xgb", "\"v2\"");
+        server.truncate = true;
+        File file = cache.fetch(url("/model.xgb"));
+        assertArrayEquals(bytes(100000, 1), Files.readAllBytes(file.toPath()));
+        assertEquals(0, files(".tmp").length);
+    }
+
+    @Test
+    public void testFetch_resume() throws IOException {
+        byte[] model = bytes(100000, 1);
+        server.models.put("/model.xgb", model);
+        server.etags.put("/model.xgb", "\"v1\"");
+        server.checksums.put("/model.xgb", String.format("%016x", XXHash3.hash64(model, 0)));
+        ModelCache cache = new ModelCache(directory, ModelCache.DEFAULT_MAX_SIZE);
+
+        // resumed within the fetch
+        server.dropAfter = 30000;
+        File file = cache.fetch(url("/model.xgb"));
+        assertArrayEquals(model, Files.readAllBytes(file.toPath()));
+        assertEquals(model.length, server.bytesSent.get());
+        assertEquals(Arrays.asList(null, "bytes=30000-", "bytes=60000-", "bytes=90000-"), server.ranges);
+        assertEquals(0, files(".partial").length);
+
+        // resumed by the next fetch, after the first one ran out of resumes
+        cache.clear();
+        server.ranges.clear();
+        server.bytesSent.set(0);
+        server.dropAfter = 20000;
+        assertThrows(IOException.class, () -> cache.fetch(url("/model.xgb")));
+        assertEquals(1 + ModelCache.MAX_RESUMES, server.ranges.size());
+        assertEquals(0, files(".model").length);
+        assertEquals(80000, files(".partial")[0].length());
+        server.dropAfter = 0;
+        file = cache.fetch(url("/model.xgb"));
+        assertArrayEquals(model, Files.readAllBytes(file.toPath()));
+        assertEquals(model.length, server.bytesSent.get());
+        assertEquals("bytes=80000-", server.ranges.get(server.ranges.size() - 1));
+    }
+
+    @Test
+    public void testFetch_resumeChangedModel() throws IOException {
+        server.models.put("/model.xgb", bytes(100000, 1));
+        server.etags.put("/model.xgb", "\"v1\"");
+        server.dropAfter = 10000;
+        ModelCache cache = new ModelCache(directory, ModelCache.DEFAULT_MAX_SIZE);
+        assertThrows(IOException.class, () -> cache.fetch(url("/model.xgb")));
+        assertEquals(1, files(".partial").length);
+
+        // If-Range doesn't match the new version, which is downloaded from the start
+        server.models.put("/model.xgb", bytes(50000, 2));
+        server.etags.put("/model.xgb", "\"v2\"");
+        server.dropAfter = 0;
+        File file = cache.fetch(url("/model.xgb"));
+        assertArrayEquals(bytes(50000, 2), Files.readAllBytes(file.toPath()));
+        assertEquals(0, files(".partial").length);
+
+        // servers without range support start over as well, the cached model is used meanwhile
+        server.supportRanges = false;
+        server.models.put("/model.xgb", bytes(100000, 3));
+        server.etags.put("/model.xgb", "\"v3\"");
+        server.dropAfter = 40000;
+        assertArrayEquals(bytes(50000, 2), Files.readAllBytes(cache.fetch(url("/model.xgb")).toPath()));
+        assertEquals(40000, files(".partial")[0].length());
+        server.dropAfter = 0;
+        file = cache.fetch(url("/model.xgb"));
+        assertArrayEquals(bytes(100000, 3), Files.readAllBytes(file.toPath()));
+
+        // a range of a changed model isn't appended, even if the server ignores If-Range
+        server.models.put("/model.xgb", bytes(100000, 5));
+        server.etags.put("/model.xgb", "\"v5\"");
+        server.dropAfter = 40000;
+        assertArrayEquals(bytes(100000, 3), Files.readAllBytes(cache.fetch(url("/model.xgb")).toPath()));
+        assertEquals(40000, files(".partial")[0].length());
+        server.supportRanges = true;
+        server.ignoreIfRange = true;
+        server.models.put("/model.xgb", bytes(100000, 6));
+        server.etags.put("/model.xgb", "\"v6\"");
+        server.ranges.clear();
+        server.dropAfter = 0;
+        file = cache.fetch(url("/model.xgb"));
+        assertArrayEquals(bytes(100000, 6), Files.readAllBytes(file.toPath()));
+        assertEquals(Arrays.asList("bytes=40000-", null), server.ranges);
+        server.ignoreIfRange = false;
+
+        // without a validator nothing is kept to resume
+        server.etags.remove("/model.xgb");
+        server.models.put("/other.xgb", bytes(100000, 4));
+        server.dropAfter = 40000;
+        assertThrows(IOException.class, () -> cache.fetch(url("/other.xgb")));
+        assertEquals(0, files(".partial").length);
+    }
+
+    @Test
+    public void testFetch_checksum() throws IOException {
+        byte[] model = bytes(100000, 1);
+        server.models.put("/model.xgb", model);
+        server.etags.put("/model.xgb", "\"v1\"");
+        server.checksums.put("/model.xgb", String.format("%016x", XXHash3.hash64(model, 0) + 1));
+        ModelCache cache = new ModelCache(directory, ModelCache.DEFAULT_MAX_SIZE);
+
+        IOException e = assertThrows(IOException.class, () -> cache.fetch(url("/model.xgb")));
+        assertTrue(e.getMessage().contains("Checksum mismatch"));
+        assertEquals(0, files(".model").length);
+        assertEquals(0, files(".partial").length);
+
+        server.checksums.put("/model.xgb", "not a checksum");
+        assertThrows(IOException.class, () -> cache.fetch(url("/model.xgb")));
+
+        server.checksums.put("/model.xgb", String.format("%016X", XXHash3.hash64(model, 0)));
+        assertArrayEquals(model, Files.readAllBytes(cache.fetch(url("/model.xgb")).toPath()));
+    }
+
+    @Test
+    public void testParseContentRange() {
+        assertArrayEquals(new long[]{100, 1000}, ModelCache.parseContentRange("bytes 100-999/1000"));
+        assertArrayEquals(new long[]{100, -1}, ModelCache.parseContentRange("bytes 100-999/*"));
+        assertEquals(null, ModelCache.parseContentRange("bytes */1000"));
+        assertEquals(null, ModelCache.parseContentRange(null));
+    }
+
+    @Test
+    public void testFetch_offline() throws IOException {
+        server.models.put("/model.xgb", bytes(1000, 1));
+        server.etags.put("/model.xgb", "\"v1\"");
+        ModelCache cache = new ModelCache(directory, ModelCache.DEFAULT_MAX_SIZE);
+        URL url = url("/model.xgb");
+        cache.fetch(url);
+
+        httpServer.stop(0);
+        httpServer = null;
+        assertArrayEquals(bytes(1000, 1), Files.readAllBytes(cache.fetch(url).toPath()));
+        assertThrows(IOException.class, () -> cache.fetch(new URL(url, "/other.xgb")));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        for (String path : new String[]{"/a.xgb", "/b.xgb", "/c.xgb"}) {
+            server.models.put(path, bytes(1000, path.charAt(1)));
+            server.etags.put(path, path);
+        }
+        ModelCache cache = new ModelCache(directory, 2500);
+
+        File a = cache.fetch(url("/a.xgb"));
+        Thread.sleep(50);
+        File b = cache.fetch(url("/b.xgb"));
+        Thread.sleep(50);
+        // a is used again, so b becomes the least recently used model
+        cache.fetch(url("/a.xgb"));
+        Thread.sleep(50);
+        File c = cache.fetch(url("/c.xgb"));
+
+        assertTrue(a.exists());
+        assertFalse(b.exists());
+        assertTrue(c.exists());
+        assertEquals(2000, cache.size());
+        assertEquals(2, files(".meta").length);
+
+        // the model just fetched is kept even if it doesn't fit
+        server.models.put("/big.xgb", bytes(5000, 3));
+        File big = new ModelCache(directory, 2500).fetch(url("/big.xgb"));
+        assertTrue(big.exists());
+        assertEquals(1, files(".model").length);
+    }
+
+    @Test
+    public void testEviction_partial() throws Exception {
+        for (String path : new String[]{"/a.xgb", "/b.xgb", "/c.xgb"}) {
+            server.models.put(path, bytes(1000, path.charAt(1)));
+            server.etags.put(path, path);
+        }
+        server.models.put("/p.xgb", bytes(5000, 4));
+        server.etags.put("/p.xgb", "\"p\"");
+        ModelCache cache = new ModelCache(directory, 3500);
+
+        cache.fetch(url("/a.xgb"));
+        Thread.sleep(50);
+        server.dropAfter = 2000;
+        server.supportRanges = false;
+        assertThrows(IOException.class, () -> cache.fetch(url("/p.xgb")));
+        server.dropAfter = 0;
+        // the partial file kept to resume counts towards maxSize
+        assertEquals(3000, cache.size());
+        Thread.sleep(50);
+        cache.fetch(url("/b.xgb"));
+        Thread.sleep(50);
+        cache.fetch(url("/c.xgb"));
+        // and is evicted like a model once it is the least recently used file
+        assertEquals(0, files(".partial").length);
+        assertEquals(0, files(".partial.meta").length);
+        assertEquals(2, files(".model").length);
+        assertEquals(2000, cache.size());
+    }
+
+    @Test
+    public void testFetch_concurrentUrls() throws Exception {
+        server.models.put("/slow.xgb", bytes(1000, 1));
+        server.models.put("/fast.xgb", bytes(1000, 2));
+        server.etags.put("/fast.xgb", "\"fast\"");
+        ModelCache cache = new ModelCache(directory, ModelCache.DEFAULT_MAX_SIZE);
+        cache.fetch(url("/fast.xgb"));
+
+        server.slowPath = "/slow.xgb";
+        AtomicReference<File> slowFile = new AtomicReference<>();
+        Thread slowFetch = new Thread(() -> {
+            try {
+                slowFile.set(cache.fetch(url("/slow.xgb")));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        slowFetch.start();
+        assertTrue(server.slowRequested.await(10, TimeUnit.SECONDS));
+
+        // revalidating another model doesn't wait for the slow download
+        assertArrayEquals(bytes(1000, 2), Files.readAllBytes(cache.fetch(url("/fast.xgb")).toPath()));
+        assertTrue(slowFetch.isAlive());
+
+        server.release.countDown();
+        slowFetch.join(10000);
+        assertArrayEquals(bytes(1000, 1), Files.readAllBytes(slowFile.get().toPath()));
+    }
+
+    @Test
+    public void testScorerWithModelCache() throws Exception {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("dummy_v8.xgb.gz");
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = inputStream.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            server.models.put("/dummy_v8.xgb.gz", out.toByteArray());
+        } finally {
+            inputStream.close();
+        }
+        server.etags.put("/dummy_v8.xgb.gz", "\"v8\"");
+        ModelDownloader.setModelCache(new ModelCache(directory, ModelCache.DEFAULT_MAX_SIZE));
+
+        new Scorer(url("/dummy_v8.xgb.gz"));
+        new Scorer(url("/dummy_v8.xgb.gz"));
+        assertEquals(1, server.downloads.get());
+        assertEquals(1, server.notModified.get());
+    }
+}
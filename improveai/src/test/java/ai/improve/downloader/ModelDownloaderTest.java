@@ -0,0 +1,288 @@
+package ai.improve.downloader;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpServer;
+
+import ai.improve.encoder.XXHash3;
+import ai.improve.xgbpredictor.ImprovePredictor;
+
+public class ModelDownloaderTest {
+    public static final String Tag = "ModelDownloaderTest";
+
+    private HttpServer httpServer;
+
+    private byte[] model;
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /**
+     * Holds the responses until the test has started all downloads
+     */
+    private final CountDownLatch respond = new CountDownLatch(1);
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("dummy_v8.xgb.gz");
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = inputStream.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            model = out.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+
+        httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        httpServer.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            try {
+                respond.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!exchange.getRequestURI().getPath().startsWith("/dummy_v8")) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            exchange.sendResponseHeaders(200, model.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(model);
+            exchange.close();
+        });
+        httpServer.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        respond.countDown();
+        httpServer.stop(0);
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://127.0.0.1:" + httpServer.getAddress().getPort() + path);
+    }
+
+    @Test
+    public void testDownload_deduplicated() throws Exception {
+        int loads = ModelDownloader.getLoadCount();
+        int deduplicated = ModelDownloader.getDeduplicatedLoadCount();
+
+        URL url = url("/dummy_v8.xgb.gz");
+        CountDownLatch done = new CountDownLatch(10);
+        List<ImprovePredictor> predictors = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 10; ++i) {
+            ModelDownloader.download(url, (predictor, e) -> {
+                assertNull(e);
+                predictors.add(predictor);
+                done.countDown();
+            });
+        }
+        respond.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        assertEquals(1, requests.get());
+        assertEquals(1, ModelDownloader.getLoadCount() - loads);
+        assertEquals(9, ModelDownloader.getDeduplicatedLoadCount() - deduplicated);
+        assertNotNull(predictors.get(0));
+        for (ImprovePredictor predictor : predictors) {
+            assertSame(predictors.get(0), predictor);
+        }
+
+        // the load in flight is forgotten once it finishes
+        CountDownLatch reloaded = new CountDownLatch(1);
+        ModelDownloader.download(url, (predictor, e) -> reloaded.countDown());
+        assertTrue(reloaded.await(10, TimeUnit.SECONDS));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testDownload_sharedFailure() throws Exception {
+        int deduplicated = ModelDownloader.getDeduplicatedLoadCount();
+
+        URL url = url("/not_exist.xgb");
+        CountDownLatch done = new CountDownLatch(5);
+        AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < 5; ++i) {
+            ModelDownloader.download(url, (predictor, e) -> {
+                if (predictor == null && e != null) {
+                    failures.incrementAndGet();
+                }
+                done.countDown();
+            });
+        }
+        respond.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(5, failures.get());
+        assertEquals(1, requests.get());
+        assertEquals(4, ModelDownloader.getDeduplicatedLoadCount() - deduplicated);
+    }
+
+    @Test
+    public void testDownload_distinctUrls() throws Exception {
+        CountDownLatch done = new CountDownLatch(2);
+        ModelDownloader.download(url("/dummy_v8.xgb.gz"), (predictor, e) -> done.countDown());
+        ModelDownloader.download(url("/dummy_v8.xgb.gz?v=2"), (predictor, e) -> done.countDown());
+        respond.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testLoad_formats() throws Exception {
+        respond.countDown();
+        ImprovePredictor expected = ModelDownloader.load(url("/dummy_v8.xgb.gz"));
+
+        // gzip bytes from a url without .gz are recognized by their magic number
+        assertSameModel(expected, ModelDownloader.load(url("/dummy_v8.xgb")));
+
+        URL lz4 = getClass().getClassLoader().getResource("dummy_v8.xgb.lz4");
+        assertSameModel(expected, ModelDownloader.load(lz4));
+        ByteBuffer lz4Bytes = ModelDownloader.readModelSource(lz4);
+        assertSameModel(expected, ModelDownloader.loadModel(new URL("file:/model.xgb"), lz4Bytes));
+
+        // zstd is detected, but not supported
+        ByteBuffer zstd = ByteBuffer.wrap(new byte[]{0x28, (byte) 0xB5, 0x2F, (byte) 0xFD, 0, 0, 0, 0});
+        IOException e = assertThrows(IOException.class, () -> ModelDownloader.loadModel(new URL("file:/model.xgb"), zstd));
+        assertTrue(e.getMessage().contains("zstd"));
+        assertThrows(IOException.class, () -> ModelDownloader.loadModel(new URL("file:/model.xgb.zst"), lz4Bytes));
+    }
+
+    @Test
+    public void testLoad_metrics() throws Exception {
+        respond.countDown();
+        URL url = url("/dummy_v8.xgb.gz");
+        ModelLoadMetrics metrics = new ModelLoadMetrics(url);
+        ImprovePredictor predictor = ModelDownloader.load(url, metrics);
+        assertEquals(url, metrics.getModelUrl());
+        assertEquals("gz", metrics.getFormat());
+        assertEquals(model.length, metrics.getBytesTransferred());
+        assertEquals(model.length, metrics.getCompressedSize());
+        assertTrue(metrics.getUncompressedSize() > model.length);
+        assertEquals(predictor.getModelSize(), metrics.getUncompressedSize());
+        assertEquals(predictor.getFlatTrees().getNumTrees(), metrics.getTreeCount());
+        assertEquals(predictor.getFlatTrees().getNumNodes(), metrics.getNodeCount());
+        assertEquals(predictor.estimateMemory(), metrics.getEstimatedMemory());
+        assertTrue(metrics.getPhaseNanos(ModelLoadMetrics.Phase.FETCH) > 0);
+        assertTrue(metrics.getPhaseNanos(ModelLoadMetrics.Phase.DECOMPRESS) > 0);
+        assertTrue(metrics.getPhaseNanos(ModelLoadMetrics.Phase.PARSE_TREES) > 0);
+        assertTrue(metrics.getPhaseNanos(ModelLoadMetrics.Phase.PARSE_METADATA) > 0);
+        assertEquals(0, metrics.getPhaseNanos(ModelLoadMetrics.Phase.BUILD_ENCODER));
+        assertTrue(metrics.getTotalNanos() >= metrics.getPhaseNanos(ModelLoadMetrics.Phase.FETCH));
+        assertTrue(metrics.toString().contains("format gz"));
+
+        // local files are read, not transferred
+        URL lz4 = getClass().getClassLoader().getResource("dummy_v8.xgb.lz4");
+        ModelLoadMetrics lz4Metrics = new ModelLoadMetrics(lz4);
+        ModelDownloader.load(lz4, lz4Metrics);
+        assertEquals("lz4", lz4Metrics.getFormat());
+        assertEquals(0, lz4Metrics.getBytesTransferred());
+        assertEquals(metrics.getUncompressedSize(), lz4Metrics.getUncompressedSize());
+
+        // joined loads get metrics of their own
+        CountDownLatch done = new CountDownLatch(2);
+        List<ModelLoadMetrics> reported = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 2; ++i) {
+            ModelDownloader.download(url, (ImprovePredictor p, ModelLoadMetrics m, IOException e) -> {
+                reported.add(m);
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(reported.get(0) != reported.get(1));
+        assertEquals(reported.get(0).getTotalNanos(), reported.get(1).getTotalNanos());
+        assertEquals(model.length, reported.get(1).getBytesTransferred());
+    }
+
+    private static void assertSameModel(ImprovePredictor expected, ImprovePredictor actual) {
+        assertEquals(expected.getModelMetadata().getModelName(), actual.getModelMetadata().getModelName());
+        assertEquals(expected.getFlatTrees().getNumNodes(), actual.getFlatTrees().getNumNodes());
+    }
+
+    /**
+     * Returns at most 1000 bytes per read, like a network stream
+     */
+    private static InputStream chunkedStream(byte[] bytes) {
+        return new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1000));
+            }
+        };
+    }
+
+    @Test
+    public void testReadFully() throws IOException {
+        byte[] bytes = new byte[100000];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) (i * 31);
+        }
+        long hash = XXHash3.hash64(bytes, 0);
+
+        // a stream of the expected length is read into an array of its size, which isn't copied
+        XXHash3.Streaming checksum = new XXHash3.Streaming(0);
+        ByteBuffer source = ModelDownloader.readFully(chunkedStream(bytes), bytes.length, checksum);
+        assertEquals(bytes.length, source.array().length);
+        assertArrayEquals(bytes, source.array());
+        assertEquals(hash, checksum.digest());
+
+        // other lengths are read to the end all the same
+        for (long expectedLength : new long[]{-1, 0, 1000, bytes.length * 3L}) {
+            checksum = new XXHash3.Streaming(0);
+            source = ModelDownloader.readFully(chunkedStream(bytes), expectedLength, checksum);
+            byte[] read = new byte[source.remaining()];
+            source.get(read);
+            assertArrayEquals(bytes, read);
+            assertEquals(hash, checksum.digest());
+        }
+        assertEquals(0, ModelDownloader.readFully(chunkedStream(new byte[0]), -1, null).remaining());
+        assertThrows(IOException.class, () -> ModelDownloader.readFully(chunkedStream(bytes), 1L << 40, null));
+    }
+
+    @Test
+    public void testReadFully_presize() throws IOException {
+        // a huge Content-Length doesn't allocate more than MAX_PRESIZE up front
+        byte[] bytes = new byte[1000];
+        ByteBuffer source = ModelDownloader.readFully(chunkedStream(bytes), Integer.MAX_VALUE - 8, null);
+        assertEquals(bytes.length, source.remaining());
+        assertEquals(ModelDownloader.MAX_PRESIZE, source.array().length);
+
+        // a longer model of known length still ends up in an array of its size
+        byte[] large = new byte[ModelDownloader.MAX_PRESIZE * 2 + 3];
+        for (int i = 0; i < large.length; ++i) {
+            large[i] = (byte) (i * 31);
+        }
+        source = ModelDownloader.readFully(chunkedStream(large), large.length, null);
+        assertEquals(large.length, source.array().length);
+        assertArrayEquals(large, source.array());
+    }
+}
@@ -0,0 +1,162 @@
+package ai.improve.downloader;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import ai.improve.log.IMPLog;
+import ai.improve.util.LZ4Frame;
+import ai.improve.xgbpredictor.ImprovePredictor;
+import ai.improve.xgbpredictor.SyntheticModels;
+
+/**
+ * Decompress and load times of the test models as plain, gzip and LZ4 files, and of a 92.7 MB
+ * model (5000 trees of depth 8) as plain and gzip files. There is no LZ4 compressor in the SDK,
+ * so only the LZ4 test resource is measured as LZ4. dummy_v6 has an outdated metadata version,
+ * so only its decompression is measured. Run with -Dimproveai.benchmark=true.
+ */
+@EnabledIfSystemProperty(named = "improveai.benchmark", matches = "true")
+public class ModelFormatBenchmark {
+    public static final String Tag = "ModelFormatBenchmark";
+
+    /**
+     * Enough rounds for the test models to be timed after the JIT compiled the loaders
+     */
+    private static final int SMALL_ROUNDS = 500;
+
+    static {
+        IMPLog.setLogLevel(IMPLog.LOG_LEVEL_ALL);
+    }
+
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    @Test
+    public void benchmarkTestModels() throws IOException {
+        final byte[] v6 = readResource("dummy_v6.xgb");
+        final byte[] v6Gzip = gzip(v6);
+        log("dummy_v6", "decompress gz", v6Gzip.length, bestOf(SMALL_ROUNDS, new Task() {
+            @Override
+            public void run() throws IOException {
+                assertArrayEquals(v6, gunzip(v6Gzip, v6.length));
+            }
+        }));
+
+        final byte[] v8Gzip = readResource("dummy_v8.xgb.gz");
+        final byte[] v8Lz4 = readResource("dummy_v8.xgb.lz4");
+        final byte[] v8 = gunzip(v8Gzip, 0);
+        log("dummy_v8", "decompress lz4", v8Lz4.length, bestOf(SMALL_ROUNDS, new Task() {
+            @Override
+            public void run() throws IOException {
+                assertArrayEquals(v8, LZ4Frame.decompress(ByteBuffer.wrap(v8Lz4)));
+            }
+        }));
+        log("dummy_v8", "load lz4", v8Lz4.length, bestOf(SMALL_ROUNDS, new Task() {
+            @Override
+            public void run() throws IOException {
+                ModelDownloader.loadModel(new URL("file:/model.xgb.lz4"), ByteBuffer.wrap(v8Lz4));
+            }
+        }));
+        benchmarkPlainAndGzip("dummy_v8", v8, v8Gzip, SMALL_ROUNDS);
+    }
+
+    @Test
+    public void benchmarkLargeModel() throws IOException {
+        byte[] model = SyntheticModels.build(5000, 8, 0);
+        benchmarkPlainAndGzip("synthetic 5000 trees", model, gzip(model), 3);
+    }
+
+    private static void benchmarkPlainAndGzip(String name, final byte[] model, final byte[] compressed, int rounds) throws IOException {
+        log(name, "decompress gz", compressed.length, bestOf(rounds, new Task() {
+            @Override
+            public void run() throws IOException {
+                gunzip(compressed, model.length);
+            }
+        }));
+        log(name, "load plain", model.length, bestOf(rounds, new Task() {
+            @Override
+            public void run() throws IOException {
+                ModelDownloader.loadModel(new URL("file:/model.xgb"), ByteBuffer.wrap(model));
+            }
+        }));
+        log(name, "load gz", compressed.length, bestOf(rounds, new Task() {
+            @Override
+            public void run() throws IOException {
+                ModelDownloader.loadModel(new URL("file:/model.xgb.gz"), ByteBuffer.wrap(compressed));
+            }
+        }));
+        log(name, "load gz stream", compressed.length, bestOf(rounds, new Task() {
+            @Override
+            public void run() throws IOException {
+                // the stream path of the SDK before models were read into buffers
+                InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+                try {
+                    new ImprovePredictor(in);
+                } finally {
+                    in.close();
+                }
+            }
+        }));
+    }
+
+    private static long bestOf(int rounds, Task task) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < rounds; ++i) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static void log(String model, String phase, int size, long nanos) {
+        IMPLog.d(Tag, String.format("%s, %s of %d bytes: %.2f ms", model, phase, size, nanos / 1e6));
+    }
+
+    private static byte[] readResource(String name) throws IOException {
+        InputStream in = ModelFormatBenchmark.class.getClassLoader().getResourceAsStream(name);
+        try {
+            return readAll(in, 0);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(out);
+        gzipOutputStream.write(bytes);
+        gzipOutputStream.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] compressed, int size) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed), 64 * 1024);
+        try {
+            return readAll(in, size);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream in, int size) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(size, 8192));
+        byte[] buffer = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,91 @@
+package ai.improve.encoder;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class FeatureEncoderTest {
+    public static final String Tag = "FeatureEncoderTest";
+
+    private static FeatureEncoder newFeatureEncoder() {
+        Map<String, long[]> stringTables = new LinkedHashMap<>();
+        stringTables.put("item.a", new long[]{3, 1, 7, 2});
+        stringTables.put("item.b", new long[]{5, 9});
+        stringTables.put("context", new long[]{11});
+        return new FeatureEncoder(new String[]{"item.a", "item.b", "item.c", "context"}, stringTables, 5);
+    }
+
+    @Test
+    public void testStringTables_materializedOnFirstEncode() throws IOException {
+        FeatureEncoder featureEncoder = newFeatureEncoder();
+        assertEquals(3, featureEncoder.getStringTableCount());
+        assertEquals(0, featureEncoder.getMaterializedStringTableCount());
+
+        double[] into = new double[4];
+        featureEncoder.encodeItem(Collections.singletonMap("c", "foo"), into, 0, 1);
+        assertEquals(0, featureEncoder.getMaterializedStringTableCount());
+
+        featureEncoder.encodeItem(Collections.singletonMap("a", "foo"), into, 0, 1);
+        featureEncoder.encodeItem(Collections.singletonMap("a", "bar"), into, 0, 1);
+        assertEquals(1, featureEncoder.getMaterializedStringTableCount());
+
+        // tables not built yet are restored as such
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        featureEncoder.writeSnapshot(new DataOutputStream(bytes));
+        FeatureEncoder restored = FeatureEncoder.readSnapshot(ByteBuffer.wrap(bytes.toByteArray()));
+        assertEquals(3, restored.getStringTableCount());
+        assertEquals(1, restored.getMaterializedStringTableCount());
+
+        for (String key : new String[]{"a", "b", "c"}) {
+            double[] expected = new double[4];
+            double[] actual = new double[4];
+            newFeatureEncoder().encodeItem(Collections.singletonMap(key, "baz"), expected, 0, 1);
+            restored.encodeItem(Collections.singletonMap(key, "baz"), actual, 0, 1);
+            assertArrayEquals(expected, actual);
+        }
+        assertEquals(2, restored.getMaterializedStringTableCount());
+    }
+
+    @Test
+    public void testEstimateMemory() {
+        FeatureEncoder featureEncoder = newFeatureEncoder();
+        long initial = featureEncoder.estimateMemory();
+        assertTrue(initial > 0);
+
+        // building a table adds its hash table, a cache its entries
+        featureEncoder.encodeItem(Collections.singletonMap("a", "foo"), new double[4], 0, 1);
+        long built = featureEncoder.estimateMemory();
+        assertTrue(built > initial);
+        featureEncoder.setStringEncodingCacheCapacity(16);
+        assertTrue(featureEncoder.estimateMemory() > built);
+    }
+
+    @Test
+    public void testEncodeFeatureMatrix_reusedRows() {
+        FeatureEncoder featureEncoder = newFeatureEncoder();
+        List<Object> items = Arrays.<Object>asList(Collections.singletonMap("a", "foo"), null, Collections.singletonMap("c", 1.5));
+        Object context = "bar";
+        float[] expected = featureEncoder.encodeFeatureMatrix(items, context, 0.25);
+
+        // rows left over from other calls and longer than needed are overwritten
+        double[] contextFeatures = new double[6];
+        double[] fvalues = new double[5];
+        Arrays.fill(contextFeatures, 42);
+        Arrays.fill(fvalues, 42);
+        float[] matrix = new float[expected.length];
+        featureEncoder.encodeFeatureMatrix(items, context, 0.25, matrix, contextFeatures, fvalues);
+        assertArrayEquals(expected, matrix);
+    }
+}
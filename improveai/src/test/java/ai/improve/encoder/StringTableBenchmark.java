@@ -0,0 +1,106 @@
+package ai.improve.encoder;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import ai.improve.log.IMPLog;
+
+/**
+ * Lookup time and heap size of a string table of 500k targets, as the HashMap<Long, Double>
+ * StringTable used to build vs the LongDoubleMap it builds now. Half of the lookups hit a
+ * target. The heap is measured as the growth of the used heap after a gc, run with a heap that
+ * doesn't need to grow, e.g. -Xms1g. Run with -Dimproveai.benchmark=true.
+ */
+@EnabledIfSystemProperty(named = "improveai.benchmark", matches = "true")
+public class StringTableBenchmark {
+    public static final String Tag = "StringTableBenchmark";
+
+    private static final int TARGETS = 500000;
+
+    private static final int LOOKUPS = 1000000;
+
+    private static final int ROUNDS = 10;
+
+    /**
+     * Keeps the lookups from being optimized away
+     */
+    static volatile double sink;
+
+    static {
+        IMPLog.setLogLevel(IMPLog.LOG_LEVEL_ALL);
+    }
+
+    @Test
+    public void benchmarkLookup() {
+        Random random = new Random(0);
+        long[] targets = new long[TARGETS];
+        for (int i = 0; i < targets.length; ++i) {
+            // masked 32 bit string hashes
+            targets[i] = random.nextInt() & 0xFFFFFFFFL;
+        }
+        long[] keys = new long[LOOKUPS];
+        for (int i = 0; i < keys.length; ++i) {
+            keys[i] = random.nextBoolean() ? targets[random.nextInt(targets.length)] : random.nextInt() & 0xFFFFFFFFL;
+        }
+
+        long before = usedHeap();
+        HashMap<Long, Double> hashMap = new HashMap<>();
+        for (int i = 0; i < targets.length; ++i) {
+            hashMap.put(targets[i], (double) i);
+        }
+        long hashMapBytes = usedHeap() - before;
+
+        before = usedHeap();
+        LongDoubleMap map = new LongDoubleMap(targets.length);
+        for (int i = 0; i < targets.length; ++i) {
+            map.put(targets[i], i);
+        }
+        long mapBytes = usedHeap() - before;
+
+        for (long key : keys) {
+            Double expected = hashMap.get(key);
+            assertEquals(expected != null ? expected : Double.NaN, map.get(key, Double.NaN), 0);
+        }
+
+        long hashMapBest = Long.MAX_VALUE;
+        long mapBest = Long.MAX_VALUE;
+        double total = 0;
+        for (int round = 0; round < ROUNDS; ++round) {
+            long start = System.nanoTime();
+            for (long key : keys) {
+                // the lookup of StringTable.encode() before LongDoubleMap
+                if (hashMap.containsKey(key)) {
+                    total += hashMap.get(key);
+                }
+            }
+            hashMapBest = Math.min(hashMapBest, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (long key : keys) {
+                double value = map.get(key, Double.NaN);
+                if (!Double.isNaN(value)) {
+                    total += value;
+                }
+            }
+            mapBest = Math.min(mapBest, System.nanoTime() - start);
+        }
+        IMPLog.d(Tag, String.format("%d targets, best of %d rounds: HashMap %.1f ns per lookup, "
+                        + "%.1f MB, LongDoubleMap %.1f ns per lookup, %.1f MB (estimated %.1f MB)",
+                TARGETS, ROUNDS, (double) hashMapBest / keys.length, hashMapBytes / 1e6,
+                (double) mapBest / keys.length, mapBytes / 1e6, map.estimateMemory() / 1e6));
+        sink = total + hashMap.size() + map.size();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
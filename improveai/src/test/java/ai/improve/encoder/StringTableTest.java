@@ -0,0 +1,153 @@
+package ai.improve.encoder;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ai.improve.util.SnapshotUtils;
+
+public class StringTableTest {
+    public static final String Tag = "StringTableTest";
+
+    @Test
+    public void testEncode_cached() {
+        StringTable stringTable = new StringTable(Arrays.asList(3L, 1L, 7L, 2L), 5);
+        String[] strings = {"foo", "bar", "category", "brand", ""};
+        double[] expected = new double[strings.length];
+        for (int i = 0; i < strings.length; ++i) {
+            expected[i] = stringTable.encode(strings[i]);
+        }
+
+        StringEncodingCache cache = new StringEncodingCache(2);
+        stringTable.setCache(cache);
+        for (int round = 0; round < 3; ++round) {
+            for (int i = 0; i < strings.length; ++i) {
+                assertEquals(expected[i], stringTable.encode(strings[i]), 0);
+            }
+        }
+        assertEquals(strings.length * 3, cache.getHits() + cache.getMisses());
+
+        stringTable.setCache(null);
+        assertNull(stringTable.getCache());
+        assertEquals(expected[0], stringTable.encode(strings[0]), 0);
+    }
+
+    @Test
+    public void testEncode_cache_hits() {
+        StringTable stringTable = new StringTable(Arrays.asList(3L, 1L, 7L, 2L), 5);
+        StringEncodingCache cache = new StringEncodingCache(16);
+        stringTable.setCache(cache);
+        stringTable.encode("foo");
+        stringTable.encode("foo");
+        stringTable.encode(new String("foo"));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testEncode_lazy() {
+        long hit = StringTable.hash("foo".getBytes(StandardCharsets.UTF_8), 5) & 0xFFFF;
+        long[] targets = {hit, 65535, 12};
+        StringTable stringTable = new StringTable(targets, 5);
+        assertEquals(0xFFFF, stringTable.mask);
+        assertFalse(stringTable.isMaterialized());
+        assertFalse(stringTable.isEmpty());
+
+        // the last target encodes to -1 and the first one to 1
+        assertEquals(1, stringTable.encode("foo"), 0);
+        assertTrue(stringTable.isMaterialized());
+        assertEquals(new StringTable(Arrays.asList(hit, 65535L, 12L), 5).encode("bar"), stringTable.encode("bar"), 0);
+
+        StringTable empty = new StringTable(new long[0], 5);
+        assertTrue(empty.isMaterialized());
+        assertTrue(empty.isEmpty());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testGetValueTable() {
+        StringTable stringTable = new StringTable(new long[]{3, 1, 7, 2}, 5);
+        assertFalse(stringTable.isMaterialized());
+        Map<Long, Double> valueTable = stringTable.getValueTable();
+        assertTrue(stringTable.isMaterialized());
+        assertEquals(4, valueTable.size());
+        // the last target encodes to -1 and the first one to 1
+        assertEquals(1, valueTable.get(3L), 0);
+        assertEquals(StringTable.scale(2 / 3.0), valueTable.get(1L), 0);
+        assertEquals(StringTable.scale(1 / 3.0), valueTable.get(7L), 0);
+        assertEquals(-1, valueTable.get(2L), 0);
+
+        assertTrue(new StringTable(new long[0], 5).getValueTable().isEmpty());
+    }
+
+    @Test
+    public void testEncode_concurrentMaterialization() throws InterruptedException {
+        long[] targets = new long[100000];
+        for (int i = 0; i < targets.length; ++i) {
+            targets[i] = i * 7919L % 1000003;
+        }
+        StringTable expectedTable = new StringTable(targets, 7);
+        double[] expected = new double[1000];
+        for (int i = 0; i < expected.length; ++i) {
+            expected[i] = expectedTable.encode("value " + i);
+        }
+
+        StringTable stringTable = new StringTable(targets, 7);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; ++t) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < expected.length; ++i) {
+                        assertEquals(expected[i], stringTable.encode("value " + i), 0);
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+    }
+
+    private static ByteBuffer tableSnapshot(long[] keys) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        SnapshotUtils.writeLongArray(out, keys);
+        SnapshotUtils.writeDoubleArray(out, new double[keys.length]);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    @Test
+    public void testReadSnapshot_table() throws IOException {
+        LongDoubleMap map = LongDoubleMap.readSnapshot(tableSnapshot(new long[]{-1, 5, 6, 7}));
+        assertTrue(Double.isNaN(map.get(8, Double.NaN)));
+
+        // a table without empty slots would make lookups of missing keys loop forever
+        assertThrows(IOException.class, () -> LongDoubleMap.readSnapshot(tableSnapshot(new long[]{4, 5, 6, 7})));
+        assertThrows(IOException.class, () -> LongDoubleMap.readSnapshot(tableSnapshot(new long[]{-1, 5, 6, 7, 8, 9, 10, 11})));
+    }
+}
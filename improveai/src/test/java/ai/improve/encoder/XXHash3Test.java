@@ -0,0 +1,153 @@
+package ai.improve.encoder;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+public class XXHash3Test {
+    public static final String Tag = "XXHash3Test";
+
+    private static final long[] SEEDS = {0L, 1L, 0xFFFFFFFFL, 0x9E3779B185EBCA87L};
+
+    // Covers every XXH3 code path: 0, 1-3, 4-8, 9-16, 17-128, 129-240 bytes and
+    // long inputs with one or several blocks
+    private static final int[] LENGTHS = {0, 1, 2, 3, 4, 5, 8, 9, 15, 16, 17, 31, 32, 33, 64, 65, 96, 97,
+            128, 129, 200, 240, 241, 1023, 1024, 1025, 2047, 2048, 2049, 5000};
+
+    // Expected hashes generated with the native xxhash library, XXH3_64bits_withSeed()
+    private static final long[][] EXPECTED = {
+            // seed = 0L
+            {
+                    0x2D06800538D394C2L, 0x4C5CCA45D0F4811FL, 0xA7E250C97710FF27L,
+                    0x15F7093B173D005CL, 0xDCA012F95811B6B9L, 0xB290CAFC7B254345L,
+                    0xDEC6A9A43575982EL, 0xCBE393399F17FFBDL, 0x545E19990471DC37L,
+                    0x7E484C18D74895D0L, 0x208BDE5EE2BED407L, 0xA937652B0119CA11L,
+                    0x03DF0AC5255D1446L, 0x199A362122D71F46L, 0xDD30702AB46B3745L,
+                    0xFAB36B851B94CE20L, 0xD245CD2541582982L, 0x60E3E1D0D43785B3L,
+                    0xF92B70EAA21A6288L, 0xF8F76713F2BB60FAL, 0x12FDB864685F344DL,
+                    0xCCC7375172C41F03L, 0x0B3B630948CE4A00L, 0xF0D330CE2B3300FBL,
+                    0x23BC880EBF0D29C6L, 0xC09FDFBC398C7D82L, 0xC49F1B36D955611EL,
+                    0x19F6F9C987331373L, 0x5045460F5D85C275L, 0x559FFF92C2B7F8EEL,
+            },
+            // seed = 1L
+            {
+                    0x4DC5B0CC826F6703L, 0x0A187BF012ECA100L, 0x043DF47A13488E85L,
+                    0x2D2F08AD1DCF5855L, 0x147BA1078A952951L, 0xE7D1024F783FD9C7L,
+                    0x93DB64E0C78ADDF0L, 0x9B4AC94407EF94F7L, 0x8A5A63B56A2B5C05L,
+                    0x5EB10BD46EBEB101L, 0x40EE90E37FF57A2CL, 0x872CB66EA8834617L,
+                    0xB101853DFEAA2516L, 0x59E3EA853EC783EBL, 0xA6C1A8DF0FFFF23BL,
+                    0xAAA8C39188E70F3AL, 0x7B7DEC87B161842BL, 0x3BA4DC11DECADB67L,
+                    0x6673C6814E935B97L, 0x9638166292586E74L, 0x70B275726591737BL,
+                    0x8B1FDBBE81E5919EL, 0x74435D0ED97C22F9L, 0x135FF09A58FDE173L,
+                    0xB5BF4CCC6942B02DL, 0xC92B70791F0E3D05L, 0x9671032FE3C5878CL,
+                    0x2571C51149611399L, 0xF923D11B53EFDA34L, 0xAA85311C0F15A081L,
+            },
+            // seed = 0xFFFFFFFFL
+            {
+                    0xA4F199794CCFA477L, 0xCF9480B5AF3A87DEL, 0x0642881D5EB91945L,
+                    0x20CE7704B9797873L, 0xBF34C37BD3FFB836L, 0x2F1C9BEE1FD917F2L,
+                    0xD8D9CAE55C4CD0D7L, 0x6F29B1833459C374L, 0x6F04F255C88C8618L,
+                    0x37CB2F94C2BD0A96L, 0xBB2E951B508AE157L, 0x0E4B4E50E341A018L,
+                    0x43250245F35D2A02L, 0x93BA195A8F88C8E1L, 0x19E76DB7D193DC2EL,
+                    0x1265C96C95A7F896L, 0x79580A422C5FA9C7L, 0xAE19893E2F4CBBECL,
+                    0xB5761A7CC2435E72L, 0x6EFDF5058E43D83CL, 0x9E4B847360389D75L,
+                    0xD45F57D196F8DB16L, 0x4657077796072D02L, 0xE6F93AB32BAB3D5AL,
+                    0x04E056962BC3819FL, 0x7F453171DBA905F7L, 0xF3F00F9D2B5B6980L,
+                    0xEA67D32B3A4B0951L, 0xBB59793042C014D4L, 0x6BB57D28F0A1B2FCL,
+            },
+            // seed = 0x9E3779B185EBCA87L
+            {
+                    0x07F70F819703314DL, 0x69F37FE502A5CE84L, 0xC0EB325B987B18D7L,
+                    0xEEFF2D8FA4029C4FL, 0xEB78C1929BDA07C4L, 0x37239F9117E3CD2BL,
+                    0x1DD06667933EE8F2L, 0xCEEF2CD3978A4903L, 0xD36C21CCA257DC73L,
+                    0x440D0E06E6EC184FL, 0x86EC712E5819BD3DL, 0x11E6728D180C5C9DL,
+                    0xB370729235314230L, 0xD1ADC5167BFE32E3L, 0xE662EE8ED6347E22L,
+                    0xEE118073C517B4CAL, 0x4B7C7C7D674DDD23L, 0x5944889E3ACEDAA8L,
+                    0x1BF627F148EE2125L, 0xD8F2A276BB812AE7L, 0x769BC167BC2EA544L,
+                    0x0D25758DE6BBA3F4L, 0x69954910E268D78EL, 0xC6AD167ADE255873L,
+                    0x214FBE8028E7730AL, 0x71B3D10585F207AAL, 0xB1B5D58CD8A71453L,
+                    0x59E0401857999FF7L, 0x6C1C0474F79795DFL, 0x6D300AC7C48F8EDEL,
+            },
+    };
+
+    @Test
+    public void testHash64_golden() {
+        for (int i = 0; i < SEEDS.length; ++i) {
+            for (int j = 0; j < LENGTHS.length; ++j) {
+                assertEquals(EXPECTED[i][j], XXHash3.hash64(input(LENGTHS[j]), SEEDS[i]),
+                        "seed " + SEEDS[i] + ", length " + LENGTHS[j]);
+            }
+        }
+    }
+
+    @Test
+    public void testHash64_strings() {
+        Charset utf8 = Charset.forName("UTF-8");
+        String[] strings = {"", "a", "abc", "foo", "bar", "\uD83D\uDE00", "\u4F60\u597D",
+                " !\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~"};
+        long[] expected = {
+                0x388EC5BD0562E095L, 0x279EA5E9E34A4886L, 0x5599169C9856140BL,
+                0xC84D0BC1A8CD9C94L, 0xE4B5BF3B0B76B3E5L, 0x8606A7362DF5E255L,
+                0xB23E98C076EE7555L, 0x1F60709A5CD9C77FL,
+        };
+        for (int i = 0; i < strings.length; ++i) {
+            assertEquals(expected[i], XXHash3.hash64(strings[i].getBytes(utf8), 5));
+            assertEquals(expected[i], StringTable.hash(strings[i].getBytes(utf8), 5));
+        }
+    }
+
+    @Test
+    public void testHash64_offset() {
+        Random random = new Random(0);
+        for (int length = 0; length < 600; ++length) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            byte[] padded = new byte[length + 10];
+            System.arraycopy(data, 0, padded, 3, length);
+            assertEquals(XXHash3.hash64(data, length), XXHash3.hash64(padded, 3, length, length));
+        }
+    }
+
+    @Test
+    public void testStreaming() {
+        for (int i = 0; i < SEEDS.length; ++i) {
+            for (int j = 0; j < LENGTHS.length; ++j) {
+                byte[] data = input(LENGTHS[j]);
+                // byte by byte, in uneven pieces and at once
+                XXHash3.Streaming bytewise = new XXHash3.Streaming(SEEDS[i]);
+                for (int k = 0; k < data.length; ++k) {
+                    bytewise.update(data, k, 1);
+                }
+                assertEquals(EXPECTED[i][j], bytewise.digest(), "seed " + SEEDS[i] + ", length " + LENGTHS[j]);
+                XXHash3.Streaming whole = new XXHash3.Streaming(SEEDS[i]);
+                whole.update(data, 0, data.length);
+                assertEquals(EXPECTED[i][j], whole.digest());
+                assertEquals(data.length, whole.length());
+            }
+        }
+
+        Random random = new Random(1);
+        byte[] data = new byte[20000];
+        random.nextBytes(data);
+        XXHash3.Streaming streaming = new XXHash3.Streaming(7);
+        int length = 0;
+        while (length < data.length) {
+            int n = Math.min(data.length - length, random.nextInt(3000));
+            streaming.update(data, length, n);
+            length += n;
+            // digests along the way don't change the state
+            assertEquals(XXHash3.hash64(data, 0, length, 7), streaming.digest(), "length " + length);
+        }
+    }
+
+    private static byte[] input(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+}
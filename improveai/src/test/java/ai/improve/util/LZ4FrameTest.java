@@ -0,0 +1,234 @@
+package ai.improve.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+public class LZ4FrameTest {
+    public static final String Tag = "LZ4FrameTest";
+
+    private static final int VERSION = 0x40;
+    private static final int INDEPENDENT_BLOCKS = 0x20;
+    private static final int BLOCK_CHECKSUM = 0x10;
+    private static final int CONTENT_SIZE = 0x08;
+    private static final int CONTENT_CHECKSUM = 0x04;
+    private static final int DICTIONARY = 0x01;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static byte[] readResource(String name, boolean gzip) throws IOException {
+        InputStream inputStream = LZ4FrameTest.class.getClassLoader().getResourceAsStream(name);
+        if (gzip) {
+            inputStream = new GZIPInputStream(inputStream);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = inputStream.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(US_ASCII);
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a frame with 64KB blocks. Blocks are compressed unless wrapped in Uncompressed.
+     * @param content the decompressed bytes, for the content size and checksum
+     */
+    private static byte[] frame(int flags, byte[] content, Object... blocks) {
+        ByteBuffer out = ByteBuffer.allocate(1024 + 2 * content.length).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(0x184D2204);
+        int descriptorStart = out.position();
+        out.put((byte) (VERSION | flags));
+        out.put((byte) 0x40);
+        if ((flags & CONTENT_SIZE) != 0) {
+            out.putLong(content.length);
+        }
+        if ((flags & DICTIONARY) != 0) {
+            out.putInt(1);
+        }
+        int descriptorEnd = out.position();
+        out.put((byte) (LZ4Frame.xxhash32(out.array(), descriptorStart, descriptorEnd - descriptorStart, 0) >>> 8));
+        for (Object block : blocks) {
+            byte[] data = block instanceof Uncompressed ? ((Uncompressed) block).data : (byte[]) block;
+            out.putInt(block instanceof Uncompressed ? data.length | 0x80000000 : data.length);
+            out.put(data);
+            if ((flags & BLOCK_CHECKSUM) != 0) {
+                out.putInt(LZ4Frame.xxhash32(data, 0, data.length, 0));
+            }
+        }
+        out.putInt(0);
+        if ((flags & CONTENT_CHECKSUM) != 0) {
+            out.putInt(LZ4Frame.xxhash32(content, 0, content.length, 0));
+        }
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    private static final class Uncompressed {
+        final byte[] data;
+
+        Uncompressed(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    private static byte[] decompress(byte[] frames) throws IOException {
+        return LZ4Frame.decompress(ByteBuffer.wrap(frames));
+    }
+
+    @Test
+    public void testReferenceFrame() throws IOException {
+        // written by liblz4 with a content checksum
+        byte[] compressed = readResource("dummy_v8.xgb.lz4", false);
+        byte[] expected = readResource("dummy_v8.xgb.gz", true);
+        assertTrue(LZ4Frame.isFrame(ByteBuffer.wrap(compressed)));
+        assertArrayEquals(expected, decompress(compressed));
+
+        // direct buffers and buffers not starting at 0 work alike
+        ByteBuffer direct = ByteBuffer.allocateDirect(compressed.length + 3);
+        direct.position(3);
+        direct.put(compressed);
+        direct.position(3);
+        assertArrayEquals(expected, LZ4Frame.decompress(direct));
+        assertEquals(3, direct.position());
+
+        byte[] offset = new byte[compressed.length + 5];
+        System.arraycopy(compressed, 0, offset, 5, compressed.length);
+        assertArrayEquals(expected, LZ4Frame.decompress(ByteBuffer.wrap(offset, 5, compressed.length).slice()));
+    }
+
+    @Test
+    public void testSequences() throws IOException {
+        // "abc", then an overlapping match repeating it 4 more times, then the last literals
+        byte[] content = bytes("abcabcabcabcabcXyz");
+        byte[] block = concat(new byte[]{0x38}, bytes("abc"), new byte[]{3, 0, 0x30}, bytes("Xyz"));
+        for (int flags : new int[]{0, INDEPENDENT_BLOCKS, CONTENT_SIZE | CONTENT_CHECKSUM | BLOCK_CHECKSUM}) {
+            assertArrayEquals(content, decompress(frame(flags, content, block)));
+        }
+
+        // lengths of 15 and more continue in extra bytes
+        byte[] literals = new byte[300];
+        new Random(7).nextBytes(literals);
+        byte[] run = new byte[1000];
+        Arrays.fill(run, literals[299]);
+        content = concat(literals, run, bytes("e"));
+        block = concat(new byte[]{(byte) 0xFF, (byte) 255, 30}, literals,
+                new byte[]{1, 0, (byte) 255, (byte) 255, (byte) 255, (byte) 216, 0x10}, bytes("e"));
+        assertArrayEquals(content, decompress(frame(CONTENT_CHECKSUM, content, block)));
+    }
+
+    @Test
+    public void testLinkedBlocks() throws IOException {
+        byte[] first = concat(new byte[]{0x38}, bytes("abc"), new byte[]{3, 0, 0x30}, bytes("Xyz"));
+        // a match of "abca" 18 bytes back, in the previous block
+        byte[] second = concat(new byte[]{0x00, 18, 0, 0x10}, bytes("Z"));
+        byte[] content = bytes("abcabcabcabcabcXyzabcaZ");
+        assertArrayEquals(content, decompress(frame(CONTENT_CHECKSUM, content, first, second)));
+
+        // independent blocks can't refer to each other
+        assertThrows(IOException.class, () -> decompress(frame(INDEPENDENT_BLOCKS, content, first, second)));
+
+        // nor can a frame refer to the previous one
+        byte[] frames = concat(frame(0, bytes("abcabcabcabcabcXyz"), first), frame(0, bytes("abcaZ"), second));
+        assertThrows(IOException.class, () -> decompress(frames));
+    }
+
+    @Test
+    public void testUncompressedBlocks() throws IOException {
+        byte[] content = bytes("abcabcabcabcabcXyzplain");
+        byte[] block = concat(new byte[]{0x38}, bytes("abc"), new byte[]{3, 0, 0x30}, bytes("Xyz"));
+        byte[] frame = frame(CONTENT_SIZE | BLOCK_CHECKSUM, content, block, new Uncompressed(bytes("plain")));
+        assertArrayEquals(content, decompress(frame));
+    }
+
+    @Test
+    public void testConcatenatedAndSkippableFrames() throws IOException {
+        ByteBuffer skippable = ByteBuffer.allocate(11).order(ByteOrder.LITTLE_ENDIAN);
+        skippable.putInt(0x184D2A5F).putInt(3).put(bytes("xyz"));
+        assertTrue(LZ4Frame.isFrame(ByteBuffer.wrap(skippable.array())));
+
+        byte[] frames = concat(skippable.array(),
+                frame(CONTENT_SIZE, bytes("first"), new Uncompressed(bytes("first"))),
+                frame(0, bytes(""), new Object[0]),
+                frame(CONTENT_CHECKSUM, bytes("second"), new Uncompressed(bytes("second"))),
+                skippable.array());
+        assertArrayEquals(bytes("firstsecond"), decompress(frames));
+    }
+
+    @Test
+    public void testMalformed() {
+        assertFalse(LZ4Frame.isFrame(ByteBuffer.wrap(new byte[]{0x1F, (byte) 0x8B, 8, 0})));
+        assertFalse(LZ4Frame.isFrame(ByteBuffer.wrap(new byte[]{4, 0x22, 0x4D})));
+        assertThrows(IOException.class, () -> decompress(new byte[0]));
+        assertThrows(IOException.class, () -> decompress(bytes("binf plain model")));
+
+        byte[] content = bytes("abcabcabcabcabcXyz");
+        byte[] block = concat(new byte[]{0x38}, bytes("abc"), new byte[]{3, 0, 0x30}, bytes("Xyz"));
+        // a match before the start, or a content size that doesn't match
+        byte[] offsetTooLarge = concat(new byte[]{0x38}, bytes("abc"), new byte[]{4, 0, 0x30}, bytes("Xyz"));
+        assertThrows(IOException.class, () -> decompress(frame(0, content, offsetTooLarge)));
+        assertThrows(IOException.class, () -> decompress(frame(CONTENT_SIZE, Arrays.copyOf(content, 17), block)));
+        assertThrows(IOException.class, () -> decompress(frame(CONTENT_SIZE, Arrays.copyOf(content, 19), block)));
+        assertThrows(IOException.class, () -> decompress(frame(DICTIONARY, content, block)));
+        // trailing garbage
+        assertThrows(IOException.class, () -> decompress(concat(frame(0, content, block), bytes("garbage"))));
+
+        // a content size far beyond what the blocks can hold fails without allocating it
+        byte[] huge = frame(CONTENT_SIZE, content, block);
+        ByteBuffer.wrap(huge).order(ByteOrder.LITTLE_ENDIAN).putLong(6, 2000000000L);
+        huge[14] = (byte) (LZ4Frame.xxhash32(huge, 4, 10, 0) >>> 8);
+        assertThrows(IOException.class, () -> decompress(huge));
+    }
+
+    @Test
+    public void testCorruptAndTruncated() throws IOException {
+        byte[] compressed = readResource("dummy_v8.xgb.lz4", false);
+        byte[] expected = readResource("dummy_v8.xgb.gz", true);
+        // checksums catch what isn't malformed. A match offset may still change to another
+        // copy of the same bytes.
+        for (int offset = 0; offset < compressed.length; ++offset) {
+            byte[] corrupt = compressed.clone();
+            corrupt[offset] ^= 0x10;
+            byte[] decompressed;
+            try {
+                decompressed = decompress(corrupt);
+            } catch (IOException e) {
+                continue;
+            }
+            assertArrayEquals(expected, decompressed, "offset " + offset);
+        }
+        for (int length = 0; length < compressed.length; length += 7) {
+            byte[] truncated = Arrays.copyOf(compressed, length);
+            assertThrows(IOException.class, () -> decompress(truncated), "length " + length);
+        }
+    }
+}
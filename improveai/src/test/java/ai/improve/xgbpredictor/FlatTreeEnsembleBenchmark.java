@@ -0,0 +1,74 @@
+package ai.improve.xgbpredictor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import ai.improve.log.IMPLog;
+import biz.k11i.xgboost.gbm.GradBooster;
+import biz.k11i.xgboost.util.FVec;
+
+/**
+ * Latency of predictSingle() on a 500 tree, depth 8 model, walking the flat trees vs the node
+ * objects of the booster. Cache misses aren't observable from Java, run under perf stat -e
+ * cache-misses to count them. Run with -Dimproveai.benchmark=true.
+ */
+@EnabledIfSystemProperty(named = "improveai.benchmark", matches = "true")
+public class FlatTreeEnsembleBenchmark {
+    public static final String Tag = "FlatTreeEnsembleBenchmark";
+
+    private static final int ROUNDS = 5;
+
+    /**
+     * Keeps the predictions from being optimized away
+     */
+    static volatile float sink;
+
+    static {
+        IMPLog.setLogLevel(IMPLog.LOG_LEVEL_ALL);
+    }
+
+    @Test
+    public void benchmarkPredictSingle() throws IOException {
+        ImprovePredictor predictor = new ImprovePredictor(ByteBuffer.wrap(SyntheticModels.build(500, 8, 0)));
+        FlatTreeEnsemble flatTrees = predictor.getFlatTrees();
+        GradBooster booster = predictor.getBooster();
+
+        int numFeatures = predictor.getModelMetadata().getFeatureNameArray().length;
+        List<FVec> feats = new ArrayList<>();
+        for (double[] features : ImprovePredictorTest.randomFeatures(10000, numFeatures, 0)) {
+            feats.add(FVec.Transformer.fromArray(features, false));
+        }
+        for (FVec fvec : feats) {
+            assertEquals(booster.predictSingle(fvec, 0), flatTrees.predictSingle(fvec, 0));
+        }
+
+        long boosterBest = Long.MAX_VALUE;
+        long flatBest = Long.MAX_VALUE;
+        float total = 0;
+        for (int round = 0; round < ROUNDS; ++round) {
+            long start = System.nanoTime();
+            for (FVec fvec : feats) {
+                total += booster.predictSingle(fvec, 0);
+            }
+            boosterBest = Math.min(boosterBest, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (FVec fvec : feats) {
+                total += flatTrees.predictSingle(fvec, 0);
+            }
+            flatBest = Math.min(flatBest, System.nanoTime() - start);
+        }
+        IMPLog.d(Tag, String.format("predictSingle, 500 trees of depth 8, best of %d rounds: "
+                        + "booster %.1f us, flat trees %.1f us (%.2fx)",
+                ROUNDS, boosterBest / 1000.0 / feats.size(), flatBest / 1000.0 / feats.size(),
+                (double) boosterBest / flatBest));
+        sink = total;
+    }
+}
@@ -0,0 +1,200 @@
+package ai.improve.xgbpredictor;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import ai.improve.util.SnapshotUtils;
+import biz.k11i.xgboost.util.FVec;
+
+public class ImprovePredictorTest {
+    public static final String Tag = "ImprovePredictorTest";
+
+    static ImprovePredictor loadPredictor(String name) throws IOException {
+        InputStream inputStream = ImprovePredictorTest.class.getClassLoader().getResourceAsStream(name);
+        try {
+            return new ImprovePredictor(new GZIPInputStream(inputStream));
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    static double[][] randomFeatures(int count, int numFeatures, long seed) {
+        Random random = new Random(seed);
+        double[][] features = new double[count][numFeatures];
+        for (int i = 0; i < count; ++i) {
+            for (int j = 0; j < numFeatures; ++j) {
+                // about a third of the features are missing
+                features[i][j] = random.nextInt(3) == 0 ? Double.NaN : random.nextGaussian() * 10;
+            }
+        }
+        return features;
+    }
+
+    @Test
+    public void testFlatTrees() throws IOException {
+        ImprovePredictor predictor = loadPredictor("dummy_v8.xgb.gz");
+        FlatTreeEnsemble flatTrees = predictor.getFlatTrees();
+        assertNotNull(flatTrees);
+
+        int numFeatures = predictor.getModelMetadata().getModelFeatureNames().size();
+        for (double[] features : randomFeatures(1000, numFeatures, 0)) {
+            FVec fvec = FVec.Transformer.fromArray(features, false);
+            assertEquals(predictor.getBooster().predictSingle(fvec, 0), flatTrees.predictSingle(fvec, 0));
+            assertEquals(predictor.getBooster().predictSingle(fvec, 3), flatTrees.predictSingle(fvec, 3));
+        }
+    }
+
+    @Test
+    public void testDropBooster() throws IOException {
+        ImprovePredictor kept = loadPredictor("dummy_v8.xgb.gz");
+        ImprovePredictor.setKeepBooster(false);
+        final ImprovePredictor dropped;
+        try {
+            dropped = loadPredictor("dummy_v8.xgb.gz");
+        } finally {
+            ImprovePredictor.setKeepBooster(true);
+        }
+        assertNotNull(kept.getBooster());
+        assertNull(dropped.getBooster());
+        assertTrue(dropped.estimateMemory() < kept.estimateMemory());
+
+        int numFeatures = kept.getModelMetadata().getModelFeatureNames().size();
+        for (double[] features : randomFeatures(100, numFeatures, 1)) {
+            final FVec fvec = FVec.Transformer.fromArray(features, false);
+            assertEquals(kept.predictSingle(fvec), dropped.predictSingle(fvec));
+            assertThrows(IllegalStateException.class, () -> dropped.predictLeaf(fvec));
+            assertThrows(IllegalStateException.class, () -> dropped.predictLeafPath(fvec));
+        }
+    }
+
+    private static ByteBuffer treeSnapshot(int[] splits, int[] leftChildren, int[] rightChildren, int... roots) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        SnapshotUtils.writeIntArray(out, splits);
+        SnapshotUtils.writeFloatArray(out, new float[splits.length]);
+        SnapshotUtils.writeIntArray(out, leftChildren);
+        SnapshotUtils.writeIntArray(out, rightChildren);
+        SnapshotUtils.writeIntArray(out, roots);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    @Test
+    public void testReadSnapshot_trees() throws IOException {
+        // a child may come before its parent when it reuses the slot of a pruned node
+        FlatTreeEnsemble trees = FlatTreeEnsemble.readSnapshot(treeSnapshot(
+                new int[]{-1, 0, -1}, new int[]{0, 0, 0}, new int[]{0, 2, 0}, 1));
+        assertEquals(1, trees.getNumTrees());
+
+        // but no node is reached twice, so that predicting can't loop forever
+        assertThrows(IOException.class, () -> FlatTreeEnsemble.readSnapshot(treeSnapshot(
+                new int[]{0, 0, -1}, new int[]{1, 0, 0}, new int[]{2, 2, 0}, 0)));
+        assertThrows(IOException.class, () -> FlatTreeEnsemble.readSnapshot(treeSnapshot(
+                new int[]{0, -1}, new int[]{1, 0}, new int[]{1, 0}, 0)));
+        assertThrows(IOException.class, () -> FlatTreeEnsemble.readSnapshot(treeSnapshot(
+                new int[]{-1}, new int[]{0}, new int[]{0}, 0, 0)));
+        assertThrows(IOException.class, () -> FlatTreeEnsemble.readSnapshot(treeSnapshot(
+                new int[]{0, -1}, new int[]{1, 0}, new int[]{3, 0}, 0)));
+    }
+
+    @Test
+    public void testPredictBatch() throws IOException {
+        ImprovePredictor predictor = loadPredictor("dummy_v8.xgb.gz");
+
+        int count = 300;
+        int numFeatures = predictor.getModelMetadata().getModelFeatureNames().size();
+        double[][] rows = randomFeatures(count, numFeatures, 1);
+
+        float[] matrix = new float[count * numFeatures];
+        List<FVec> fvecs = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            for (int j = 0; j < numFeatures; ++j) {
+                matrix[i * numFeatures + j] = (float) rows[i][j];
+            }
+            fvecs.add(FVec.Transformer.fromArray(rows[i], false));
+        }
+
+        float[] matrixPredictions = new float[count];
+        predictor.predictBatch(matrix, numFeatures, count, matrixPredictions);
+        float[] fvecPredictions = new float[count];
+        predictor.predictBatch(fvecs, fvecPredictions);
+        double[] doublePredictions = new double[count];
+        predictor.predictBatch(matrix, numFeatures, count, doublePredictions);
+
+        for (int i = 0; i < count; ++i) {
+            float expected = predictor.predictSingle(fvecs.get(i));
+            assertEquals(expected, matrixPredictions[i]);
+            assertEquals(expected, fvecPredictions[i]);
+            assertEquals(expected, doublePredictions[i]);
+        }
+    }
+
+    @Test
+    public void testPredictInto() throws IOException {
+        ImprovePredictor predictor = loadPredictor("dummy_v8.xgb.gz");
+        int numFeatures = predictor.getModelMetadata().getModelFeatureNames().size();
+        float[] out = new float[1];
+        for (double[] features : randomFeatures(100, numFeatures, 3)) {
+            FVec fvec = FVec.Transformer.fromArray(features, false);
+            predictor.predictInto(fvec, out);
+            assertEquals(predictor.predict(fvec)[0], out[0]);
+            predictor.predictInto(fvec, true, 2, out);
+            assertEquals(predictor.predict(fvec, true, 2)[0], out[0]);
+        }
+        assertThrows(IllegalArgumentException.class, () -> predictor.predictInto(FVec.Transformer.fromArray(new double[0], false), new float[0]));
+    }
+
+    @Test
+    public void testLoadFromByteBuffer() throws IOException {
+        ImprovePredictor expected = loadPredictor("dummy_v8.xgb.gz");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream inputStream = new GZIPInputStream(ImprovePredictorTest.class.getClassLoader().getResourceAsStream("dummy_v8.xgb.gz"));
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = inputStream.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            inputStream.close();
+        }
+        byte[] bytes = out.toByteArray();
+
+        // model bytes at a non-zero position of a direct buffer, like a mapped file
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 3);
+        buffer.position(3);
+        buffer.put(bytes);
+        buffer.position(3);
+        ImprovePredictor predictor = new ImprovePredictor(buffer);
+        assertEquals(3, buffer.position());
+
+        assertEquals(expected.getModelMetadata().getModelName(), predictor.getModelMetadata().getModelName());
+        assertEquals(expected.getModelMetadata().getModelSeed(), predictor.getModelMetadata().getModelSeed());
+        assertEquals(expected.getModelMetadata().getModelFeatureNames(), predictor.getModelMetadata().getModelFeatureNames());
+        assertEquals(expected.getModelMetadata().getStringTables(), predictor.getModelMetadata().getStringTables());
+        assertEquals(expected.getBaseScore(), predictor.getBaseScore());
+
+        int numFeatures = expected.getModelMetadata().getModelFeatureNames().size();
+        for (double[] features : randomFeatures(100, numFeatures, 4)) {
+            FVec fvec = FVec.Transformer.fromArray(features, false);
+            assertEquals(expected.predictSingle(fvec), predictor.predictSingle(fvec));
+        }
+
+        assertThrows(IOException.class, () -> new ImprovePredictor(ByteBuffer.wrap(bytes, 0, bytes.length / 2)));
+    }
+}
@@ -2,10 +2,16 @@ package ai.improve.xgbpredictor;
 
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -15,6 +21,8 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Map;
 
 import biz.k11i.xgboost.util.ModelReader;
 
@@ -48,6 +56,49 @@ public class ModelMetadataTest {
         }
     }
 
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testParseMetadata_primitiveTables() throws IOException {
+        String userDefined = "{\"ai.improve.model\":\"test\",\"ai.improve.seed\":100000000,"
+                + "\"ignored\":{\"a\":[1,{\"b\":null}]},"
+                + "\"ai.improve.features\":[\"item\",\"context.x\",\"\u00e9\"],"
+                + "\"ai.improve.string_tables\":{\"item\":[3,1,4294967295],\"context.x\":[]}}";
+        ModelMetadata metadata = new ModelMetadata(reader(userDefined));
+        assertEquals("test", metadata.getModelName());
+        assertEquals(100000000, metadata.getModelSeed());
+        assertEquals(Arrays.asList("item", "context.x", "\u00e9"), metadata.getModelFeatureNames());
+        assertArrayEquals(new String[]{"item", "context.x", "\u00e9"}, metadata.getFeatureNameArray());
+
+        Map<String, long[]> tables = metadata.getStringTableArrays();
+        assertEquals(2, tables.size());
+        assertArrayEquals(new long[]{3, 1, 4294967295L}, tables.get("item"));
+        assertArrayEquals(new long[0], tables.get("context.x"));
+        assertEquals(Arrays.asList(3L, 1L, 4294967295L), metadata.getStringTables().get("item"));
+
+        // the raw JSON isn't kept
+        assertNull(metadata.getUserDefinedMetadata());
+    }
+
+    @Test
+    public void testParseMetadata_malformed() {
+        assertThrows(IOException.class, () -> new ModelMetadata(reader("{\"ai.improve.model\":\"test\",")));
+        assertThrows(IOException.class, () -> new ModelMetadata(reader(
+                "{\"ai.improve.model\":\"test\",\"ai.improve.seed\":1,\"ai.improve.features\":[],"
+                        + "\"ai.improve.string_tables\":{\"item\":[\"x\"]}}")));
+    }
+
+    private ModelReader reader(String userDefined) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] key = "user_defined_metadata".getBytes("UTF-8");
+        byte[] value = userDefined.getBytes("UTF-8");
+        out.write(longToLittleEndianBytes(1));
+        out.write(longToLittleEndianBytes(key.length));
+        out.write(key);
+        out.write(longToLittleEndianBytes(value.length));
+        out.write(value);
+        return new ModelReader(new ByteArrayInputStream(out.toByteArray()));
+    }
+
     // Generate metadata for testing
     // Please copy the generated files to directory 'resources/metadata/'
     @Test
@@ -0,0 +1,301 @@
+package ai.improve.xgbpredictor;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import biz.k11i.xgboost.util.FVec;
+
+public class ParallelModelLoaderTest {
+    public static final String Tag = "ParallelModelLoaderTest";
+
+    private int parallelism;
+
+    private int minChunkSize;
+
+    @BeforeEach
+    public void setUp() {
+        parallelism = ParallelModelLoader.getParallelism();
+        minChunkSize = ParallelModelLoader.minChunkSize;
+        // several chunks of trees even for the small test model
+        ParallelModelLoader.setParallelism(4);
+        ParallelModelLoader.minChunkSize = 1024;
+    }
+
+    @AfterEach
+    public void tearDown() {
+        ParallelModelLoader.setParallelism(parallelism);
+        ParallelModelLoader.minChunkSize = minChunkSize;
+    }
+
+    private static byte[] readModel() throws IOException {
+        InputStream inputStream = new GZIPInputStream(
+                ParallelModelLoaderTest.class.getClassLoader().getResourceAsStream("dummy_v8.xgb.gz"));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = inputStream.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes, int offset, int length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(out);
+        gzipOutputStream.write(bytes, offset, length);
+        gzipOutputStream.close();
+        return out.toByteArray();
+    }
+
+    private static ImprovePredictor loadSequentially(byte[] model) throws IOException {
+        ParallelModelLoader.setParallelism(1);
+        try {
+            return new ImprovePredictor(ByteBuffer.wrap(model));
+        } finally {
+            ParallelModelLoader.setParallelism(4);
+        }
+    }
+
+    private static void assertSameModel(ImprovePredictor expected, ImprovePredictor actual) {
+        assertEquals(expected.getFlatTrees().getNumTrees(), actual.getFlatTrees().getNumTrees());
+        assertEquals(expected.getFlatTrees().getNumNodes(), actual.getFlatTrees().getNumNodes());
+        assertEquals(expected.getBaseScore(), actual.getBaseScore());
+
+        ModelMetadata expectedMetadata = expected.getModelMetadata();
+        ModelMetadata metadata = actual.getModelMetadata();
+        assertEquals(expectedMetadata.getModelName(), metadata.getModelName());
+        assertEquals(expectedMetadata.getModelSeed(), metadata.getModelSeed());
+        assertArrayEquals(expectedMetadata.getFeatureNameArray(), metadata.getFeatureNameArray());
+        assertEquals(expectedMetadata.getStringTables(), metadata.getStringTables());
+
+        int numFeatures = metadata.getFeatureNameArray().length;
+        for (double[] features : ImprovePredictorTest.randomFeatures(1000, numFeatures, 4)) {
+            FVec fvec = FVec.Transformer.fromArray(features, false);
+            assertEquals(expected.predictSingle(fvec, true, 0), actual.predictSingle(fvec, true, 0));
+            assertEquals(expected.getBooster().predictSingle(fvec, 3), actual.getBooster().predictSingle(fvec, 3));
+        }
+    }
+
+    @Test
+    public void testCheckLayout() {
+        assertTrue(ParallelModelLoader.layoutMatches());
+        assertFalse(ParallelModelLoader.checkLayout(160, 148, 32));
+        assertFalse(ParallelModelLoader.checkLayout(160, 144, 36));
+        assertFalse(ParallelModelLoader.checkLayout(164, 148, 36));
+    }
+
+    @Test
+    public void testLoad_buffer() throws IOException {
+        byte[] model = readModel();
+        ImprovePredictor expected = loadSequentially(model);
+        assertSameModel(expected, new ImprovePredictor(ByteBuffer.wrap(model)));
+
+        // a buffer whose position isn't 0
+        byte[] padded = new byte[model.length + 7];
+        System.arraycopy(model, 0, padded, 7, model.length);
+        ByteBuffer buffer = ByteBuffer.wrap(padded);
+        buffer.position(7);
+        assertSameModel(expected, new ImprovePredictor(buffer));
+    }
+
+    @Test
+    public void testLoadGzip() throws IOException {
+        byte[] model = readModel();
+        ImprovePredictor expected = loadSequentially(model);
+        byte[] compressed = gzip(model, 0, model.length);
+        assertSameModel(expected, ImprovePredictor.loadGzip(ByteBuffer.wrap(compressed)));
+
+        // decompressed before it is parsed on the calling thread
+        ParallelModelLoader.setParallelism(1);
+        assertSameModel(expected, ImprovePredictor.loadGzip(ByteBuffer.wrap(compressed)));
+    }
+
+    @Test
+    public void testLoadGzip_busyThreads() throws Exception {
+        byte[] model = readModel();
+        ImprovePredictor expected = loadSequentially(model);
+        byte[] compressed = gzip(model, 0, model.length);
+
+        // the inflater is queued behind tasks that don't finish, so the loading thread runs it
+        ThreadPoolExecutor executor = ParallelModelLoader.executor();
+        int threads = executor.getMaximumPoolSize();
+        CountDownLatch started = new CountDownLatch(threads);
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < threads; ++i) {
+            executor.execute(() -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        try {
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            assertSameModel(expected, ImprovePredictor.loadGzip(ByteBuffer.wrap(compressed)));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testProgress_interrupted() throws Exception {
+        // a producer which is running but doesn't write anything until it is released
+        final ByteBufferModelReader.Progress progress = new ByteBufferModelReader.Progress();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean stopped = new AtomicBoolean();
+        FutureTask<Void> producer = new FutureTask<>(() -> {
+            started.countDown();
+            release.await();
+            stopped.set(progress.isStopped());
+            progress.finish(null);
+            return null;
+        });
+        progress.setProducer(producer);
+        Thread producerThread = new Thread(producer);
+        producerThread.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            try {
+                progress.await(10);
+            } catch (Throwable e) {
+                failure.set(e);
+                interrupted.set(Thread.currentThread().isInterrupted());
+            }
+        });
+        reader.start();
+        while (reader.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        reader.interrupt();
+        reader.join(10000);
+        assertTrue(failure.get() instanceof InterruptedIOException);
+        assertTrue(interrupted.get());
+        assertTrue(producer.isCancelled());
+
+        // other readers fail as well, the producer can't finish the progress anymore
+        release.countDown();
+        producerThread.join(10000);
+        assertTrue(stopped.get());
+        assertThrows(InterruptedIOException.class, progress::awaitFinished);
+        assertThrows(InterruptedIOException.class, () -> progress.await(10));
+    }
+
+    @Test
+    public void testLoadGzip_concatenatedMembers() throws IOException {
+        // the trailer only has the size of the last member
+        byte[] model = readModel();
+        byte[] first = gzip(model, 0, 1000);
+        byte[] second = gzip(model, 1000, model.length - 1000);
+        byte[] compressed = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, compressed, first.length, second.length);
+        ImprovePredictor expected = loadSequentially(model);
+        assertSameModel(expected, ImprovePredictor.loadGzip(ByteBuffer.wrap(compressed)));
+
+        ParallelModelLoader.setParallelism(1);
+        assertSameModel(expected, ImprovePredictor.loadGzip(ByteBuffer.wrap(compressed)));
+    }
+
+    @Test
+    public void testLoad_truncated() throws IOException {
+        byte[] model = readModel();
+        for (int length : new int[]{100, 5000, model.length / 2, model.length - 10}) {
+            byte[] truncated = Arrays.copyOf(model, length);
+            assertThrows(IOException.class, () -> new ImprovePredictor(ByteBuffer.wrap(truncated)));
+
+            byte[] compressed = gzip(truncated, 0, truncated.length);
+            assertThrows(IOException.class, () -> ImprovePredictor.loadGzip(ByteBuffer.wrap(compressed)));
+
+            // the stream ends before the size in the trailer
+            byte[] cut = gzip(model, 0, model.length);
+            byte[] corrupt = Arrays.copyOf(cut, cut.length * length / model.length);
+            System.arraycopy(cut, cut.length - 4, corrupt, corrupt.length - 4, 4);
+            assertThrows(IOException.class, () -> ImprovePredictor.loadGzip(ByteBuffer.wrap(corrupt)));
+        }
+    }
+
+    @Test
+    public void testCheckLength() throws IOException {
+        byte[] model = readModel();
+        // anything cut after the learner parameters fails before the trees are parsed
+        for (int length = 300; length < model.length; length += 7) {
+            byte[] truncated = Arrays.copyOf(model, length);
+            EOFException e = assertThrows(EOFException.class, () -> new ImprovePredictor(ByteBuffer.wrap(truncated)));
+            assertTrue(e.getMessage().startsWith("Model is truncated"), e.getMessage());
+        }
+        assertThrows(EOFException.class, () -> new ImprovePredictor(ByteBuffer.wrap(Arrays.copyOf(model, model.length - 1))));
+
+        // trailing bytes are ignored as before
+        byte[] padded = Arrays.copyOf(model, model.length + 10);
+        assertSameModel(loadSequentially(model), new ImprovePredictor(ByteBuffer.wrap(padded)));
+    }
+
+    private static ImprovePredictor loadOrNull(byte[] model) {
+        try {
+            return new ImprovePredictor(ByteBuffer.wrap(model));
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Test
+    public void testLoad_corrupt() throws IOException {
+        // parallel loads reject the same models as sequential ones, and load the others the same
+        byte[] model = readModel();
+        // clearing bytes never grows counts, sequential loads would allocate huge node arrays
+        for (int offset = 0; offset < model.length; offset += 13) {
+            byte[] corrupt = model.clone();
+            corrupt[offset] = 0;
+
+            ParallelModelLoader.setParallelism(1);
+            ImprovePredictor expected = loadOrNull(corrupt);
+            ParallelModelLoader.setParallelism(4);
+            ImprovePredictor predictor = loadOrNull(corrupt);
+            if (expected == null || predictor == null) {
+                assertEquals(expected, predictor, "offset " + offset);
+            } else {
+                // corrupt nodes may send predictions into cycles, so the trees are compared as is
+                assertArrayEquals(flatTrees(expected), flatTrees(predictor), "offset " + offset);
+            }
+        }
+    }
+
+    private static byte[] flatTrees(ImprovePredictor predictor) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        predictor.getFlatTrees().writeSnapshot(new DataOutputStream(out));
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,111 @@
+package ai.improve.xgbpredictor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Builds models of any size for the benchmarks: the header and the metadata of dummy_v8 with
+ * the trees replaced by random complete trees.
+ */
+public class SyntheticModels {
+    public static final String Tag = "SyntheticModels";
+
+    /**
+     * @param numTrees number of trees
+     * @param depth    depth of each tree, a tree has 2^(depth + 1) - 1 nodes
+     * @param seed     seed of the splits and leaf values
+     * @return the uncompressed model
+     */
+    public static byte[] build(int numTrees, int depth, long seed) throws IOException {
+        byte[] dummy = readDummyModel();
+        int boosterStart = boosterStart(dummy);
+        ByteBuffer dummyBooster = ByteBuffer.wrap(dummy).order(ByteOrder.LITTLE_ENDIAN);
+        // splits on the features named in the metadata
+        int numFeature = new ImprovePredictor(ByteBuffer.wrap(dummy)).getModelMetadata().getFeatureNameArray().length;
+        int boosterEnd = boosterStart + ParallelModelLoader.GBTREE_PARAM_SIZE;
+        int dummyTrees = dummyBooster.getInt(boosterStart);
+        for (int t = 0; t < dummyTrees; ++t) {
+            int numNodes = dummyBooster.getInt(boosterEnd + 4);
+            boosterEnd += ParallelModelLoader.TREE_PARAM_SIZE + numNodes * ParallelModelLoader.NODE_SIZE;
+        }
+        boosterEnd += 4 * dummyTrees;
+
+        int numNodes = (1 << (depth + 1)) - 1;
+        long boosterSize = ParallelModelLoader.GBTREE_PARAM_SIZE
+                + (long) numTrees * (ParallelModelLoader.TREE_PARAM_SIZE + 4 + (long) numNodes * ParallelModelLoader.NODE_SIZE);
+        long size = boosterStart + boosterSize + (dummy.length - boosterEnd);
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("model too large: " + size);
+        }
+        ByteBuffer model = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        // the GBTree parameters of dummy_v8 with the number of trees replaced
+        model.put(dummy, 0, boosterStart + ParallelModelLoader.GBTREE_PARAM_SIZE);
+        model.putInt(boosterStart, numTrees);
+
+        Random random = new Random(seed);
+        int firstLeaf = (1 << depth) - 1;
+        for (int t = 0; t < numTrees; ++t) {
+            // RegTreeImpl.Param: num_roots, num_nodes, num_deleted, max_depth, num_feature
+            int param = model.position();
+            model.putInt(param, 1).putInt(param + 4, numNodes).putInt(param + 12, depth).putInt(param + 16, numFeature);
+            model.position(param + ParallelModelLoader.TREE_PARAM_SIZE);
+            // nodes in breadth first order, the children of node n are 2n + 1 and 2n + 2
+            for (int n = 0; n < numNodes; ++n) {
+                model.putInt(n == 0 ? -1 : (n - 1) / 2);
+                if (n < firstLeaf) {
+                    model.putInt(2 * n + 1);
+                    model.putInt(2 * n + 2);
+                    model.putInt(random.nextInt(numFeature) | (random.nextBoolean() ? 1 << 31 : 0));
+                    model.putFloat((float) (random.nextGaussian() * 10));
+                } else {
+                    model.putInt(-1);
+                    model.putInt(-1);
+                    model.putInt(0);
+                    model.putFloat((float) (random.nextGaussian() * 0.01));
+                }
+            }
+            // the statistics of the nodes follow the nodes
+            model.position(model.position() + numNodes * (ParallelModelLoader.NODE_SIZE - 20));
+        }
+        // the tree info, every tree belongs to output group 0
+        model.position(model.position() + 4 * numTrees);
+        model.put(dummy, boosterEnd, dummy.length - boosterEnd);
+        return model.array();
+    }
+
+    private static byte[] readDummyModel() throws IOException {
+        InputStream inputStream = new GZIPInputStream(
+                SyntheticModels.class.getClassLoader().getResourceAsStream("dummy_v8.xgb.gz"));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = inputStream.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * @return offset of the GBTree parameters, right after the learner parameters and the
+     * names of the objective and the booster
+     */
+    private static int boosterStart(byte[] model) throws IOException {
+        ByteBufferModelReader header = new ByteBufferModelReader(ByteBuffer.wrap(model));
+        byte[] signature = header.readByteArray(4);
+        // base_score and num_feature, after the "binf" signature of the old format
+        header.readByteArray("binf".equals(new String(signature, "US-ASCII")) ? 8 : 4);
+        new ImprovePredictor.ModelParam(0, 0, header);
+        header.readString();
+        header.readString();
+        return header.position();
+    }
+}